@@ -0,0 +1,89 @@
+package com.khs.stockticker;
+
+import io.netty.channel.Channel;
+import io.netty.channel.local.LocalChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A quote checked against a million waiting alerts, spread over 1 or 1000 symbols, and an alert set
+ * and cleared again among them. {@link #CHANNELS} connections each have the most alerts they may,
+ * above and below pairs 1% to 50% away from the price, so the quotes, which stay within half a
+ * percent of it, fire none of them.
+ */
+@State(Scope.Thread)
+public class AlertEngineBenchmark {
+   private static final int CHANNELS = 1000;
+   private static final long PRICE   = 100L * QuoteStore.SCALE;
+
+   @Param({"1", "1000"})
+   public int symbols;
+
+   private AlertEngine alertEngine;
+   private String[] names;
+   private Channel[] channels;
+   private Channel churn;
+   private int next;
+
+   @Setup
+   public void setup() {
+      QuoteStore quoteStore = new QuoteStore();
+      alertEngine = new AlertEngine(quoteStore, AlertEngine.DEFAULT_MAX_PER_CONNECTION, new AlertEngine.Listener() {
+         @Override
+         public void watch(String symbol) {
+         }
+
+         @Override
+         public void unwatch(String symbol) {
+         }
+
+         @Override
+         public void triggered(Channel channel, String frame) {
+            throw new IllegalStateException("Nothing should fire: " + frame);
+         }
+      });
+
+      names = new String[symbols];
+      for (int i = 0; i < symbols; i++) {
+         names[i] = "SYM" + i;
+         quoteStore.update(quoteStore.intern(names[i]), PRICE, 0L, 1445367221000L);
+      }
+
+      // only ever keys here, and unlike embedded channels their ids don't all hash alike
+      channels = new Channel[CHANNELS];
+      for (int c = 0; c < CHANNELS; c++) {
+         channels[c] = new LocalChannel();
+         for (int i = 0; i < AlertEngine.DEFAULT_MAX_PER_CONNECTION / 2; i++) {
+            // 1% to 50% away, in steps of a hundredth of a percent
+            long away = PRICE / 100 + (c * 500L + i) % 4900 * (PRICE / 10000);
+            List<String> symbol = Collections.singletonList(names[(c * 500 + i) % symbols]);
+            alertEngine.add(channels[c], symbol, PRICE + away, PRICE - away, QuoteStore.NO_PRICE);
+         }
+      }
+      churn = new LocalChannel();
+   }
+
+   @Benchmark
+   public long check() {
+      int i = next++;
+      // within half a percent either way
+      long price = PRICE + (i % 101 - 50) * (PRICE / 10000);
+      alertEngine.check(names[i % symbols], price, 1445367221000L + i);
+      return alertEngine.getCount();
+   }
+
+   @Benchmark
+   public long addAndRemove() {
+      int i = next++;
+      List<String> symbol = Collections.singletonList(names[i % symbols]);
+      alertEngine.add(churn, symbol, PRICE + PRICE / 100 + i % 4900 * (PRICE / 10000), QuoteStore.NO_PRICE, QuoteStore.NO_PRICE);
+      alertEngine.remove(churn, symbol);
+      return alertEngine.getCount();
+   }
+}
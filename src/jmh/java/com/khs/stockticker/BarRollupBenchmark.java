@@ -0,0 +1,59 @@
+package com.khs.stockticker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Folding a tick into a symbol's bars, and answering a query for its latest bars, which is what
+ * GET /api/bars and the bars command do. The symbol starts with a full ring at every interval.
+ */
+@State(Scope.Thread)
+public class BarRollupBenchmark {
+   private static final String SYMBOL = "GOOG";
+
+   @Param({"1", "100", "500"})
+   public int bars;
+
+   @Param({"1s", "1h"})
+   public String interval;
+
+   private BarRollup barRollup;
+   private int intervalIndex;
+   private long timestamp;
+   private long price = 5511800L;
+   private final StringBuilder sb = new StringBuilder(64 * 1024);
+
+   @Setup
+   public void setup() {
+      barRollup = new BarRollup();
+      intervalIndex = BarRollup.intervalOf(interval);
+
+      // a tick every 10 seconds for long enough to fill 500 hourly bars
+      timestamp = 1445367221000L;
+      for (int i = 0; i < 500 * 360; i++) {
+         tick();
+      }
+   }
+
+   @Benchmark
+   public long update() {
+      tick();
+      return barRollup.getVersion(SYMBOL);
+   }
+
+   @Benchmark
+   public int latest() {
+      sb.setLength(0);
+      barRollup.appendJson(sb, SYMBOL, intervalIndex, bars);
+      return sb.length();
+   }
+
+   private void tick() {
+      timestamp += 10000L;
+      price += (timestamp / 10000L & 1) == 0 ? 100L : -99L;
+      barRollup.update(SYMBOL, price, QuoteStore.NO_PRICE, timestamp);
+   }
+}
@@ -0,0 +1,103 @@
+package com.khs.stockticker;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One broadcast tick to N connections, through the same schedulePush path the engine uses.
+ *
+ * There are {@link #SYMBOLS} symbols and every one of them moves each tick. Each channel watches
+ * {@link #SYMBOLS_PER_CHANNEL} of them, picked from one of {@link #WATCHLISTS} watch lists, so
+ * channels on the same list share an encoded frame the way real clients with the same portfolio do.
+ */
+@State(Scope.Thread)
+public class FanOutBenchmark {
+   private static final int SYMBOLS             = 50;
+   private static final int SYMBOLS_PER_CHANNEL = 10;
+   private static final int WATCHLISTS          = 5;
+
+   @Param({"1", "100", "1000"})
+   public int channels;
+
+   @Param({TickerSession.JSON_SUBPROTOCOL, BinaryQuoteCodec.SUBPROTOCOL})
+   public String subprotocol;
+
+   private QuoteStore quoteStore;
+   private int[] symbolIds;
+   private EmbeddedChannel[] embeddedChannels;
+   private TickerSession[] sessions;
+   private long tick;
+
+   @Setup
+   public void setup() {
+      quoteStore = new QuoteStore();
+      symbolIds = new int[SYMBOLS];
+      for (int i = 0; i < SYMBOLS; i++) {
+         symbolIds[i] = quoteStore.intern("SYM" + i);
+      }
+
+      embeddedChannels = new EmbeddedChannel[channels];
+      sessions = new TickerSession[channels];
+      for (int c = 0; c < channels; c++) {
+         embeddedChannels[c] = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+         embeddedChannels[c].attr(TickerSession.SUBPROTOCOL).set(subprotocol);
+         sessions[c] = new TickerSession(embeddedChannels[c]);
+
+         int first = (c % WATCHLISTS) * SYMBOLS_PER_CHANNEL;
+         for (int i = first; i < first + SYMBOLS_PER_CHANNEL; i++) {
+            sessions[c].add(quoteStore.symbol(symbolIds[i]), symbolIds[i]);
+         }
+
+         // binary clients only get deltas for symbols a snapshot has named
+         sessions[c].snapshot(quoteStore);
+      }
+      for (EmbeddedChannel channel : embeddedChannels) {
+         drain(channel);
+      }
+   }
+
+   @TearDown
+   public void tearDown() {
+      for (EmbeddedChannel channel : embeddedChannels) {
+         channel.finish();
+      }
+   }
+
+   @Benchmark
+   public int tick() {
+      tick++;
+      for (int i = 0; i < SYMBOLS; i++) {
+         quoteStore.update(symbolIds[i], 1000000L + (tick & 1) * 100L + i, QuoteStore.NO_PRICE, tick);
+      }
+
+      FrameCache frameCache = new FrameCache();
+      for (TickerSession session : sessions) {
+         session.schedulePush(quoteStore, frameCache);
+      }
+      frameCache.release();
+
+      int frames = 0;
+      for (EmbeddedChannel channel : embeddedChannels) {
+         channel.runPendingTasks();
+         frames += drain(channel);
+      }
+      return frames;
+   }
+
+   private static int drain(EmbeddedChannel channel) {
+      int frames = 0;
+      Object frame;
+      while ((frame = channel.readOutbound()) != null) {
+         ReferenceCountUtil.release(frame);
+         frames++;
+      }
+      return frames;
+   }
+}
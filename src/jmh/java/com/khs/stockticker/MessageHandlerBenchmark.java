@@ -0,0 +1,98 @@
+package com.khs.stockticker;
+
+import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Cost of handling one command frame: the bare parse of a {@link TickerRequest}, by Gson from text
+ * and by {@link TickerRequestParser} from the frame's bytes, and a full add/remove round trip through
+ * {@link StockTickerMessageHandler}, ack included, both ways. Run with -prof gc for the allocation.
+ */
+@State(Scope.Thread)
+// the engine polls a closed port while a symbol is subscribed; keep its failures out of the output
+@Fork(jvmArgsAppend = "-Dorg.slf4j.simpleLogger.log.com.khs.stockticker.QuoteClient=error")
+public class MessageHandlerBenchmark {
+   private static final String ADD    = "{\"command\":\"add\",\"tickerSymbol\":\"AAPL\"}";
+   private static final String REMOVE = "{\"command\":\"remove\",\"tickerSymbol\":\"AAPL\"}";
+
+   private final Gson gson = new Gson();
+   private final TickerRequest request = new TickerRequest();
+
+   private ByteBuf add;
+   private ByteBuf remove;
+   private TickerRequestParser parser;
+
+   private EventLoopGroup group;
+   private QuoteEngine quoteEngine;
+   private StockTickerMessageHandler handler;
+   private EmbeddedChannel channel;
+   private ChannelHandlerContext ctx;
+
+   @Setup
+   public void setup() throws SSLException {
+      group = new NioEventLoopGroup(1);
+      quoteEngine = new QuoteEngine(new QuoteClient(group, "http://127.0.0.1:9/yql"));
+      handler = new StockTickerMessageHandler(quoteEngine);
+      channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+      ctx = channel.pipeline().firstContext();
+
+      add = Unpooled.directBuffer().writeBytes(ADD.getBytes(CharsetUtil.UTF_8));
+      remove = Unpooled.directBuffer().writeBytes(REMOVE.getBytes(CharsetUtil.UTF_8));
+      parser = new TickerRequestParser(quoteEngine.getQuoteStore().getSymbols());
+
+      // the symbol has been seen before, as it would have been on a busy server
+      quoteEngine.getQuoteStore().intern("AAPL");
+   }
+
+   @TearDown
+   public void tearDown() {
+      channel.finish();
+      add.release();
+      remove.release();
+      quoteEngine.stop();
+      group.shutdownGracefully();
+   }
+
+   @Benchmark
+   public TickerRequest parseRequest() {
+      return gson.fromJson(ADD, TickerRequest.class);
+   }
+
+   @Benchmark
+   public TickerRequest parseRequestBytes() {
+      parser.parse(add, request);
+      return request;
+   }
+
+   @Benchmark
+   public void addAndRemove(Blackhole bh) {
+      bh.consume(handler.handleMessage(ctx, ADD));
+      bh.consume(handler.handleMessage(ctx, REMOVE));
+
+      // runs the queued snapshot, which has nothing to send since nothing was ever fetched
+      channel.runPendingTasks();
+   }
+
+   @Benchmark
+   public void addAndRemoveBytes(Blackhole bh) {
+      bh.consume(handler.handleMessage(ctx, add));
+      bh.consume(handler.handleMessage(ctx, remove));
+      channel.runPendingTasks();
+   }
+}
@@ -0,0 +1,81 @@
+package com.khs.stockticker;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parsing one upstream response. dom is the old getPricesForSymbols path, a String plus a
+ * minimal-json tree; streaming is {@link QuoteResponseParser} writing into a {@link QuoteStore}.
+ * Run with -prof gc to see the allocation difference.
+ */
+@State(Scope.Thread)
+public class QuoteParserBenchmark {
+   // YQL-shaped responses, all fields present; the single quote comes back as a bare object
+   @Param({"yql-quotes-1.json", "yql-quotes-100.json"})
+   public String payload;
+
+   private ByteBuf content;
+   private QuoteStore quoteStore;
+
+   @Setup
+   public void setup() throws IOException {
+      try (InputStream is = QuoteParserBenchmark.class.getResourceAsStream("/" + payload)) {
+         if (is == null) {
+            throw new IllegalStateException("Missing payload " + payload);
+         }
+         byte[] bytes = ByteStreams.toByteArray(is);
+         content = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+      }
+
+      // the store only takes quotes for symbols somebody subscribed to
+      quoteStore = new QuoteStore();
+      for (String symbol : dom().keySet()) {
+         quoteStore.intern(symbol);
+      }
+   }
+
+   @TearDown
+   public void tearDown() {
+      content.release();
+   }
+
+   @Benchmark
+   public Map<String, String> dom() {
+      Map<String, String> prices = new HashMap<>();
+      JsonObject jsonObject = JsonObject.readFrom(content.toString(CharsetUtil.UTF_8));
+      jsonObject = jsonObject.get("query").asObject();
+      jsonObject = jsonObject.get("results").asObject();
+      if (jsonObject.get("quote").isArray()) {
+         JsonArray jsonArray = jsonObject.get("quote").asArray();
+         for (JsonValue quote : jsonArray) {
+            jsonObject = quote.asObject();
+            prices.put(jsonObject.get("Symbol").asString(), jsonObject.get("LastTradePriceOnly").asString());
+         }
+      } else {
+         jsonObject = jsonObject.get("quote").asObject();
+         prices.put(jsonObject.get("Symbol").asString(), jsonObject.get("LastTradePriceOnly").asString());
+      }
+      return prices;
+   }
+
+   @Benchmark
+   public int streaming() {
+      return QuoteResponseParser.parse(content, quoteStore, 0L);
+   }
+}
@@ -0,0 +1,85 @@
+package com.khs.stockticker;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Serving a static file through {@link NettyHttpFileHandler#sendFile}. Needs ./webapp, so run it
+ * from the project directory, which is what the jmh task does.
+ */
+@State(Scope.Thread)
+public class StaticFileBenchmark {
+   @Param({"/index.html", "/js/ticker.js"})
+   public String uri;
+
+   @Param({"true", "false"})
+   public boolean gzip;
+
+   private NettyHttpFileHandler fileHandler;
+   private EmbeddedChannel channel;
+   private ChannelHandlerContext ctx;
+   private FullHttpRequest request;
+   private FullHttpRequest conditionalRequest;
+
+   @Setup
+   public void setup() throws Exception {
+      fileHandler = new NettyHttpFileHandler();
+      channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+      ctx = channel.pipeline().firstContext();
+
+      request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+      if (gzip) {
+         request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate");
+      }
+
+      // what a browser sends back once it has the file
+      fileHandler.sendFile(ctx, request);
+      FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+      conditionalRequest = request.copy();
+      conditionalRequest.headers().set(HttpHeaderNames.IF_NONE_MATCH, response.headers().get(HttpHeaderNames.ETAG));
+      response.release();
+   }
+
+   @TearDown
+   public void tearDown() {
+      request.release();
+      conditionalRequest.release();
+      channel.finish();
+   }
+
+   @Benchmark
+   public int sendFile() throws Exception {
+      fileHandler.sendFile(ctx, request);
+      return drain();
+   }
+
+   @Benchmark
+   public int notModified() throws Exception {
+      fileHandler.sendFile(ctx, conditionalRequest);
+      return drain();
+   }
+
+   private int drain() {
+      int messages = 0;
+      Object msg;
+      while ((msg = channel.readOutbound()) != null) {
+         ReferenceCountUtil.release(msg);
+         messages++;
+      }
+      return messages;
+   }
+}
@@ -0,0 +1,57 @@
+package com.khs.stockticker;
+
+import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializing one pushed frame. toJsonString is what the handler used to do, a String that is
+ * then copied into the frame; encode is what {@link FrameCache} does now.
+ */
+@State(Scope.Thread)
+public class TickerResponseBenchmark {
+   @Param({"1", "50", "500"})
+   public int symbols;
+
+   private final Gson gson = new Gson();
+   private TickerResponse tickerResponse;
+
+   @Setup
+   public void setup() {
+      Map<String, String> tickerData = new HashMap<>();
+      for (int i = 0; i < symbols; i++) {
+         tickerData.put("SYM" + i, QuoteStore.formatPrice(1000000L + i * 137L));
+      }
+
+      tickerResponse = new TickerResponse();
+      tickerResponse.setResult("success");
+      tickerResponse.setFrameType(TickerResponse.DELTA);
+      tickerResponse.setTickerData(tickerData);
+   }
+
+   @Benchmark
+   public int toJsonString() {
+      ByteBuf frame = Unpooled.copiedBuffer(gson.toJson(tickerResponse), CharsetUtil.UTF_8);
+      int size = frame.readableBytes();
+      frame.release();
+      return size;
+   }
+
+   @Benchmark
+   public int encode() {
+      ByteBuf frame = FrameCache.encode(PooledByteBufAllocator.DEFAULT, tickerResponse);
+      int size = frame.readableBytes();
+      frame.release();
+      return size;
+   }
+}
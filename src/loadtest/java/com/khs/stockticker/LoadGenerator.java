@@ -0,0 +1,533 @@
+package com.khs.stockticker;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens lots of /wsticker connections, subscribes each one to a watchlist and measures how long
+ * quote ticks take to reach them, writing a JSON report that can be compared with another build's.
+ *
+ * By default it runs a SimulatedQuoteServer on --upstream-port as well; start the server with
+ * -Dquote.url=http://127.0.0.1:18081/v1/public/yql so its ticks come from there. Latency runs from
+ * the simulated upstream finishing its answer to a poll to a delta frame arriving, so it covers
+ * parsing, fan-out, encoding and the network both ways. A frame more than a poll interval late is
+ * measured from the following poll, so the tail is undercounted once the server falls that far
+ * behind; messages/sec dropping below connections / poll interval shows when that happens.
+ *
+ * Server heap and thread counts come over JMX when --jmx=host:port is given and the server was
+ * started with -Dcom.sun.management.jmxremote.port=... (plus authenticate=false and ssl=false on
+ * a box you trust).
+ *
+ * Past roughly 28,000 connections one client address runs out of ephemeral ports, so give --url
+ * several comma-separated server addresses (e.g. 127.0.0.1, 127.0.0.2, ...) to go higher.
+ * Options are --name=value; --help lists them with their defaults.
+ */
+public class LoadGenerator {
+   private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+   private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+   static {
+      DEFAULTS.put("url", "ws://127.0.0.1:8080/wsticker");
+      DEFAULTS.put("connections", "1000");
+      DEFAULTS.put("rate", "200");
+      DEFAULTS.put("duration", "120");
+      DEFAULTS.put("interval", "5");
+      DEFAULTS.put("symbols", "500");
+      DEFAULTS.put("mix", "70:10,25:50,5:300");
+      DEFAULTS.put("subprotocol", TickerSession.JSON_SUBPROTOCOL);
+      DEFAULTS.put("churn", "0");
+      DEFAULTS.put("upstream-port", Integer.toString(SimulatedQuoteServer.DEFAULT_PORT));
+      DEFAULTS.put("move", "1.0");
+      DEFAULTS.put("jmx", "");
+      DEFAULTS.put("report-dir", "build/loadtest");
+      DEFAULTS.put("compare", "");
+   }
+
+   private static final String HELP =
+         "  url            server websocket URL(s), comma separated to spread connections over them\n" +
+         "  connections    connections to open\n" +
+         "  rate           new connections per second while ramping up\n" +
+         "  duration       seconds to run, ramp-up included\n" +
+         "  interval       seconds between report lines\n" +
+         "  symbols        distinct symbols the watchlists are drawn from\n" +
+         "  mix            percent:symbols pairs, e.g. 70:10,25:50,5:300 is 70% of clients watching\n" +
+         "                 10 symbols, 25% watching 50 and 5% watching 300\n" +
+         "  subprotocol    stockticker.json or stockticker.bin.v1\n" +
+         "  churn          connections per second to close and replace once ramped up\n" +
+         "  upstream-port  port for the simulated quote service, 0 to not run one (no latency then)\n" +
+         "  move           chance a symbol's price moves on each upstream poll\n" +
+         "  jmx            host:port of the server's JMX agent, for its heap and thread count\n" +
+         "  report-dir     where the JSON report goes\n" +
+         "  compare        an earlier report to print this run's summary against\n";
+
+   // set on connections closed on purpose for churn, so they don't count as disconnects
+   private static final AttributeKey<Boolean> CHURNED = AttributeKey.valueOf("loadtest.churned");
+
+   // only deltas are ticks; snapshots answer a command
+   private static final String DELTA_MARK = "\"frameType\":\"" + TickerResponse.DELTA + "\"";
+
+   private final Map<String, String> options;
+   private final List<URI> uris = new ArrayList<>();
+   private final int[] mixPercents;
+   private final int[] mixSizes;
+   private final int symbols;
+   private final String subprotocol;
+
+   private final StockTickerConfig config = new StockTickerConfig();
+   private final EventLoopGroup group = config.newEventLoopGroup(0);
+   private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+   private final Gson gson = new Gson();
+
+   private SimulatedQuoteServer upstream;
+   private ServerWatcher serverWatcher;
+
+   private final AtomicInteger connections = new AtomicInteger();
+   private final AtomicLong connectFailures = new AtomicLong();
+   private final AtomicLong disconnects = new AtomicLong();
+   private final AtomicLong churned = new AtomicLong();
+   private final LongAdder messages = new LongAdder();
+   private final LatencyHistogram latency = new LatencyHistogram();
+   private volatile boolean stopping;
+
+   // ramp-up and churn state, only touched from the one task that does both
+   private int attempted;
+   private double owed;
+
+   public LoadGenerator(Map<String, String> options) {
+      this.options = options;
+      for (String url : options.get("url").split(",")) {
+         uris.add(URI.create(url.trim()));
+      }
+      this.symbols = Integer.parseInt(options.get("symbols"));
+      this.subprotocol = options.get("subprotocol");
+
+      String[] mix = options.get("mix").split(",");
+      mixPercents = new int[mix.length];
+      mixSizes = new int[mix.length];
+      for (int i = 0; i < mix.length; i++) {
+         String[] pair = mix[i].trim().split(":");
+         mixPercents[i] = Integer.parseInt(pair[0]);
+         mixSizes[i] = Math.min(symbols, Integer.parseInt(pair[1]));
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+      for (String arg : args) {
+         if ("--help".equals(arg) || !arg.startsWith("--") || !arg.contains("=")) {
+            System.out.println("LoadGenerator [--option=value ...]; options and defaults:");
+            System.out.print(HELP);
+            System.out.println("defaults: " + DEFAULTS);
+            return;
+         }
+         String name = arg.substring(2, arg.indexOf('='));
+         if (!DEFAULTS.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown option " + arg + ", try --help");
+         }
+         options.put(name, arg.substring(arg.indexOf('=') + 1));
+      }
+
+      new LoadGenerator(options).run();
+   }
+
+   public void run() throws Exception {
+      LoadReport report = new LoadReport();
+      report.startedAt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
+      report.options.putAll(options);
+
+      LatencyHistogram total = new LatencyHistogram();
+      long start = System.nanoTime();
+      try {
+         int upstreamPort = Integer.parseInt(options.get("upstream-port"));
+         if (upstreamPort > 0) {
+            upstream = new SimulatedQuoteServer(upstreamPort, Double.parseDouble(options.get("move")));
+            upstream.start();
+         }
+         if (!options.get("jmx").isEmpty()) {
+            serverWatcher = new ServerWatcher(options.get("jmx"));
+         }
+
+         final int target = Integer.parseInt(options.get("connections"));
+         final double rate = Double.parseDouble(options.get("rate"));
+         final double churn = Double.parseDouble(options.get("churn"));
+         group.next().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+               rampAndChurn(target, rate, churn);
+            }
+         }, 0, 10, TimeUnit.MILLISECONDS);
+
+         long intervalMillis = (long) (Double.parseDouble(options.get("interval")) * 1000);
+         long durationMillis = (long) (Double.parseDouble(options.get("duration")) * 1000);
+         long last = start;
+         long lastMessages = 0;
+
+         System.out.println(String.format("%7s %7s %9s %8s %8s %8s %8s %8s %8s %7s",
+               "secs", "conns", "msgs/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "heap MB", "threads"));
+         while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < durationMillis) {
+            Thread.sleep(intervalMillis);
+
+            long now = System.nanoTime();
+            long sent = messages.sum();
+            LatencyHistogram interval = latency.getIntervalHistogram();
+            total.add(interval);
+
+            LoadReport.Interval row = new LoadReport.Interval();
+            row.seconds = (now - start) / 1e9;
+            row.connections = connections.get();
+            row.messagesPerSecond = (sent - lastMessages) / ((now - last) / 1e9);
+            row.latencyCount = interval.getCount();
+            row.p50 = millis(interval.getValueAtPercentile(50));
+            row.p90 = millis(interval.getValueAtPercentile(90));
+            row.p99 = millis(interval.getValueAtPercentile(99));
+            row.p999 = millis(interval.getValueAtPercentile(99.9));
+            row.max = millis(interval.getMax());
+            if (serverWatcher != null) {
+               serverWatcher.sample(row);
+            }
+            report.intervals.add(row);
+            print(row);
+
+            last = now;
+            lastMessages = sent;
+         }
+      } finally {
+         stopping = true;
+         channels.close().awaitUninterruptibly();
+         group.shutdownGracefully();
+         if (upstream != null) {
+            upstream.stop();
+         }
+         if (serverWatcher != null) {
+            serverWatcher.close();
+         }
+      }
+
+      summarize(report, total, (System.nanoTime() - start) / 1e9);
+      writeReport(report);
+   }
+
+   /**
+    * Opens connections at the ramp-up rate until there are enough, then closes and replaces the
+    * oldest ones at the churn rate. Runs every 10ms, owing fractions of a connection between runs.
+    */
+   private void rampAndChurn(int target, double rate, double churn) {
+      if (stopping) {
+         return;
+      }
+
+      if (attempted < target) {
+         owed += rate / 100;
+         while (owed >= 1 && attempted < target) {
+            owed--;
+            attempted++;
+            connect();
+         }
+         if (attempted == target) {
+            owed = 0;
+         }
+         return;
+      }
+
+      if (churn > 0) {
+         owed += churn / 100;
+         Iterator<Channel> it = channels.iterator();
+         while (owed >= 1 && it.hasNext()) {
+            owed--;
+            // out of the group now, or the next run could pick it again before the close lands
+            Channel channel = it.next();
+            channels.remove(channel);
+            channel.attr(CHURNED).set(Boolean.TRUE);
+            channel.close();
+            churned.incrementAndGet();
+            connect();
+         }
+      }
+   }
+
+   private void connect() {
+      URI uri = uris.get(attempted % uris.size());
+      final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(
+            uri, WebSocketVersion.V13, subprotocol, false, new DefaultHttpHeaders(), 65536);
+
+      Bootstrap b = new Bootstrap();
+      b.group(group)
+       .channel(config.getSocketChannelClass())
+       .option(ChannelOption.TCP_NODELAY, true)
+       .option(ChannelOption.ALLOCATOR, config.getAllocator())
+       .handler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          public void initChannel(SocketChannel ch) {
+             ch.pipeline().addLast("codec", new HttpClientCodec());
+             ch.pipeline().addLast("aggregator", new HttpObjectAggregator(8192));
+             ch.pipeline().addLast("websocket", new WebSocketClientProtocolHandler(handshaker));
+             ch.pipeline().addLast("client", new LoadClientHandler());
+          }
+       });
+
+      int port = uri.getPort() == -1 ? 80 : uri.getPort();
+      b.connect(uri.getHost(), port).addListener(new ChannelFutureListener() {
+         @Override
+         public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+               connectFailures.incrementAndGet();
+               logger.debug("Connect failed", future.cause());
+            }
+         }
+      });
+   }
+
+   /**
+    * A watchlist of the size the mix says, favouring low-numbered symbols so popular ones show up
+    * in many watchlists, the way real portfolios overlap.
+    */
+   private List<String> pickWatchlist() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int roll = random.nextInt(100);
+      int size = mixSizes[mixSizes.length - 1];
+      for (int i = 0, cumulative = 0; i < mixPercents.length; i++) {
+         cumulative += mixPercents[i];
+         if (roll < cumulative) {
+            size = mixSizes[i];
+            break;
+         }
+      }
+
+      Set<String> watchlist = new LinkedHashSet<>();
+      while (watchlist.size() < size) {
+         double u = random.nextDouble();
+         watchlist.add("SYM" + (int) (symbols * u * u));
+      }
+      return new ArrayList<>(watchlist);
+   }
+
+   private void summarize(LoadReport report, LatencyHistogram total, double seconds) {
+      LoadReport.Summary summary = report.summary;
+      summary.seconds = seconds;
+      summary.connectFailures = connectFailures.get();
+      summary.disconnects = disconnects.get();
+      summary.churned = churned.get();
+      summary.messages = messages.sum();
+      summary.messagesPerSecond = summary.messages / seconds;
+      summary.p50 = millis(total.getValueAtPercentile(50));
+      summary.p90 = millis(total.getValueAtPercentile(90));
+      summary.p99 = millis(total.getValueAtPercentile(99));
+      summary.p999 = millis(total.getValueAtPercentile(99.9));
+      summary.max = millis(total.getMax());
+      for (LoadReport.Interval row : report.intervals) {
+         summary.peakConnections = Math.max(summary.peakConnections, row.connections);
+         summary.maxServerHeapMb = Math.max(summary.maxServerHeapMb, row.serverHeapMb);
+         summary.maxServerThreads = Math.max(summary.maxServerThreads, row.serverThreads);
+      }
+   }
+
+   private void writeReport(LoadReport report) throws IOException {
+      Gson pretty = new GsonBuilder().setPrettyPrinting().create();
+      File dir = new File(options.get("report-dir"));
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      File file = new File(dir, "loadtest-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+      try (Writer writer = new FileWriter(file)) {
+         pretty.toJson(report, writer);
+      }
+
+      LoadReport before = null;
+      if (!options.get("compare").isEmpty()) {
+         try (Reader reader = new FileReader(options.get("compare"))) {
+            before = pretty.fromJson(reader, LoadReport.class);
+         }
+      }
+
+      LoadReport.Summary s = report.summary;
+      System.out.println();
+      System.out.println("Report written to " + file);
+      System.out.println(String.format("%-22s %12s %12s %8s", "", before == null ? "" : "compared to", "this run", ""));
+      compare("peak connections", before == null ? null : (double) before.summary.peakConnections, s.peakConnections);
+      compare("connect failures", before == null ? null : (double) before.summary.connectFailures, s.connectFailures);
+      compare("disconnects", before == null ? null : (double) before.summary.disconnects, s.disconnects);
+      compare("messages/sec", before == null ? null : before.summary.messagesPerSecond, s.messagesPerSecond);
+      compare("p50 ms", before == null ? null : before.summary.p50, s.p50);
+      compare("p90 ms", before == null ? null : before.summary.p90, s.p90);
+      compare("p99 ms", before == null ? null : before.summary.p99, s.p99);
+      compare("p99.9 ms", before == null ? null : before.summary.p999, s.p999);
+      compare("max ms", before == null ? null : before.summary.max, s.max);
+      compare("max server heap MB", before == null ? null : before.summary.maxServerHeapMb, s.maxServerHeapMb);
+      compare("max server threads", before == null ? null : (double) before.summary.maxServerThreads, s.maxServerThreads);
+   }
+
+   private static void compare(String name, Double before, double after) {
+      if (before == null) {
+         System.out.println(String.format("%-22s %12s %12.1f", name, "", after));
+      } else {
+         String change = before == 0 ? "" : String.format("%+7.1f%%", (after - before) * 100 / before);
+         System.out.println(String.format("%-22s %12.1f %12.1f %8s", name, before, after, change));
+      }
+   }
+
+   private static void print(LoadReport.Interval row) {
+      System.out.println(String.format("%7.0f %7d %9.0f %8.1f %8.1f %8.1f %8.1f %8.1f %8.0f %7d",
+            row.seconds, row.connections, row.messagesPerSecond, row.p50, row.p90, row.p99, row.p999, row.max,
+            row.serverHeapMb, row.serverThreads));
+   }
+
+   private static double millis(long micros) {
+      return micros / 1000.0;
+   }
+
+   /**
+    * Counts quote frames and times the deltas against the last upstream answer.
+    */
+   private class LoadClientHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+      private boolean connected;
+
+      @Override
+      public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+         if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            connected = true;
+            connections.incrementAndGet();
+            channels.add(ctx.channel());
+
+            TickerRequest request = new TickerRequest();
+            request.setCommand("add");
+            request.setTickerSymbols(pickWatchlist());
+            ctx.writeAndFlush(new TextWebSocketFrame(gson.toJson(request)));
+         }
+         super.userEventTriggered(ctx, evt);
+      }
+
+      @Override
+      protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+         boolean delta;
+         if (frame instanceof BinaryWebSocketFrame) {
+            ByteBuf content = frame.content();
+            delta = content.getByte(content.readerIndex()) == BinaryQuoteCodec.DELTA;
+            messages.increment();
+         } else if (frame instanceof TextWebSocketFrame) {
+            String text = ((TextWebSocketFrame) frame).text();
+            if (!text.contains("\"frameType\"")) {
+               // a command ack
+               return;
+            }
+            delta = text.contains(DELTA_MARK);
+            messages.increment();
+         } else {
+            return;
+         }
+
+         if (delta && upstream != null) {
+            long tick = upstream.getLastResponseNanos();
+            if (tick != 0) {
+               latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - tick));
+            }
+         }
+      }
+
+      @Override
+      public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+         if (connected) {
+            connections.decrementAndGet();
+            if (!stopping && ctx.channel().attr(CHURNED).get() == null) {
+               disconnects.incrementAndGet();
+            }
+         }
+         super.channelInactive(ctx);
+      }
+
+      @Override
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+         logger.debug("Load client error", cause);
+         ctx.close();
+      }
+   }
+
+   /**
+    * Samples the server JVM's heap and thread count over JMX.
+    */
+   private static class ServerWatcher {
+      private final JMXConnector connector;
+      private final MemoryMXBean memory;
+      private final ThreadMXBean threads;
+
+      ServerWatcher(String hostPort) throws IOException {
+         JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostPort + "/jmxrmi");
+         connector = JMXConnectorFactory.connect(url);
+         MBeanServerConnection connection = connector.getMBeanServerConnection();
+         memory = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+         threads = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME, ThreadMXBean.class);
+      }
+
+      void sample(LoadReport.Interval row) {
+         try {
+            row.serverHeapMb = memory.getHeapMemoryUsage().getUsed() / (1024.0 * 1024.0);
+            row.serverThreads = threads.getThreadCount();
+         } catch (RuntimeException e) {
+            logger.warn("Cannot read server stats over JMX: {}", e.toString());
+         }
+      }
+
+      void close() {
+         try {
+            connector.close();
+         } catch (IOException e) {
+            logger.debug("Closing JMX connection", e);
+         }
+      }
+   }
+}
@@ -0,0 +1,49 @@
+package com.khs.stockticker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a LoadGenerator run writes out as JSON: the options it ran with, one row per reporting
+ * interval and a summary of the whole run. Latencies are milliseconds, heap is megabytes; -1 means
+ * the server's JVM wasn't being watched.
+ */
+public class LoadReport {
+   String startedAt;
+   Map<String, String> options = new LinkedHashMap<>();
+   List<Interval> intervals = new ArrayList<>();
+   Summary summary = new Summary();
+
+   public static class Interval {
+      double seconds;
+      int connections;
+      double messagesPerSecond;
+      long latencyCount;
+      double p50;
+      double p90;
+      double p99;
+      double p999;
+      double max;
+      double serverHeapMb = -1;
+      int serverThreads = -1;
+   }
+
+   public static class Summary {
+      double seconds;
+      int peakConnections;
+      long connectFailures;
+      long disconnects;
+      long churned;
+      long messages;
+      double messagesPerSecond;
+      double p50;
+      double p90;
+      double p99;
+      double p999;
+      double max;
+      double maxServerHeapMb = -1;
+      int maxServerThreads = -1;
+   }
+}
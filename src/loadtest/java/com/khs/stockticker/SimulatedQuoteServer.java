@@ -0,0 +1,233 @@
+package com.khs.stockticker;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for the Yahoo YQL quote service so the server can be loaded without hammering Yahoo.
+ * Answers the same yahoo.finance.quotes query QuoteClient sends with the same JSON shape, every
+ * symbol priced on its own random walk. Point the server at it with
+ * -Dquote.url=http://host:port/v1/public/yql.
+ *
+ * It also notes when it last finished sending a response. The server pushes a tick to clients once
+ * every request of a poll has been answered, so in the same JVM that time is when the tick started,
+ * which is what LoadGenerator measures latency from.
+ */
+public class SimulatedQuoteServer {
+   private static final Logger logger = LoggerFactory.getLogger(SimulatedQuoteServer.class);
+
+   public static final int DEFAULT_PORT = 18081;
+   public static final String PATH = "/v1/public/yql";
+
+   // symbols come quoted in the YQL "where symbol in (...)" clause
+   private static final Pattern SYMBOL = Pattern.compile("\"([^\"]+)\"");
+
+   private final int port;
+   private final double moveProbability;
+
+   // fixed point, like QuoteStore
+   private final ConcurrentMap<String, AtomicLong> prices = new ConcurrentHashMap<>();
+
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong quotes = new AtomicLong();
+   private volatile long lastResponseNanos;
+
+   private EventLoopGroup group;
+   private Channel serverChannel;
+
+   /**
+    * @param moveProbability chance that a symbol's price moves between one request and the next
+    */
+   public SimulatedQuoteServer(int port, double moveProbability) {
+      this.port = port;
+      this.moveProbability = moveProbability;
+   }
+
+   public void start() throws InterruptedException {
+      group = new NioEventLoopGroup(1);
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(group)
+       .channel(NioServerSocketChannel.class)
+       .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          public void initChannel(SocketChannel ch) {
+             ch.pipeline().addLast("codec", new HttpServerCodec());
+             ch.pipeline().addLast("aggregator", new HttpObjectAggregator(65536));
+             ch.pipeline().addLast("handler", new QuoteHandler());
+          }
+       });
+      try {
+         serverChannel = b.bind(port).sync().channel();
+      } catch (InterruptedException | RuntimeException e) {
+         group.shutdownGracefully();
+         throw e;
+      }
+      logger.info("Simulated quote service listening on http://127.0.0.1:{}{}", port, PATH);
+   }
+
+   public void stop() {
+      if (serverChannel != null) {
+         serverChannel.close();
+      }
+      if (group != null) {
+         group.shutdownGracefully();
+      }
+   }
+
+   /**
+    * System.nanoTime() when the last response finished going out, or 0 if none has yet.
+    */
+   public long getLastResponseNanos() {
+      return lastResponseNanos;
+   }
+
+   public long getRequests() {
+      return requests.get();
+   }
+
+   public long getQuotes() {
+      return quotes.get();
+   }
+
+   private String quoteJson(List<String> symbols) {
+      StringBuilder sb = new StringBuilder(64 + symbols.size() * 80);
+      sb.append("{\"query\":{\"count\":").append(symbols.size())
+        .append(",\"lang\":\"en-US\",\"results\":{\"quote\":");
+      // YQL sends a lone quote as an object rather than a one-element array
+      if (symbols.size() != 1) {
+         sb.append('[');
+      }
+      for (int i = 0; i < symbols.size(); i++) {
+         if (i > 0) {
+            sb.append(',');
+         }
+         String symbol = symbols.get(i);
+         long[] quote = nextPrice(symbol);
+         sb.append("{\"symbol\":\"").append(symbol)
+           .append("\",\"Symbol\":\"").append(symbol)
+           .append("\",\"LastTradePriceOnly\":\"");
+         QuoteStore.appendPrice(sb, quote[0]);
+         sb.append("\",\"Change\":\"").append(quote[1] < 0 ? "" : "+");
+         QuoteStore.appendPrice(sb, quote[1]);
+         sb.append("\",\"Currency\":\"USD\",\"StockExchange\":\"NMS\"}");
+      }
+      if (symbols.size() != 1) {
+         sb.append(']');
+      }
+      return sb.append("}}}").toString();
+   }
+
+   /**
+    * Price and change for the symbol, moving it by up to half a percent first, most of the time.
+    * Prices stay on whole cents, as real quotes do.
+    */
+   private long[] nextPrice(String symbol) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      AtomicLong price = prices.get(symbol);
+      if (price == null) {
+         AtomicLong created = new AtomicLong((10 + random.nextInt(990)) * QuoteStore.SCALE);
+         price = prices.putIfAbsent(symbol, created);
+         if (price == null) {
+            price = created;
+         }
+      }
+
+      long before = price.get();
+      long after = before;
+      if (random.nextDouble() < moveProbability) {
+         long cents = Math.max(1, before / 20000);
+         after = Math.max(QuoteStore.SCALE / 100, before + (random.nextLong(2 * cents + 1) - cents) * (QuoteStore.SCALE / 100));
+         price.compareAndSet(before, after);
+      }
+      return new long[] { after, after - before };
+   }
+
+   private class QuoteHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+      @Override
+      protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+         QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+         List<String> symbols = new ArrayList<>();
+         List<String> q = decoder.parameters().get("q");
+         if (q != null && !q.isEmpty()) {
+            Matcher m = SYMBOL.matcher(q.get(0));
+            while (m.find()) {
+               symbols.add(m.group(1));
+            }
+         }
+
+         requests.incrementAndGet();
+         quotes.addAndGet(symbols.size());
+
+         ByteBuf content = ctx.alloc().buffer();
+         content.writeCharSequence(quoteJson(symbols), CharsetUtil.UTF_8);
+         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json;charset=utf-8");
+         HttpUtil.setContentLength(response, content.readableBytes());
+
+         boolean keepAlive = HttpUtil.isKeepAlive(req);
+         if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+         }
+         ChannelFuture f = ctx.writeAndFlush(response);
+         f.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+               lastResponseNanos = System.nanoTime();
+            }
+         });
+         if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+         }
+      }
+
+      @Override
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+         logger.warn("Simulated quote service error", cause);
+         ctx.close();
+      }
+   }
+
+   /**
+    * Runs it on its own: SimulatedQuoteServer [port] [moveProbability]
+    */
+   public static void main(String[] args) throws Exception {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+      double move = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+      SimulatedQuoteServer server = new SimulatedQuoteServer(port, move);
+      server.start();
+      server.serverChannel.closeFuture().sync();
+   }
+}
@@ -0,0 +1,550 @@
+package com.khs.stockticker;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Price alerts set by clients, so they don't have to watch the quotes themselves: above a price,
+ * below a price, or a move of some percent either way from the price when the alert was set.
+ *
+ * Each symbol keeps its alerts in two sorted threshold indexes, one per direction, ordered so that
+ * the alerts a price triggers are always at the tail. A quote finds them with a binary search and
+ * takes them off the end, O(log n + k) no matter how many alerts are waiting. The indexes are
+ * blocks of parallel arrays that grow as needed, so an insert or a removal shifts at most one block,
+ * and an alert costs around a hundred bytes all told.
+ *
+ * An alert fires once and is gone. One whose condition already holds fires as soon as it is set. A
+ * move alert set before its symbol has a price measures from the first price it gets. A symbol with
+ * alerts is fetched as if it were subscribed, and a connection's alerts go when it does.
+ */
+public class AlertEngine {
+   public static final int DEFAULT_MAX_PER_CONNECTION = 1000;
+
+   private static final int ABOVE = 0;
+   private static final int BELOW = 1;
+   private static final int MOVE  = 2;
+   private static final String[] CONDITION_NAMES = { "above", "below", "move" };
+
+   // entries per index block; blocks start small and grow to this before they split
+   private static final int BLOCK_SIZE = 256;
+   private static final int INITIAL_BLOCK_SIZE = 4;
+
+   /**
+    * What the engine needs from the rest of the server.
+    */
+   public interface Listener {
+      /**
+       * The symbol has its first alert; it needs quotes from now on. Called with the symbol's alerts
+       * locked, so watch and unwatch arrive in order.
+       */
+      void watch(String symbol);
+
+      /**
+       * The symbol's last alert has gone.
+       */
+      void unwatch(String symbol);
+
+      /**
+       * An alert fired; frame is the JSON to send to the channel that set it.
+       */
+      void triggered(Channel channel, String frame);
+   }
+
+   private final QuoteStore store;
+   private final int maxPerConnection;
+   private final Listener listener;
+
+   // never removed, an empty one is small and symbols are never forgotten anyway
+   private final ConcurrentMap<String, SymbolAlerts> symbols = new ConcurrentHashMap<>();
+
+   private final ConcurrentMap<Channel, ChannelAlerts> channels = new ConcurrentHashMap<>();
+
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong triggered = new AtomicLong();
+
+   /**
+    * @param maxPerConnection the most alerts a connection may have waiting at once
+    */
+   public AlertEngine(QuoteStore store, int maxPerConnection, Listener listener) {
+      this.store = store;
+      this.maxPerConnection = maxPerConnection;
+      this.listener = listener;
+   }
+
+   /**
+    * Alerts waiting to fire, across every connection.
+    */
+   public long getCount() {
+      return count.get();
+   }
+
+   public long getTriggered() {
+      return triggered.get();
+   }
+
+   /**
+    * Sets an alert on each symbol for each of above and below (fixed-point prices) and movePercent
+    * (a fixed-point percentage, over 0 and at most 100) that isn't NO_PRICE. Alerts that hold
+    * already fire before this returns.
+    *
+    * @return false, having set none, if that would take the channel past its limit
+    */
+   public boolean add(Channel channel, Collection<String> symbolNames, long above, long below, long movePercent) {
+      int perSymbol = (above != QuoteStore.NO_PRICE ? 1 : 0) + (below != QuoteStore.NO_PRICE ? 1 : 0)
+            + (movePercent != QuoteStore.NO_PRICE ? 1 : 0);
+      int wanted = perSymbol * symbolNames.size();
+      ChannelAlerts owner = channels.computeIfAbsent(channel, key -> new ChannelAlerts());
+      if (owner.count.addAndGet(wanted) > maxPerConnection) {
+         owner.count.addAndGet(-wanted);
+         return false;
+      }
+
+      long[] quote = new long[3];
+      for (String symbol : symbolNames) {
+         owner.symbols.add(symbol);
+         int id = store.intern(symbol);
+         long price = id >= 0 && store.read(id, quote) ? quote[0] : QuoteStore.NO_PRICE;
+
+         SymbolAlerts alerts = symbols.computeIfAbsent(symbol, SymbolAlerts::new);
+         if (above != QuoteStore.NO_PRICE) {
+            alerts.add(new Alert(channel, ABOVE, above), price);
+         }
+         if (below != QuoteStore.NO_PRICE) {
+            alerts.add(new Alert(channel, BELOW, below), price);
+         }
+         if (movePercent != QuoteStore.NO_PRICE) {
+            alerts.add(new Alert(channel, MOVE, movePercent), price);
+         }
+         if (price != QuoteStore.NO_PRICE) {
+            check(symbol, price, quote[2]);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Drops the channel's alerts on the symbols.
+    */
+   public void remove(Channel channel, Collection<String> symbolNames) {
+      ChannelAlerts owner = channels.get(channel);
+      if (owner == null) {
+         return;
+      }
+      for (String symbol : symbolNames) {
+         SymbolAlerts alerts = symbols.get(symbol);
+         if (alerts != null) {
+            owner.count.addAndGet(-alerts.remove(channel));
+         }
+      }
+   }
+
+   /**
+    * Drops every alert the channel has; called when it closes.
+    */
+   public void removeAll(Channel channel) {
+      ChannelAlerts owner = channels.remove(channel);
+      if (owner == null) {
+         return;
+      }
+      for (String symbol : owner.symbols) {
+         SymbolAlerts alerts = symbols.get(symbol);
+         if (alerts != null) {
+            alerts.remove(channel);
+         }
+      }
+   }
+
+   /**
+    * Fires every alert on the symbol the price triggers. Called with each quote.
+    */
+   public void check(String symbol, long price, long timestamp) {
+      SymbolAlerts alerts = symbols.get(symbol);
+      if (alerts == null || price == QuoteStore.NO_PRICE) {
+         return;
+      }
+
+      List<Alert> fired = alerts.check(price);
+      if (fired == null) {
+         return;
+      }
+      for (Alert alert : fired) {
+         ChannelAlerts owner = channels.get(alert.channel);
+         if (owner != null) {
+            owner.count.decrementAndGet();
+         }
+         triggered.incrementAndGet();
+         listener.triggered(alert.channel, frame(symbol, alert, price, timestamp));
+      }
+   }
+
+   /**
+    * {"result":"success","frameType":"alert","tickerSymbol":"AAPL","condition":"above",
+    * "threshold":"190.00","price":"190.12","time":1445367221000}, with "reference", the price it
+    * was measured from, for a move.
+    */
+   private static String frame(String symbol, Alert alert, long price, long timestamp) {
+      StringBuilder sb = new StringBuilder(160);
+      sb.append("{\"result\":\"success\",\"frameType\":\"").append(TickerResponse.ALERT)
+        .append("\",\"tickerSymbol\":\"").append(symbol)
+        .append("\",\"condition\":\"").append(CONDITION_NAMES[alert.condition])
+        .append("\",\"threshold\":\"");
+      QuoteStore.appendPrice(sb, alert.threshold);
+      if (alert.condition == MOVE) {
+         sb.append("\",\"reference\":\"");
+         QuoteStore.appendPrice(sb, alert.reference);
+      }
+      sb.append("\",\"price\":\"");
+      QuoteStore.appendPrice(sb, price);
+      return sb.append("\",\"time\":").append(timestamp).append('}').toString();
+   }
+
+   private static final class Alert {
+      final Channel channel;
+      final int condition;
+      final long threshold;
+
+      // where it sits in the indexes: it fires at or above upper, or at or below lower
+      long upper = Long.MAX_VALUE;
+      long lower = Long.MIN_VALUE;
+      long reference = QuoteStore.NO_PRICE;
+
+      // the channel's next alert on the same symbol
+      Alert next;
+
+      Alert(Channel channel, int condition, long threshold) {
+         this.channel = channel;
+         this.condition = condition;
+         this.threshold = threshold;
+      }
+   }
+
+   private static final class ChannelAlerts {
+      final AtomicInteger count = new AtomicInteger();
+
+      // symbols it has set alerts on, some of which may have fired since
+      final Set<String> symbols = ConcurrentHashMap.newKeySet();
+   }
+
+   private class SymbolAlerts {
+      final String symbol;
+
+      // keyed by -upper, so the alerts a rising price triggers are the tail
+      final ThresholdIndex rising = new ThresholdIndex();
+
+      // keyed by lower, so the alerts a falling price triggers are the tail
+      final ThresholdIndex falling = new ThresholdIndex();
+
+      // move alerts set before there was a price to measure from
+      final List<Alert> pending = new ArrayList<>(0);
+
+      // each channel's alerts, chained through Alert.next, so dropping them doesn't mean a pass over
+      // everyone else's
+      final Map<Channel, Alert> byChannel = new HashMap<>();
+
+      int size;
+      boolean watched;
+
+      SymbolAlerts(String symbol) {
+         this.symbol = symbol;
+      }
+
+      synchronized void add(Alert alert, long price) {
+         if (!watched) {
+            listener.watch(symbol);
+            watched = true;
+         }
+         size++;
+         count.incrementAndGet();
+         alert.next = byChannel.put(alert.channel, alert);
+
+         if (alert.condition == MOVE && price == QuoteStore.NO_PRICE) {
+            pending.add(alert);
+         } else {
+            index(alert, price);
+         }
+      }
+
+      /**
+       * Takes every alert the price triggers out of the indexes, or returns null if there are none.
+       */
+      synchronized List<Alert> check(long price) {
+         if (!pending.isEmpty()) {
+            for (Alert alert : pending) {
+               index(alert, price);
+            }
+            pending.clear();
+         }
+
+         List<Alert> fired = rising.pollFrom(-price, null);
+         int rose = fired == null ? 0 : fired.size();
+         fired = falling.pollFrom(price, fired);
+         if (fired == null) {
+            return null;
+         }
+
+         for (int i = 0; i < fired.size(); i++) {
+            Alert alert = fired.get(i);
+            // a move alert is in both indexes, and has only come out of one
+            if (alert.condition == MOVE) {
+               if (i < rose) {
+                  falling.remove(alert.lower, alert);
+               } else {
+                  rising.remove(-alert.upper, alert);
+               }
+            }
+            unchain(alert);
+         }
+         removed(fired.size());
+         return fired;
+      }
+
+      /**
+       * Drops the channel's alerts and returns how many there were.
+       */
+      synchronized int remove(Channel channel) {
+         int removed = 0;
+         for (Alert alert = byChannel.remove(channel); alert != null; alert = alert.next) {
+            removed++;
+            if (alert.upper != Long.MAX_VALUE) {
+               rising.remove(-alert.upper, alert);
+            }
+            if (alert.lower != Long.MIN_VALUE) {
+               falling.remove(alert.lower, alert);
+            }
+            if (alert.condition == MOVE && alert.reference == QuoteStore.NO_PRICE) {
+               pending.remove(alert);
+            }
+         }
+         removed(removed);
+         return removed;
+      }
+
+      private void unchain(Alert alert) {
+         Alert first = byChannel.get(alert.channel);
+         if (first == alert) {
+            if (alert.next == null) {
+               byChannel.remove(alert.channel);
+            } else {
+               byChannel.put(alert.channel, alert.next);
+            }
+            return;
+         }
+         for (Alert previous = first; previous != null; previous = previous.next) {
+            if (previous.next == alert) {
+               previous.next = alert.next;
+               return;
+            }
+         }
+      }
+
+      private void index(Alert alert, long price) {
+         if (alert.condition == ABOVE) {
+            alert.upper = alert.threshold;
+         } else if (alert.condition == BELOW) {
+            alert.lower = alert.threshold;
+         } else {
+            // at least the smallest step, so the price it was set at never fires it
+            long move = Math.max(1L, Math.abs(price) / 100L * alert.threshold / QuoteStore.SCALE);
+            alert.reference = price;
+            alert.upper = price + move;
+            alert.lower = price - move;
+         }
+
+         if (alert.upper != Long.MAX_VALUE) {
+            rising.add(-alert.upper, alert);
+         }
+         if (alert.lower != Long.MIN_VALUE) {
+            falling.add(alert.lower, alert);
+         }
+      }
+
+      private void removed(int removed) {
+         if (removed == 0) {
+            return;
+         }
+         size -= removed;
+         count.addAndGet(-removed);
+         if (size == 0 && watched) {
+            listener.unwatch(symbol);
+            watched = false;
+         }
+      }
+   }
+
+   /**
+    * Alerts in ascending order of key, in blocks of parallel arrays so an insert or removal only ever
+    * shifts one block. Guarded by the SymbolAlerts that owns it.
+    */
+   private static final class ThresholdIndex {
+      long[][] keys = new long[1][];
+      Alert[][] alerts = new Alert[1][];
+      int[] counts = new int[1];
+      int blocks;
+
+      void add(long key, Alert alert) {
+         int b = blockFor(key);
+         if (b < 0) {
+            b = 0;
+            insertBlock(0, INITIAL_BLOCK_SIZE);
+         } else if (counts[b] == keys[b].length) {
+            if (counts[b] < BLOCK_SIZE) {
+               keys[b] = Arrays.copyOf(keys[b], Math.min(BLOCK_SIZE, counts[b] * 2));
+               alerts[b] = Arrays.copyOf(alerts[b], keys[b].length);
+            } else {
+               split(b);
+               if (key > keys[b][counts[b] - 1]) {
+                  b++;
+               }
+            }
+         }
+
+         int n = counts[b];
+         int i = firstAbove(keys[b], n, key);
+         System.arraycopy(keys[b], i, keys[b], i + 1, n - i);
+         System.arraycopy(alerts[b], i, alerts[b], i + 1, n - i);
+         keys[b][i] = key;
+         alerts[b][i] = alert;
+         counts[b] = n + 1;
+      }
+
+      /**
+       * Removes every alert keyed at or above bound, which are the tail, adding them to out. Returns
+       * out, created if it was null and there were any.
+       */
+      List<Alert> pollFrom(long bound, List<Alert> out) {
+         while (blocks > 0) {
+            int b = blocks - 1;
+            int n = counts[b];
+            int i = firstAtLeast(keys[b], n, bound);
+            if (i == n) {
+               break;
+            }
+
+            if (out == null) {
+               out = new ArrayList<>(n - i);
+            }
+            for (int j = i; j < n; j++) {
+               out.add(alerts[b][j]);
+               alerts[b][j] = null;
+            }
+            counts[b] = i;
+            if (i > 0) {
+               break;
+            }
+            removeBlock(b);
+         }
+         return out;
+      }
+
+      void remove(long key, Alert alert) {
+         for (int b = Math.max(blockFor(key), 0); b < blocks; b++) {
+            int n = counts[b];
+            for (int i = firstAtLeast(keys[b], n, key); i < n; i++) {
+               if (keys[b][i] != key) {
+                  return;
+               }
+               if (alerts[b][i] == alert) {
+                  System.arraycopy(keys[b], i + 1, keys[b], i, n - i - 1);
+                  System.arraycopy(alerts[b], i + 1, alerts[b], i, n - i - 1);
+                  alerts[b][n - 1] = null;
+                  if (--counts[b] == 0) {
+                     removeBlock(b);
+                  }
+                  return;
+               }
+            }
+         }
+      }
+
+      /**
+       * The first block whose last key is at least key, else the last block; -1 if there are none.
+       */
+      private int blockFor(long key) {
+         int lo = 0;
+         int hi = blocks - 1;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid][counts[mid] - 1] >= key) {
+               hi = mid;
+            } else {
+               lo = mid + 1;
+            }
+         }
+         return hi;
+      }
+
+      private void split(int b) {
+         insertBlock(b + 1, BLOCK_SIZE);
+         int half = counts[b] / 2;
+         int moved = counts[b] - half;
+         System.arraycopy(keys[b], half, keys[b + 1], 0, moved);
+         System.arraycopy(alerts[b], half, alerts[b + 1], 0, moved);
+         Arrays.fill(alerts[b], half, counts[b], null);
+         counts[b] = half;
+         counts[b + 1] = moved;
+      }
+
+      private void insertBlock(int at, int length) {
+         if (blocks == keys.length) {
+            keys = Arrays.copyOf(keys, blocks * 2);
+            alerts = Arrays.copyOf(alerts, blocks * 2);
+            counts = Arrays.copyOf(counts, blocks * 2);
+         }
+         System.arraycopy(keys, at, keys, at + 1, blocks - at);
+         System.arraycopy(alerts, at, alerts, at + 1, blocks - at);
+         System.arraycopy(counts, at, counts, at + 1, blocks - at);
+         keys[at] = new long[length];
+         alerts[at] = new Alert[length];
+         counts[at] = 0;
+         blocks++;
+      }
+
+      private void removeBlock(int b) {
+         System.arraycopy(keys, b + 1, keys, b, blocks - b - 1);
+         System.arraycopy(alerts, b + 1, alerts, b, blocks - b - 1);
+         System.arraycopy(counts, b + 1, counts, b, blocks - b - 1);
+         blocks--;
+         keys[blocks] = null;
+         alerts[blocks] = null;
+      }
+
+      private static int firstAtLeast(long[] keys, int n, long key) {
+         int lo = 0;
+         int hi = n;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+         return lo;
+      }
+
+      private static int firstAbove(long[] keys, int n, long key) {
+         int lo = 0;
+         int hi = n;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+         return lo;
+      }
+   }
+}
@@ -0,0 +1,231 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Open/high/low/close bars for every watched symbol at 1s, 1m, 5m and 1h, kept up to date tick by
+ * tick, so a chart never waits on a rescan of raw ticks.
+ *
+ * Each symbol keeps the last {@link #DEFAULT_CAPACITY} bars of each interval in ring buffers, one
+ * array per field, which start small and grow to that size as bars are added. A tick updates the
+ * open bar of every interval in place, or starts a new one over the oldest. Intervals with no ticks
+ * get no bar. There is no traded volume in a quote, so a bar's volume is the number of price
+ * changes in it.
+ *
+ * Bars are bucketed by the quotes' own timestamps, which are never allowed to go backwards within
+ * a symbol; a late quote lands in the current bar. A symbol's bars go when its last subscriber
+ * does, like its quote.
+ */
+public class BarRollup {
+   public static final String PATH = "/api/bars";
+   public static final int DEFAULT_CAPACITY = 500;
+
+   private static final String[] INTERVAL_NAMES = { "1s", "1m", "5m", "1h" };
+   private static final long[] INTERVAL_MILLIS = { 1000L, 60000L, 300000L, 3600000L };
+   private static final int INITIAL_CAPACITY = 16;
+
+   private final int capacity;
+   private final ConcurrentMap<String, SymbolBars> bars = new ConcurrentHashMap<>();
+
+   public BarRollup() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * @param capacity bars kept per symbol and interval
+    */
+   public BarRollup(int capacity) {
+      this.capacity = capacity;
+   }
+
+   /**
+    * The interval's index for "1s", "1m", "5m" or "1h", or -1 for anything else.
+    */
+   public static int intervalOf(String name) {
+      for (int i = 0; i < INTERVAL_NAMES.length; i++) {
+         if (INTERVAL_NAMES[i].equals(name)) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Same, for the ASCII name at buf[index, index + length).
+    */
+   public static int intervalOf(ByteBuf buf, int index, int length) {
+      for (int i = 0; i < INTERVAL_NAMES.length; i++) {
+         String name = INTERVAL_NAMES[i];
+         if (name.length() != length) {
+            continue;
+         }
+         int c = 0;
+         while (c < length && buf.getByte(index + c) == name.charAt(c)) {
+            c++;
+         }
+         if (c == length) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   public static String intervalName(int interval) {
+      return INTERVAL_NAMES[interval];
+   }
+
+   /**
+    * Folds a quote into the symbol's bars. The same price and change as last time is not a tick.
+    */
+   public void update(String symbol, long price, long change, long timestamp) {
+      SymbolBars symbolBars = bars.get(symbol);
+      if (symbolBars == null) {
+         symbolBars = bars.computeIfAbsent(symbol, key -> new SymbolBars());
+      }
+      symbolBars.update(price, change, timestamp);
+   }
+
+   public void remove(String symbol) {
+      bars.remove(symbol);
+   }
+
+   /**
+    * Counts the symbol's ticks; changes whenever any of its bars does, so a subscriber can tell
+    * whether there is anything new to send. 0 for a symbol with no bars.
+    */
+   public long getVersion(String symbol) {
+      SymbolBars symbolBars = bars.get(symbol);
+      return symbolBars == null ? 0L : symbolBars.version;
+   }
+
+   /**
+    * Writes the JSON fields for the symbol's newest bars in the interval, at most limit of them,
+    * oldest first, for the caller to wrap in braces:
+    * "tickerSymbol":"GOOG","interval":"1m","bars":[{"time":1445367180000,"open":"551.18",
+    * "high":"551.40","low":"550.90","close":"551.02","volume":12},...]
+    * time is when the bar starts. bars is empty for a symbol with none. The symbol is written as it
+    * is, so it must be one that needs no escaping.
+    */
+   public StringBuilder appendJson(StringBuilder sb, String symbol, int interval, int limit) {
+      sb.append("\"tickerSymbol\":\"").append(symbol).append("\",\"interval\":\"").append(INTERVAL_NAMES[interval])
+        .append("\",\"bars\":");
+      SymbolBars symbolBars = bars.get(symbol);
+      if (symbolBars == null) {
+         return sb.append("[]");
+      }
+      return symbolBars.appendJson(sb, interval, limit);
+   }
+
+   private class SymbolBars {
+      final Ring[] rings = new Ring[INTERVAL_MILLIS.length];
+      long lastPrice = QuoteStore.NO_PRICE;
+      long lastChange;
+      long lastTimestamp;
+      volatile long version;
+
+      SymbolBars() {
+         for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring(INTERVAL_MILLIS[i]);
+         }
+      }
+
+      synchronized void update(long price, long change, long timestamp) {
+         if (price == QuoteStore.NO_PRICE || (price == lastPrice && change == lastChange)) {
+            return;
+         }
+         lastPrice = price;
+         lastChange = change;
+         lastTimestamp = Math.max(lastTimestamp, timestamp);
+         for (Ring ring : rings) {
+            ring.update(price, lastTimestamp);
+         }
+         version++;
+      }
+
+      synchronized StringBuilder appendJson(StringBuilder sb, int interval, int limit) {
+         return rings[interval].appendJson(sb, limit);
+      }
+   }
+
+   /**
+    * One interval's bars; guarded by the SymbolBars that owns it.
+    */
+   private class Ring {
+      final long millis;
+      long[] start;
+      long[] open;
+      long[] high;
+      long[] low;
+      long[] close;
+      int[] volume;
+
+      // index of the newest bar, and how many there are
+      int head = -1;
+      int size;
+
+      Ring(long millis) {
+         this.millis = millis;
+         int length = Math.max(1, Math.min(INITIAL_CAPACITY, capacity));
+         start = new long[length];
+         open = new long[length];
+         high = new long[length];
+         low = new long[length];
+         close = new long[length];
+         volume = new int[length];
+      }
+
+      void update(long price, long timestamp) {
+         long bucket = timestamp - timestamp % millis;
+         if (size > 0 && start[head] == bucket) {
+            high[head] = Math.max(high[head], price);
+            low[head] = Math.min(low[head], price);
+            close[head] = price;
+            volume[head]++;
+            return;
+         }
+
+         if (size == start.length && size < capacity) {
+            // nothing has wrapped yet, so the bars are in order from index 0
+            grow(Math.min(capacity, size * 2));
+         }
+         head = (head + 1) % start.length;
+         size = Math.min(size + 1, start.length);
+         start[head] = bucket;
+         open[head] = price;
+         high[head] = price;
+         low[head] = price;
+         close[head] = price;
+         volume[head] = 1;
+      }
+
+      StringBuilder appendJson(StringBuilder sb, int limit) {
+         int count = Math.min(size, limit);
+         sb.append('[');
+         for (int n = count - 1; n >= 0; n--) {
+            int i = (head - n + start.length) % start.length;
+            if (n < count - 1) {
+               sb.append(',');
+            }
+            sb.append("{\"time\":").append(start[i]).append(",\"open\":\"");
+            QuoteStore.appendPrice(sb, open[i]).append("\",\"high\":\"");
+            QuoteStore.appendPrice(sb, high[i]).append("\",\"low\":\"");
+            QuoteStore.appendPrice(sb, low[i]).append("\",\"close\":\"");
+            QuoteStore.appendPrice(sb, close[i]).append("\",\"volume\":").append(volume[i]).append('}');
+         }
+         return sb.append(']');
+      }
+
+      private void grow(int length) {
+         start = Arrays.copyOf(start, length);
+         open = Arrays.copyOf(open, length);
+         high = Arrays.copyOf(high, length);
+         low = Arrays.copyOf(low, length);
+         close = Arrays.copyOf(close, length);
+         volume = Arrays.copyOf(volume, length);
+      }
+   }
+}
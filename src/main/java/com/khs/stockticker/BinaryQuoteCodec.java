@@ -0,0 +1,93 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Writes the compact binary quote frames sent to clients that negotiate {@link #SUBPROTOCOL}.
+ *
+ * Each update is one BinaryWebSocketFrame laid out as
+ *
+ * <pre>
+ * frame          = type:u8 entry*            entries run to the end of the frame
+ * type           = 1 snapshot | 2 delta | 3 replay
+ * snapshot entry = id:varint length:varint symbol:utf8[length] flags:u8 [price:svarint]
+ * delta entry    = id:varint price:svarint
+ * replay         = id:varint length:varint symbol:utf8[length] tick*
+ * tick           = time:i64 price:i64 change:i64
+ * </pre>
+ *
+ * varint is unsigned LEB128: seven bits per byte, low bits first, high bit set on every byte but
+ * the last. svarint is a zigzag-encoded varint, (n << 1) ^ (n >> 63). Prices are fixed point in
+ * ten-thousandths ({@link QuoteStore#SCALE}), so 551.18 goes out as 5511800. Bit 0 of a snapshot's
+ * flags says whether a price follows; a symbol with no price yet has none.
+ *
+ * A replay frame holds one symbol's journaled ticks, oldest first. Its ticks are fixed-width
+ * big-endian, time in epoch millis, exactly as {@link TickJournal} stores them, so they go out
+ * without being re-encoded.
+ *
+ * Symbol ids are the server's interned ids and never change or get reused. A snapshot names every
+ * symbol the client watches, and a delta only ever carries ids the client has already been sent in
+ * a snapshot, so the client can key everything on the id. webapp/js/ticker.js has a decoder.
+ */
+public final class BinaryQuoteCodec {
+   public static final String SUBPROTOCOL = "stockticker.bin.v1";
+
+   public static final byte SNAPSHOT = 1;
+   public static final byte DELTA    = 2;
+   public static final byte REPLAY   = 3;
+
+   private static final int HAS_PRICE = 1;
+
+   private BinaryQuoteCodec() {
+   }
+
+   /**
+    * Starts a frame sized for the expected number of entries; it grows if they turn out bigger.
+    */
+   public static ByteBuf newFrame(ByteBufAllocator allocator, byte type, int entries) {
+      return allocator.buffer(1 + entries * 6).writeByte(type);
+   }
+
+   /**
+    * The start of a replay frame; the journal's records follow it.
+    */
+   public static ByteBuf newReplayHeader(ByteBufAllocator allocator, int id, String symbol) {
+      byte[] name = symbol.getBytes(CharsetUtil.UTF_8);
+      ByteBuf header = allocator.buffer(11 + name.length).writeByte(REPLAY);
+      writeVarint(header, id);
+      writeVarint(header, name.length);
+      return header.writeBytes(name);
+   }
+
+   public static void writeDelta(ByteBuf frame, int id, long price) {
+      writeVarint(frame, id);
+      writeSignedVarint(frame, price);
+   }
+
+   public static void writeSnapshot(ByteBuf frame, int id, String symbol, long price) {
+      byte[] name = symbol.getBytes(CharsetUtil.UTF_8);
+      writeVarint(frame, id);
+      writeVarint(frame, name.length);
+      frame.writeBytes(name);
+      if (price == QuoteStore.NO_PRICE) {
+         frame.writeByte(0);
+      } else {
+         frame.writeByte(HAS_PRICE);
+         writeSignedVarint(frame, price);
+      }
+   }
+
+   static void writeVarint(ByteBuf buf, long value) {
+      while ((value & ~0x7fL) != 0) {
+         buf.writeByte((int) (value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      buf.writeByte((int) value);
+   }
+
+   static void writeSignedVarint(ByteBuf buf, long value) {
+      writeVarint(buf, (value << 1) ^ (value >> 63));
+   }
+}
@@ -0,0 +1,308 @@
+package com.khs.stockticker;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The network side of cluster mode: a TCP listener for the other nodes, and one outgoing link to each
+ * of them that is kept connected, reconnecting every second while a peer is away.
+ *
+ * A node sends SUBSCRIBE and UNSUBSCRIBE for the symbols it wants over its link to the owner, and
+ * the owner sends TICKs back down that same connection. A peer is on the hash ring exactly while our
+ * link to it is up. Both ends ping each other every second and drop a connection that has been
+ * silent for three, so a peer that hangs leaves the ring as surely as one that exits.
+ *
+ * Messages are length-prefixed (two bytes) and start with a type byte:
+ * <pre>
+ *   SUBSCRIBE   symbol (UTF-8, to the end)
+ *   UNSUBSCRIBE symbol
+ *   TICK        price, change, timestamp (longs, QuoteStore fixed point), symbol
+ *   PING
+ * </pre>
+ */
+public class ClusterNode {
+   private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+
+   static final byte SUBSCRIBE = 1;
+   static final byte UNSUBSCRIBE = 2;
+   static final byte TICK = 3;
+   static final byte PING = 4;
+
+   private static final int MAX_MESSAGE_BYTES = 1024;
+   private static final long RECONNECT_MILLIS = 1000L;
+   private static final int PING_SECONDS = 1;
+   private static final int DEAD_SECONDS = 3;
+
+   private static final AttributeKey<Boolean> FLUSH_PENDING = AttributeKey.valueOf("cluster.flushPending");
+
+   private final String self;
+   private final List<String> peers = new ArrayList<>();
+   private final HashRing ring;
+   private final EventLoopGroup group;
+   private final Class<? extends ServerSocketChannel> serverChannelClass;
+   private final Class<? extends SocketChannel> channelClass;
+   private final ClusterQuoteSource source;
+
+   // peer -> our live link to it
+   private final ConcurrentMap<String, Channel> links = new ConcurrentHashMap<>();
+
+   private Channel serverChannel;
+   private volatile boolean stopped;
+
+   /**
+    * @param self  this node's cluster address, host:port
+    * @param peers every node's cluster address; self may be among them
+    */
+   public ClusterNode(String self, List<String> peers, int virtualNodes, EventLoopGroup group,
+                      Class<? extends ServerSocketChannel> serverChannelClass,
+                      Class<? extends SocketChannel> channelClass, ClusterQuoteSource source) {
+      this.self = self;
+      for (String peer : peers) {
+         if (!peer.equals(self)) {
+            this.peers.add(peer);
+         }
+      }
+      this.group = group;
+      this.serverChannelClass = serverChannelClass;
+      this.channelClass = channelClass;
+      this.source = source;
+      this.ring = new HashRing(virtualNodes);
+      ring.add(self);
+   }
+
+   public String getSelf() {
+      return self;
+   }
+
+   /**
+    * This node plus every peer currently linked.
+    */
+   public List<String> getLiveNodes() {
+      return ring.getNodes();
+   }
+
+   public String ownerOf(String symbol) {
+      return ring.ownerOf(symbol);
+   }
+
+   public void start() throws InterruptedException {
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(group)
+       .channel(serverChannelClass)
+       .childOption(ChannelOption.TCP_NODELAY, true)
+       .childHandler(newInitializer());
+      serverChannel = b.bind(portOf(self)).sync().channel();
+      logger.info("Cluster node {} listening, peers {}", self, peers);
+
+      for (String peer : peers) {
+         connect(peer);
+      }
+   }
+
+   public void stop() {
+      stopped = true;
+      if (serverChannel != null) {
+         serverChannel.close();
+      }
+      for (Channel link : links.values()) {
+         link.close();
+      }
+   }
+
+   /**
+    * Sends SUBSCRIBE or UNSUBSCRIBE to the peer; dropped if the link is down, since the peer is then
+    * off the ring and the symbol is about to be reassigned anyway.
+    */
+   void send(String peer, byte type, String symbol) {
+      Channel link = links.get(peer);
+      if (link != null) {
+         ByteBuf message = link.alloc().buffer(1 + symbol.length());
+         message.writeByte(type);
+         ByteBufUtil.writeUtf8(message, symbol);
+         link.writeAndFlush(message, link.voidPromise());
+      }
+   }
+
+   /**
+    * Relays a tick to a peer. Ticks come in bursts, so writes are flushed once per burst from the
+    * channel's event loop rather than one at a time.
+    */
+   void sendTick(final Channel channel, String symbol, long price, long change, long timestamp) {
+      ByteBuf message = channel.alloc().buffer(25 + symbol.length());
+      message.writeByte(TICK);
+      message.writeLong(price);
+      message.writeLong(change);
+      message.writeLong(timestamp);
+      ByteBufUtil.writeUtf8(message, symbol);
+      channel.write(message, channel.voidPromise());
+
+      final Attribute<Boolean> flushPending = channel.attr(FLUSH_PENDING);
+      if (!Boolean.TRUE.equals(flushPending.getAndSet(Boolean.TRUE))) {
+         channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+               flushPending.set(Boolean.FALSE);
+               channel.flush();
+            }
+         });
+      }
+   }
+
+   private void connect(final String peer) {
+      if (stopped) {
+         return;
+      }
+
+      Bootstrap b = new Bootstrap();
+      b.group(group)
+       .channel(channelClass)
+       .option(ChannelOption.TCP_NODELAY, true)
+       .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) RECONNECT_MILLIS * 2)
+       .handler(newInitializer());
+      b.connect(hostOf(peer), portOf(peer)).addListener(new ChannelFutureListener() {
+         @Override
+         public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+               reconnectLater(peer);
+               return;
+            }
+
+            final Channel link = future.channel();
+            links.put(peer, link);
+            if (ring.add(peer)) {
+               logger.info("Cluster peer {} up, live nodes {}", peer, ring.getNodes());
+               source.rebalance();
+            }
+
+            link.closeFuture().addListener(new ChannelFutureListener() {
+               @Override
+               public void operationComplete(ChannelFuture future) {
+                  links.remove(peer, link);
+                  if (ring.remove(peer)) {
+                     logger.warn("Cluster peer {} down, live nodes {}", peer, ring.getNodes());
+                     source.rebalance();
+                  }
+                  reconnectLater(peer);
+               }
+            });
+         }
+      });
+   }
+
+   private void reconnectLater(final String peer) {
+      if (!stopped) {
+         group.schedule(new Runnable() {
+            @Override
+            public void run() {
+               connect(peer);
+            }
+         }, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   private ChannelInitializer<SocketChannel> newInitializer() {
+      return new ChannelInitializer<SocketChannel>() {
+         @Override
+         public void initChannel(SocketChannel ch) {
+            ChannelPipeline p = ch.pipeline();
+            p.addLast("idle", new IdleStateHandler(DEAD_SECONDS, PING_SECONDS, 0));
+            p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_MESSAGE_BYTES, 0, 2, 0, 2));
+            p.addLast("frameEncoder", new LengthFieldPrepender(2));
+            p.addLast("handler", handler);
+         }
+      };
+   }
+
+   private final ChannelHandler handler = new ClusterHandler();
+
+   @ChannelHandler.Sharable
+   private class ClusterHandler extends SimpleChannelInboundHandler<ByteBuf> {
+      @Override
+      protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+         byte type = msg.readByte();
+         switch (type) {
+            case SUBSCRIBE:
+               source.peerSubscribed(ctx.channel(), msg.toString(CharsetUtil.UTF_8));
+               break;
+            case UNSUBSCRIBE:
+               source.peerUnsubscribed(ctx.channel(), msg.toString(CharsetUtil.UTF_8));
+               break;
+            case TICK:
+               long price = msg.readLong();
+               long change = msg.readLong();
+               long timestamp = msg.readLong();
+               source.tickReceived(msg.toString(CharsetUtil.UTF_8), price, change, timestamp);
+               break;
+            case PING:
+               break;
+            default:
+               logger.warn("Unknown cluster message type {} from {}, closing", type, ctx.channel().remoteAddress());
+               ctx.close();
+         }
+      }
+
+      @Override
+      public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+         if (evt instanceof IdleStateEvent) {
+            if (((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+               logger.warn("Cluster connection {} went silent, closing", ctx.channel().remoteAddress());
+               ctx.close();
+            } else {
+               ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(PING), ctx.voidPromise());
+            }
+            return;
+         }
+         super.userEventTriggered(ctx, evt);
+      }
+
+      @Override
+      public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+         source.peerGone(ctx.channel());
+         super.channelInactive(ctx);
+      }
+
+      @Override
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+         logger.warn("Cluster connection {} failed: {}", ctx.channel().remoteAddress(), cause.toString());
+         ctx.close();
+      }
+   }
+
+   private static String hostOf(String address) {
+      return address.substring(0, address.lastIndexOf(':'));
+   }
+
+   private static int portOf(String address) {
+      return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+   }
+}
@@ -0,0 +1,314 @@
+package com.khs.stockticker;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster mode: wraps the node's own {@link QuoteSource} so each symbol is fetched by just one node
+ * of the cluster, its owner on a consistent hash ring of the nodes that are up.
+ *
+ * For a symbol this node's clients want, the owner is asked for it: if that is this node the local
+ * source fetches it as usual, otherwise a SUBSCRIBE goes to the owner, which relays every change to
+ * its price back, and the ticks are handed to the engine like a push source's. Upstream load is then
+ * spread over the cluster instead of repeated on every node. When a node comes up or goes away the
+ * symbols it gains or loses are moved, and only those.
+ *
+ * A node always serves a symbol a peer subscribed to locally, even if its own ring says otherwise,
+ * so two nodes whose views differ for a moment never bounce a symbol between them forever.
+ */
+public class ClusterQuoteSource implements QuoteSource {
+   // relay runs for every tick this node fetches, so each thread reads quotes into its own
+   private static final ThreadLocal<long[]> relayQuote = new ThreadLocal<long[]>() {
+      @Override
+      protected long[] initialValue() {
+         return new long[3];
+      }
+   };
+
+   private final QuoteSource local;
+   private final ClusterNode node;
+   private final String self;
+
+   // symbols this node's clients or peers want -> the node fetching them
+   private final ConcurrentMap<String, String> wanted = new ConcurrentHashMap<>();
+
+   // symbols peers asked us for -> their connections
+   private final ConcurrentMap<String, Set<Channel>> peerSubscribers = new ConcurrentHashMap<>();
+
+   // price last sent to peers, so a poll that found nothing new sends nothing
+   private final ConcurrentMap<String, Long> lastRelayed = new ConcurrentHashMap<>();
+
+   private final AtomicLong relayed = new AtomicLong();
+   private final AtomicLong received = new AtomicLong();
+
+   private volatile QuoteEngine engine;
+   private volatile QuoteStore store;
+   private volatile Listener listener;
+
+   /**
+    * @param self  this node's cluster address, host:port
+    * @param peers every node's cluster address
+    */
+   public ClusterQuoteSource(QuoteSource local, String self, List<String> peers, int virtualNodes,
+                             EventLoopGroup group, Class<? extends ServerSocketChannel> serverChannelClass,
+                             Class<? extends SocketChannel> channelClass) {
+      this.local = local;
+      this.self = self;
+      this.node = new ClusterNode(self, peers, virtualNodes, group, serverChannelClass, channelClass, this);
+   }
+
+   /**
+    * Starts talking to the other nodes. Peers' subscriptions go through the engine like any other,
+    * so it must exist first.
+    */
+   public void join(QuoteEngine engine) throws InterruptedException {
+      this.engine = engine;
+      node.start();
+   }
+
+   public QuoteSource getLocalSource() {
+      return local;
+   }
+
+   public ClusterNode getNode() {
+      return node;
+   }
+
+   /**
+    * Ticks sent to peers.
+    */
+   public long getRelayed() {
+      return relayed.get();
+   }
+
+   /**
+    * Ticks received from the owners of symbols this node wants.
+    */
+   public long getReceived() {
+      return received.get();
+   }
+
+   /**
+    * Wanted symbols this node fetches itself.
+    */
+   public int getOwnedCount() {
+      int owned = 0;
+      for (String owner : wanted.values()) {
+         if (self.equals(owner)) {
+            owned++;
+         }
+      }
+      return owned;
+   }
+
+   @Override
+   public boolean isPush() {
+      return local.isPush();
+   }
+
+   /**
+    * Fetches only what this node owns, or isn't tracking at all, then relays what changed to the
+    * peers that asked.
+    */
+   @Override
+   public Future<Integer> fetch(Collection<String> symbols, final QuoteStore store) {
+      final List<String> owned = new ArrayList<>(symbols.size());
+      for (String symbol : symbols) {
+         String owner = wanted.get(symbol);
+         if (owner == null || owner.equals(self)) {
+            owned.add(symbol);
+         }
+      }
+      if (owned.isEmpty()) {
+         return ImmediateEventExecutor.INSTANCE.newSucceededFuture(0);
+      }
+
+      Future<Integer> fetch = local.fetch(owned, store);
+      fetch.addListener(new GenericFutureListener<Future<Integer>>() {
+         @Override
+         public void operationComplete(Future<Integer> future) {
+            for (String symbol : owned) {
+               relay(symbol, store);
+            }
+         }
+      });
+      return fetch;
+   }
+
+   @Override
+   public int getRequestCapacity() {
+      return local.getRequestCapacity();
+   }
+
+   /**
+    * Nothing for a symbol another node fetches, so the poll scheduler never spends a request on it.
+    */
+   @Override
+   public int getRequestCost(String symbol) {
+      String owner = wanted.get(symbol);
+      return owner == null || owner.equals(self) ? local.getRequestCost(symbol) : 0;
+   }
+
+   @Override
+   public void start(final QuoteStore store, final Listener listener) {
+      this.store = store;
+      this.listener = listener;
+      local.start(store, new Listener() {
+         @Override
+         public void quoteUpdated(int symbolId) {
+            relay(store.symbol(symbolId), store);
+            listener.quoteUpdated(symbolId);
+         }
+      });
+   }
+
+   @Override
+   public synchronized void subscribed(String symbol) {
+      assign(symbol);
+   }
+
+   @Override
+   public synchronized void unsubscribed(String symbol) {
+      release(symbol, wanted.remove(symbol));
+   }
+
+   @Override
+   public void close() {
+      node.stop();
+      local.close();
+   }
+
+   /**
+    * Moves every wanted symbol to its owner on the current ring; called as nodes come and go.
+    */
+   synchronized void rebalance() {
+      for (String symbol : wanted.keySet()) {
+         assign(symbol);
+      }
+   }
+
+   /**
+    * A peer wants a symbol from us. Recorded before the engine hears of it, so the engine's
+    * subscribed() call already finds it served here. Never called with this lock held, since the
+    * engine calls back in while holding its own. Refused, like a local subscribe, if the store is
+    * full and the symbol new to it.
+    */
+   void peerSubscribed(Channel peer, String symbol) {
+      if (!engine.intern(Collections.singletonList(symbol))) {
+         return;
+      }
+      peerSubscribers.computeIfAbsent(symbol, key -> ConcurrentHashMap.<Channel>newKeySet()).add(peer);
+      engine.addPeerSubscriber(peer, symbol);
+      reassign(symbol);
+
+      // it may be a while before the price next changes
+      long[] quote = new long[3];
+      int id = store.idOf(symbol);
+      if (id >= 0 && store.read(id, quote)) {
+         node.sendTick(peer, symbol, quote[0], quote[1], quote[2]);
+      }
+   }
+
+   void peerUnsubscribed(Channel peer, String symbol) {
+      Set<Channel> peers = peerSubscribers.get(symbol);
+      if (peers == null || !peers.remove(peer)) {
+         return;
+      }
+      peerSubscribers.computeIfPresent(symbol, (key, channels) -> channels.isEmpty() ? null : channels);
+      engine.removePeerSubscriber(peer, symbol);
+      reassign(symbol);
+   }
+
+   void peerGone(Channel peer) {
+      for (Map.Entry<String, Set<Channel>> entry : peerSubscribers.entrySet()) {
+         if (entry.getValue().contains(peer)) {
+            peerUnsubscribed(peer, entry.getKey());
+         }
+      }
+   }
+
+   /**
+    * A tick from a symbol's owner, handled as if a push source had written it.
+    */
+   void tickReceived(String symbol, long price, long change, long timestamp) {
+      received.incrementAndGet();
+      int id = store.idOf(symbol);
+      if (id < 0 || !wanted.containsKey(symbol)) {
+         // unsubscribed while it was on the way
+         return;
+      }
+      if (store.update(id, price, change, timestamp)) {
+         listener.quoteUpdated(id);
+      }
+   }
+
+   private synchronized void reassign(String symbol) {
+      if (wanted.containsKey(symbol)) {
+         assign(symbol);
+      }
+   }
+
+   private void assign(String symbol) {
+      String owner = peerSubscribers.containsKey(symbol) ? self : node.ownerOf(symbol);
+      String previous = wanted.put(symbol, owner);
+      if (owner.equals(previous)) {
+         return;
+      }
+
+      release(symbol, previous);
+      if (owner.equals(self)) {
+         local.subscribed(symbol);
+      } else {
+         node.send(owner, ClusterNode.SUBSCRIBE, symbol);
+      }
+   }
+
+   private void release(String symbol, String owner) {
+      if (owner == null) {
+         return;
+      }
+      if (owner.equals(self)) {
+         local.unsubscribed(symbol);
+         lastRelayed.remove(symbol);
+      } else {
+         node.send(owner, ClusterNode.UNSUBSCRIBE, symbol);
+      }
+   }
+
+   private void relay(String symbol, QuoteStore store) {
+      Set<Channel> peers = peerSubscribers.get(symbol);
+      if (peers == null || peers.isEmpty()) {
+         return;
+      }
+
+      long[] quote = relayQuote.get();
+      int id = store.idOf(symbol);
+      if (id < 0 || !store.read(id, quote)) {
+         return;
+      }
+      Long previous = lastRelayed.put(symbol, quote[0]);
+      if (previous != null && previous == quote[0]) {
+         return;
+      }
+
+      for (Channel peer : peers) {
+         node.sendTick(peer, symbol, quote[0], quote[1], quote[2]);
+         relayed.incrementAndGet();
+      }
+   }
+}
@@ -0,0 +1,77 @@
+package com.khs.stockticker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What permessage-deflate is buying and costing, summed over every connection that negotiated it.
+ * Updated once per frame from every event loop, hence LongAdders.
+ */
+public class DeflateStats {
+   private final LongAdder framesCompressed = new LongAdder();
+   private final LongAdder framesSkipped = new LongAdder();
+   private final LongAdder bytesIn = new LongAdder();
+   private final LongAdder bytesOut = new LongAdder();
+   private final LongAdder compressNanos = new LongAdder();
+   private final LongAdder framesInflated = new LongAdder();
+
+   public long getFramesCompressed() {
+      return framesCompressed.sum();
+   }
+
+   /**
+    * Frames sent uncompressed because they were under the minimum size.
+    */
+   public long getFramesSkipped() {
+      return framesSkipped.sum();
+   }
+
+   public long getBytesIn() {
+      return bytesIn.sum();
+   }
+
+   public long getBytesOut() {
+      return bytesOut.sum();
+   }
+
+   public long getCompressNanos() {
+      return compressNanos.sum();
+   }
+
+   public long getFramesInflated() {
+      return framesInflated.sum();
+   }
+
+   /**
+    * Compressed size over original size for the frames that were compressed; lower is better.
+    */
+   public double getCompressionRatio() {
+      long in = getBytesIn();
+      return in == 0 ? 1.0 : (double) getBytesOut() / in;
+   }
+
+   public long getNanosPerFrame() {
+      long frames = getFramesCompressed();
+      return frames == 0 ? 0 : getCompressNanos() / frames;
+   }
+
+   void compressed(int in, int out, long nanos) {
+      framesCompressed.increment();
+      bytesIn.add(in);
+      bytesOut.add(out);
+      compressNanos.add(nanos);
+   }
+
+   void skipped() {
+      framesSkipped.increment();
+   }
+
+   void inflated() {
+      framesInflated.increment();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%d frames compressed, ratio %.3f, %d ns/frame, %d skipped, %d inflated",
+            getFramesCompressed(), getCompressionRatio(), getNanosPerFrame(), getFramesSkipped(), getFramesInflated());
+   }
+}
@@ -0,0 +1,109 @@
+package com.khs.stockticker;
+
+import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoded frames for one broadcast tick, shared by every session that sends the same payload.
+ *
+ * Each distinct {@link TickerResponse} is serialized once into a pooled buffer; every session
+ * sending it gets a retained duplicate, so fan-out is a reference count bump rather than another
+ * serialization. The cache itself is reference counted by the sessions taking part in the tick
+ * and releases its buffers when the last one is done.
+ */
+public class FrameCache {
+   // Gson is thread safe, so every cache can share one instance
+   private static final Gson gson = new Gson();
+
+   private final ConcurrentMap<TickerResponse, ByteBuf> frames = new ConcurrentHashMap<>();
+   private final ByteBufAllocator allocator;
+   private final LatencyHistogram encodeTimes;
+
+   // when the tick started, for measuring how long it takes to reach each session
+   private final long tickNanos = System.nanoTime();
+
+   // starts at one for the creator, who releases it once every session has been handed the tick
+   private final AtomicInteger refCnt = new AtomicInteger(1);
+
+   public FrameCache() {
+      this(PooledByteBufAllocator.DEFAULT);
+   }
+
+   public FrameCache(ByteBufAllocator allocator) {
+      this(allocator, null);
+   }
+
+   /**
+    * @param encodeTimes where to record how long each distinct frame took to encode, in
+    *                    microseconds; null not to
+    */
+   public FrameCache(ByteBufAllocator allocator, LatencyHistogram encodeTimes) {
+      this.allocator = allocator;
+      this.encodeTimes = encodeTimes;
+   }
+
+   public long getTickNanos() {
+      return tickNanos;
+   }
+
+   /**
+    * Returns the encoded payload as a retained duplicate; the caller owns that reference.
+    */
+   public ByteBuf frameFor(TickerResponse tickerResponse) {
+      ByteBuf frame = frames.get(tickerResponse);
+      if (frame == null) {
+         frame = frames.computeIfAbsent(tickerResponse, this::encode);
+      }
+      return frame.duplicate().retain();
+   }
+
+   private ByteBuf encode(TickerResponse tickerResponse) {
+      if (encodeTimes == null) {
+         return encode(allocator, tickerResponse);
+      }
+      long start = System.nanoTime();
+      ByteBuf frame = encode(allocator, tickerResponse);
+      encodeTimes.record((System.nanoTime() - start) / 1000);
+      return frame;
+   }
+
+   public int size() {
+      return frames.size();
+   }
+
+   public void retain() {
+      refCnt.incrementAndGet();
+   }
+
+   public void release() {
+      if (refCnt.decrementAndGet() == 0) {
+         for (ByteBuf frame : frames.values()) {
+            frame.release();
+         }
+         frames.clear();
+      }
+   }
+
+   /**
+    * Serializes into a buffer from the allocator. Going through a StringBuilder rather than an
+    * OutputStreamWriter avoids the writer's 8 KB byte buffer, which dwarfs a typical frame.
+    */
+   public static ByteBuf encode(ByteBufAllocator allocator, Object message) {
+      StringBuilder json = new StringBuilder(256);
+      try {
+         gson.toJson(message, json);
+      } catch (RuntimeException e) {
+         throw new IllegalStateException("Could not encode " + message, e);
+      }
+      return ByteBufUtil.encodeString(allocator, CharBuffer.wrap(json), CharsetUtil.UTF_8);
+   }
+}
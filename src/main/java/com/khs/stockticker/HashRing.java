@@ -0,0 +1,112 @@
+package com.khs.stockticker;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring mapping symbols to cluster nodes. Each node is placed at many points on the
+ * ring so ownership spreads evenly, and when a node joins or leaves only the symbols next to its
+ * points change hands.
+ *
+ * Lookups read an immutable snapshot and never lock; adding or removing a node builds a new one.
+ */
+public class HashRing {
+   public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+   private static final HashFunction HASH = Hashing.murmur3_32();
+
+   private final int virtualNodes;
+   private final Set<String> nodes = new TreeSet<>();
+   private volatile Ring ring = new Ring(new int[0], new String[0]);
+
+   public HashRing() {
+      this(DEFAULT_VIRTUAL_NODES);
+   }
+
+   public HashRing(int virtualNodes) {
+      this.virtualNodes = virtualNodes;
+   }
+
+   /**
+    * @return false if the node was already on the ring
+    */
+   public synchronized boolean add(String node) {
+      boolean added = nodes.add(node);
+      if (added) {
+         rebuild();
+      }
+      return added;
+   }
+
+   /**
+    * @return false if the node wasn't on the ring
+    */
+   public synchronized boolean remove(String node) {
+      boolean removed = nodes.remove(node);
+      if (removed) {
+         rebuild();
+      }
+      return removed;
+   }
+
+   public synchronized List<String> getNodes() {
+      return new ArrayList<>(nodes);
+   }
+
+   /**
+    * The node owning key: the first one at or after its hash, going round. Null on an empty ring.
+    */
+   public String ownerOf(String key) {
+      Ring current = ring;
+      if (current.points.length == 0) {
+         return null;
+      }
+
+      int i = Arrays.binarySearch(current.points, hash(key));
+      if (i < 0) {
+         i = -i - 1;
+      }
+      return current.owners[i == current.points.length ? 0 : i];
+   }
+
+   private void rebuild() {
+      List<long[]> points = new ArrayList<>(nodes.size() * virtualNodes);
+      List<String> names = new ArrayList<>(nodes);
+      for (int n = 0; n < names.size(); n++) {
+         for (int v = 0; v < virtualNodes; v++) {
+            points.add(new long[] { hash(names.get(n) + "#" + v), n });
+         }
+      }
+      Collections.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+
+      int[] hashes = new int[points.size()];
+      String[] owners = new String[points.size()];
+      for (int i = 0; i < hashes.length; i++) {
+         hashes[i] = (int) points.get(i)[0];
+         owners[i] = names.get((int) points.get(i)[1]);
+      }
+      ring = new Ring(hashes, owners);
+   }
+
+   private static int hash(String key) {
+      return HASH.hashString(key, Charsets.UTF_8).asInt();
+   }
+
+   private static class Ring {
+      final int[] points;
+      final String[] owners;
+
+      Ring(int[] points, String[] owners) {
+         this.points = points;
+         this.owners = owners;
+      }
+   }
+}
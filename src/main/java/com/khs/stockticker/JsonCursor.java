@@ -0,0 +1,165 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * What the pull parsers share: a position in a buffer of JSON, and the moves to step through it
+ * without decoding anything, matching member names in place and skipping whatever isn't wanted.
+ *
+ * Each parser says what a failure means through {@link #error}; every move throws it when the JSON
+ * isn't well formed. Only UTF-8 and ASCII are looked at, so the bytes are compared as they are.
+ */
+public abstract class JsonCursor {
+   protected ByteBuf buf;
+   protected int pos;
+   protected int end;
+
+   /**
+    * Points the cursor at the readable bytes of buf, leaving its indexes untouched.
+    */
+   protected final void reset(ByteBuf buf) {
+      this.buf = buf;
+      this.pos = buf.readerIndex();
+      this.end = buf.writerIndex();
+   }
+
+   /**
+    * What to throw when the JSON at pos is malformed, or more than the parser handles.
+    */
+   protected abstract IllegalArgumentException error();
+
+   /**
+    * Consumes the member separator, returning false once the closing bracket has been consumed.
+    */
+   protected final boolean nextMember(char close) {
+      byte c = peek();
+      pos++;
+      if (c == ',') {
+         return true;
+      }
+      if (c == close) {
+         return false;
+      }
+      throw error();
+   }
+
+   /**
+    * If the member name at the current position equals name, consumes it and the colon after it.
+    * Otherwise leaves the position where it was.
+    */
+   protected final boolean matchName(byte[] name) {
+      if (peek() != '"') {
+         throw error();
+      }
+
+      int start = pos + 1;
+      if (start + name.length >= end || buf.getByte(start + name.length) != '"') {
+         return false;
+      }
+
+      for (int i = 0; i < name.length; i++) {
+         if (buf.getByte(start + i) != name[i]) {
+            return false;
+         }
+      }
+
+      pos = start + name.length + 1;
+      expect(':');
+      return true;
+   }
+
+   protected final void skipNameAndValue() {
+      if (peek() != '"') {
+         throw error();
+      }
+      skipString();
+      expect(':');
+      skipValue();
+   }
+
+   protected final void skipString() {
+      pos++;
+      while (pos < end) {
+         byte b = buf.getByte(pos++);
+         if (b == '"') {
+            return;
+         }
+         if (b == '\\') {
+            pos++;
+         }
+      }
+      throw error();
+   }
+
+   protected final void skipValue() {
+      byte c = peek();
+      if (c == '"') {
+         skipString();
+         return;
+      }
+
+      if (c == '{' || c == '[') {
+         int depth = 0;
+         while (pos < end) {
+            byte b = buf.getByte(pos);
+            if (b == '"') {
+               skipString();
+               continue;
+            }
+
+            pos++;
+            if (b == '{' || b == '[') {
+               depth++;
+            } else if (b == '}' || b == ']') {
+               if (--depth == 0) {
+                  return;
+               }
+            }
+         }
+         throw error();
+      }
+
+      // number, true, false or null
+      int start = pos;
+      while (pos < end) {
+         byte b = buf.getByte(pos);
+         if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+            break;
+         }
+         pos++;
+      }
+      if (pos == start) {
+         throw error();
+      }
+   }
+
+   protected final void expect(char c) {
+      if (peek() != c) {
+         throw error();
+      }
+      pos++;
+   }
+
+   /**
+    * Skips whitespace and returns the next byte without consuming it.
+    */
+   protected final byte peek() {
+      while (pos < end) {
+         byte b = buf.getByte(pos);
+         if (!isWhitespace(b)) {
+            return b;
+         }
+         pos++;
+      }
+      throw error();
+   }
+
+   protected static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+   }
+
+   protected static byte[] ascii(String s) {
+      return s.getBytes(CharsetUtil.US_ASCII);
+   }
+}
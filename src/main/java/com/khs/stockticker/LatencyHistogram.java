@@ -0,0 +1,135 @@
+package com.khs.stockticker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size log-linear histogram of non-negative longs, in the spirit of HdrHistogram: every
+ * power of two is split into 64 linear buckets, so any recorded value comes back within 1.6% and
+ * the whole long range fits in about 3,800 counters. Recording is a couple of shifts and one
+ * atomic increment, safe from any thread, with no allocation.
+ *
+ * Units are up to the caller; the server and the load generator both record microseconds.
+ */
+public class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 7;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int HALF = SUB_BUCKETS / 2;
+   private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * HALF + SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong totalCount = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      counts.incrementAndGet(indexOf(value));
+      totalCount.incrementAndGet();
+      sum.addAndGet(value);
+
+      long current;
+      while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+         // lost a race with another recorder, try again
+      }
+   }
+
+   public long getCount() {
+      return totalCount.get();
+   }
+
+   public long getSum() {
+      return sum.get();
+   }
+
+   public long getMax() {
+      return max.get();
+   }
+
+   public double getMean() {
+      long count = getCount();
+      return count == 0 ? 0.0 : (double) getSum() / count;
+   }
+
+   /**
+    * The smallest value that at least this percentage (0-100) of recorded values are at or under,
+    * rounded up to the top of its bucket but never past the largest value recorded.
+    */
+   public long getValueAtPercentile(double percentile) {
+      long count = getCount();
+      if (count == 0) {
+         return 0;
+      }
+
+      long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts.get(i);
+         if (seen >= target) {
+            return Math.min(highestValueAt(i), getMax());
+         }
+      }
+      return getMax();
+   }
+
+   /**
+    * Adds everything recorded in other to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+         long n = other.counts.get(i);
+         if (n != 0) {
+            counts.addAndGet(i, n);
+         }
+      }
+      totalCount.addAndGet(other.getCount());
+      sum.addAndGet(other.getSum());
+
+      long otherMax = other.getMax();
+      long current;
+      while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+         // lost a race with another recorder, try again
+      }
+   }
+
+   /**
+    * Hands back what has been recorded so far and starts this one over, for interval reporting.
+    * Values recorded while this runs may land on either side, but none are lost.
+    */
+   public LatencyHistogram getIntervalHistogram() {
+      LatencyHistogram interval = new LatencyHistogram();
+      long intervalCount = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         long n = counts.getAndSet(i, 0);
+         if (n != 0) {
+            interval.counts.set(i, n);
+            intervalCount += n;
+         }
+      }
+      totalCount.addAndGet(-intervalCount);
+      interval.totalCount.set(intervalCount);
+      interval.sum.set(sum.getAndSet(0));
+      interval.max.set(max.getAndSet(0));
+      return interval;
+   }
+
+   static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      // value has 64 - nlz significant bits; keep the top SUB_BUCKET_BITS of them
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return shift * HALF + (int) (value >>> shift);
+   }
+
+   static long highestValueAt(int index) {
+      if (index < SUB_BUCKETS) {
+         return index;
+      }
+      int shift = index / HALF - 1;
+      long subBucket = index - shift * HALF;
+      return ((subBucket + 1) << shift) - 1;
+   }
+}
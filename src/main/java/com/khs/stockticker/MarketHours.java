@@ -0,0 +1,100 @@
+package com.khs.stockticker;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.TextStyle;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * When the market is open: a daily session in one time zone, on certain weekdays, minus holidays.
+ * Outside it prices don't move, so the poll scheduler backs right off.
+ */
+public class MarketHours {
+   // never closes; the default, so nothing changes for anyone who hasn't set up a calendar
+   public static final MarketHours ALWAYS_OPEN = new MarketHours(ZoneId.of("UTC"), LocalTime.MIN, LocalTime.MAX,
+         EnumSet.allOf(DayOfWeek.class), new HashSet<LocalDate>());
+
+   private final ZoneId zone;
+   private final LocalTime open;
+   private final LocalTime close;
+   private final Set<DayOfWeek> days;
+   private final Set<LocalDate> holidays;
+
+   public MarketHours(ZoneId zone, LocalTime open, LocalTime close, Set<DayOfWeek> days, Set<LocalDate> holidays) {
+      this.zone = zone;
+      this.open = open;
+      this.close = close;
+      this.days = days;
+      this.holidays = holidays;
+   }
+
+   /**
+    * Parses the config form: "09:30-16:00" for the session, "MON,TUE,..." for the days and
+    * "2026-12-25,..." for the holidays. An empty session means always open. Days are three-letter
+    * abbreviations or full names; anything else is an IllegalArgumentException.
+    */
+   public static MarketHours parse(String zone, String session, String days, String holidays) {
+      if (session == null || session.trim().isEmpty()) {
+         return ALWAYS_OPEN;
+      }
+
+      String[] times = session.split("-");
+      if (times.length != 2) {
+         throw new IllegalArgumentException("Market session should look like 09:30-16:00, not " + session);
+      }
+
+      if (days == null) {
+         throw new IllegalArgumentException("Market days should look like MON,TUE,WED,THU,FRI");
+      }
+      Set<DayOfWeek> open = EnumSet.noneOf(DayOfWeek.class);
+      for (String day : days.split(",", -1)) {
+         open.add(parseDay(day));
+      }
+
+      Set<LocalDate> closed = new HashSet<>();
+      if (holidays != null) {
+         for (String holiday : holidays.split(",")) {
+            if (!holiday.trim().isEmpty()) {
+               closed.add(LocalDate.parse(holiday.trim()));
+            }
+         }
+      }
+
+      return new MarketHours(ZoneId.of(zone), LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()),
+            open, closed);
+   }
+
+   /**
+    * MON or MONDAY, in any case; nothing shorter, so T can't mean both TUE and THU.
+    */
+   private static DayOfWeek parseDay(String day) {
+      String name = day.trim().toUpperCase(Locale.ROOT);
+      for (DayOfWeek dayOfWeek : DayOfWeek.values()) {
+         String shortName = dayOfWeek.getDisplayName(TextStyle.SHORT, Locale.US);
+         if (name.equals(dayOfWeek.name()) || name.equalsIgnoreCase(shortName)) {
+            return dayOfWeek;
+         }
+      }
+      throw new IllegalArgumentException("Not a day of the week in market days: '" + day + "'");
+   }
+
+   public boolean isOpen(long millis) {
+      if (this == ALWAYS_OPEN) {
+         return true;
+      }
+
+      ZonedDateTime now = Instant.ofEpochMilli(millis).atZone(zone);
+      if (!days.contains(now.getDayOfWeek()) || holidays.contains(now.toLocalDate())) {
+         return false;
+      }
+      LocalTime time = now.toLocalTime();
+      return !time.isBefore(open) && time.isBefore(close);
+   }
+}
@@ -0,0 +1,169 @@
+package com.khs.stockticker;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the server's counters and latency histograms in the Prometheus text format for
+ * GET /metrics. Everything is read off the live counters at scrape time; nothing here runs per tick.
+ *
+ * Latencies are summaries in seconds, cumulative since the server started, with a separate _max
+ * gauge since the quantiles are rounded up to the top of their histogram bucket.
+ */
+public class MetricsReporter {
+   public static final String PATH = "/metrics";
+   public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+   private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+   private final QuoteEngine quoteEngine;
+   private final DeflateStats deflateStats;
+   private final QuoteCache quoteCache;
+
+   // closed channels drop out on their own
+   private final ChannelGroup connections = new DefaultChannelGroup("connections", GlobalEventExecutor.INSTANCE);
+   private final AtomicLong accepted = new AtomicLong();
+
+   /**
+    * @param deflateStats permessage-deflate counters, or null when compression is off
+    * @param quoteCache the quote API's cache, or null when there is none
+    */
+   public MetricsReporter(QuoteEngine quoteEngine, DeflateStats deflateStats, QuoteCache quoteCache) {
+      this.quoteEngine = quoteEngine;
+      this.deflateStats = deflateStats;
+      this.quoteCache = quoteCache;
+   }
+
+   /**
+    * Counts a newly accepted connection, HTTP or websocket.
+    */
+   public void connectionOpened(Channel channel) {
+      accepted.incrementAndGet();
+      connections.add(channel);
+   }
+
+   public String scrape() {
+      StringBuilder sb = new StringBuilder(4096);
+      OutboundStats outbound = quoteEngine.getOutboundStats();
+      QuoteSource quoteSource = quoteEngine.getQuoteSource();
+
+      gauge(sb, "stockticker_connections", "Open client connections.", connections.size());
+      counter(sb, "stockticker_connections_accepted_total", "Client connections accepted.", accepted.get());
+      gauge(sb, "stockticker_websocket_sessions", "Connections with at least one subscription.", quoteEngine.getChannelCount());
+      gauge(sb, "stockticker_subscriptions", "Symbol subscriptions summed over every connection.", quoteEngine.getSubscriptionCount());
+      gauge(sb, "stockticker_symbols", "Distinct symbols being polled.", quoteEngine.getSymbolCount());
+      gauge(sb, "stockticker_known_symbols", "Symbols the quote store has ever taken.", quoteEngine.getQuoteStore().size());
+      counter(sb, "stockticker_symbols_refused_total", "Commands refused because the quote store was full.",
+            quoteEngine.getSymbolsRefused());
+      gauge(sb, "stockticker_queued_bytes", "Bytes written to connections but not yet to their sockets.", quoteEngine.getQueuedBytes());
+      gauge(sb, "stockticker_alerts", "Price alerts waiting to fire.", quoteEngine.getAlertEngine().getCount());
+      counter(sb, "stockticker_alerts_triggered_total", "Price alerts fired.", quoteEngine.getAlertEngine().getTriggered());
+
+      counter(sb, "stockticker_frames_sent_total", "Quote frames written to clients.", outbound.getFramesSent());
+      counter(sb, "stockticker_bytes_sent_total", "Payload bytes of quote frames, before compression.", outbound.getBytesSent());
+      counter(sb, "stockticker_held_ticks_total", "Ticks held back from unwritable connections.", outbound.getHeldTicks());
+      counter(sb, "stockticker_conflated_updates_total", "Updates replaced by a newer price before being sent.", outbound.getConflatedUpdates());
+      counter(sb, "stockticker_slow_consumers_closed_total", "Connections closed for staying unwritable.", outbound.getSlowConsumersClosed());
+
+      if (quoteSource instanceof ClusterQuoteSource) {
+         ClusterQuoteSource cluster = (ClusterQuoteSource) quoteSource;
+         gauge(sb, "stockticker_cluster_nodes", "Cluster nodes up, this one included.", cluster.getNode().getLiveNodes().size());
+         gauge(sb, "stockticker_cluster_owned_symbols", "Wanted symbols this node fetches itself.", cluster.getOwnedCount());
+         counter(sb, "stockticker_cluster_ticks_relayed_total", "Ticks sent to other nodes.", cluster.getRelayed());
+         counter(sb, "stockticker_cluster_ticks_received_total", "Ticks received from other nodes.", cluster.getReceived());
+         quoteSource = cluster.getLocalSource();
+      }
+
+      if (quoteSource instanceof QuoteClient) {
+         QuoteClient quoteClient = (QuoteClient) quoteSource;
+         counter(sb, "stockticker_upstream_requests_total", "Quote batches requested upstream.", quoteClient.getRequests());
+         counter(sb, "stockticker_upstream_errors_total", "Quote batches that failed.", quoteClient.getErrors());
+         counter(sb, "stockticker_poll_deferred_total", "Times a due symbol waited for upstream request budget.",
+               quoteEngine.getPollScheduler().getDeferred());
+         summary(sb, "stockticker_upstream_fetch_seconds", "Time to fetch the symbols due in one poll.", quoteEngine.getFetchTimes());
+         summary(sb, "stockticker_upstream_parse_seconds", "Time to parse one upstream response.", quoteClient.getParseTimes());
+      } else if (quoteSource instanceof SimulatedQuoteSource) {
+         counter(sb, "stockticker_simulated_ticks_total", "Ticks written by the simulated feed.",
+               ((SimulatedQuoteSource) quoteSource).getTicks());
+      }
+      summary(sb, "stockticker_serialize_seconds", "Time to encode one JSON quote frame.", outbound.getSerializeTimes());
+      summary(sb, "stockticker_fanout_seconds", "Time from quotes landing in the store to a connection's frame being written.", outbound.getFanOutTimes());
+
+      TickJournal tickJournal = quoteEngine.getTickJournal();
+      if (tickJournal != null) {
+         counter(sb, "stockticker_journal_ticks_appended_total", "Ticks written to the tick journal.", tickJournal.getAppended());
+         counter(sb, "stockticker_journal_ticks_replayed_total", "Journaled ticks replayed to clients.", tickJournal.getReplayed());
+         gauge(sb, "stockticker_journal_open_symbols", "Symbols with their journal files open.", tickJournal.getOpen());
+         counter(sb, "stockticker_journal_segments_expired_total", "Journal files deleted for being past retention.", tickJournal.getExpired());
+      }
+
+      if (quoteCache != null) {
+         counter(sb, "stockticker_api_quote_hits_total", "Symbols served fresh from the quote cache.", quoteCache.getHits());
+         counter(sb, "stockticker_api_quote_stale_hits_total", "Symbols served stale while they reloaded.", quoteCache.getStaleHits());
+         counter(sb, "stockticker_api_quote_misses_total", "Symbols that waited for a load.", quoteCache.getMisses());
+         counter(sb, "stockticker_api_quote_loads_total", "Upstream loads started by the quote API.", quoteCache.getLoads());
+         counter(sb, "stockticker_api_quote_joined_loads_total", "Symbols that joined a load already running.", quoteCache.getJoinedLoads());
+         counter(sb, "stockticker_api_quote_throttled_total", "Symbols not loaded for lack of upstream budget.", quoteCache.getThrottled());
+      }
+
+      if (deflateStats != null) {
+         counter(sb, "stockticker_deflate_frames_compressed_total", "Frames sent compressed.", deflateStats.getFramesCompressed());
+         counter(sb, "stockticker_deflate_frames_skipped_total", "Frames too small to compress.", deflateStats.getFramesSkipped());
+         counter(sb, "stockticker_deflate_bytes_in_total", "Bytes going into the compressor.", deflateStats.getBytesIn());
+         counter(sb, "stockticker_deflate_bytes_out_total", "Bytes coming out of the compressor.", deflateStats.getBytesOut());
+         counter(sb, "stockticker_deflate_compress_seconds_total", "Time spent compressing frames.",
+               deflateStats.getCompressNanos() / 1e9);
+         counter(sb, "stockticker_deflate_frames_inflated_total", "Compressed frames received.", deflateStats.getFramesInflated());
+      }
+
+      gauge(sb, "jvm_memory_heap_used_bytes", "Heap in use.",
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+      gauge(sb, "jvm_threads_live", "Live JVM threads.", ManagementFactory.getThreadMXBean().getThreadCount());
+      return sb.toString();
+   }
+
+   private static void gauge(StringBuilder sb, String name, String help, long value) {
+      header(sb, name, help, "gauge");
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void counter(StringBuilder sb, String name, String help, long value) {
+      header(sb, name, help, "counter");
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void counter(StringBuilder sb, String name, String help, double value) {
+      header(sb, name, help, "counter");
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   /**
+    * The histogram is in microseconds; Prometheus wants seconds.
+    */
+   private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+      header(sb, name, help, "summary");
+      for (double quantile : QUANTILES) {
+         sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+           .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+      }
+      sb.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+      sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+
+      header(sb, name + "_max", "Largest " + name + " seen.", "gauge");
+      sb.append(name).append("_max ").append(seconds(histogram.getMax())).append('\n');
+   }
+
+   private static void header(StringBuilder sb, String name, String help, String type) {
+      sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+   }
+
+   private static double seconds(long micros) {
+      return micros / 1e6;
+   }
+}
@@ -13,9 +13,11 @@ import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpChunkedInput;
-import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.ssl.SslHandler;
@@ -32,6 +34,7 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.file.Paths;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -51,6 +54,17 @@ public class NettyHttpFileHandler {
    public    static final int HTTP_CACHE_SECONDS = 60;
    private   static final Object _lock = new Object();
    protected static MimetypesFileTypeMap mimeTypesMap;
+   protected static StaticAssetCache assetCache;
+
+   // SimpleDateFormat isn't thread safe, so keep one per event loop thread instead of one per request
+   private static final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
+      @Override
+      protected SimpleDateFormat initialValue() {
+         SimpleDateFormat formatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+         formatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+         return formatter;
+      }
+   };
 
    private String staticFileDir = "./webapp";
 
@@ -65,12 +79,16 @@ public class NettyHttpFileHandler {
                logger.error("Cannot load mime types!");
             }
          }
+
+         if (assetCache == null && mimeTypesMap != null) {
+            assetCache = new StaticAssetCache(staticFileDir, mimeTypesMap);
+         }
       }
    }
    
    public void sendFile(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
       // handle static files
-      final String uri = req.getUri();
+      final String uri = req.uri();
       final String path = sanitizeUri(uri);
 
       if (path == null) {
@@ -78,6 +96,14 @@ public class NettyHttpFileHandler {
          return;
       }
 
+      // served from memory when we can; anything else falls through to the disk path below
+      if (assetCache != null) {
+         StaticAssetCache.Asset asset = assetCache.get(path);
+         if (asset != null && !"application/octet-stream".equals(asset.getContentType()) && sendAsset(ctx, req, asset)) {
+            return;
+         }
+      }
+
       File file = new File(path);
       if ((!file.exists()) && "/index.html".equals(uri)) {
          file = new File(sanitizeUri("/index.html"));
@@ -99,19 +125,10 @@ public class NettyHttpFileHandler {
       }
 
       // Cache Validation
-      String ifModifiedSince = req.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
-      if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
-         SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-         Date ifModifiedSinceDate = dateFormatter.parse(ifModifiedSince);
-
-         // Only compare up to the second because the datetime format we send to the client
-         // does not have milliseconds
-         long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-         long fileLastModifiedSeconds = file.lastModified() / 1000;
-         if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-            sendNotModified(ctx);
-            return;
-         }
+      String ifModifiedSince = req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+      if (isNotModifiedSince(req, file.lastModified())) {
+         sendNotModified(ctx);
+         return;
       }
 
       RandomAccessFile raf;
@@ -125,11 +142,11 @@ public class NettyHttpFileHandler {
       long fileLength = raf.length();
 
       HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-      HttpHeaders.setContentLength(response, fileLength);
+      HttpUtil.setContentLength(response, fileLength);
       setContentTypeHeader(response, file);
       setDateAndCacheHeaders(response, file);
-      if (HttpHeaders.isKeepAlive(req)) {
-         response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+      if (HttpUtil.isKeepAlive(req)) {
+         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
       }
 
       // Write the initial line and the header.
@@ -166,15 +183,106 @@ public class NettyHttpFileHandler {
       });
 
       // Decide whether to close the connection or not.
-      if (!HttpHeaders.isKeepAlive(req)) {
+      if (!HttpUtil.isKeepAlive(req)) {
          // Close the connection when the whole content is written out.
          lastContentFuture.addListener(ChannelFutureListener.CLOSE);
       }
    }
 
+   /**
+    * Sends a cached asset, gzipped if the client accepts it. Returns false if the asset was dropped
+    * from the cache before it could be sent.
+    */
+   public boolean sendAsset(ChannelHandlerContext ctx, FullHttpRequest req, StaticAssetCache.Asset asset)
+         throws Exception {
+      boolean gzip = asset.hasGzip() && acceptsGzip(req);
+      String etag = asset.getEtag(gzip);
+
+      // Cache Validation, ETag first as it is exact
+      String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+      if (ifNoneMatch != null) {
+         if ("*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag)) {
+            sendNotModified(ctx);
+            return true;
+         }
+      } else if (isNotModifiedSince(req, asset.getLastModified())) {
+         sendNotModified(ctx);
+         return true;
+      }
+
+      ByteBuf content = asset.content(gzip);
+      if (content == null) {
+         return false;
+      }
+
+      FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+      HttpUtil.setContentLength(response, content.readableBytes());
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, asset.getContentType());
+      response.headers().set(HttpHeaderNames.ETAG, etag);
+      if (gzip) {
+         response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+      }
+      if (asset.hasGzip()) {
+         response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+      }
+      setDateAndCacheHeaders(response, asset.getLastModified());
+
+      if (HttpUtil.isKeepAlive(req)) {
+         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+         ctx.writeAndFlush(response);
+      } else {
+         ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+      }
+      return true;
+   }
+
+   /**
+    * True if the request accepts gzip, i.e. lists gzip or * without q=0.
+    */
+   public static boolean acceptsGzip(FullHttpRequest req) {
+      String acceptEncoding = req.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+      if (acceptEncoding == null) {
+         return false;
+      }
+
+      for (String coding : acceptEncoding.split(",")) {
+         String[] parts = coding.split(";");
+         String name = parts[0].trim();
+         if ("gzip".equalsIgnoreCase(name) || "*".equals(name)) {
+            for (int i = 1; i < parts.length; i++) {
+               String param = parts[i].trim();
+               if (param.startsWith("q=")) {
+                  try {
+                     return Float.parseFloat(param.substring(2)) > 0f;
+                  } catch (NumberFormatException e) {
+                     return false;
+                  }
+               }
+            }
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean isNotModifiedSince(FullHttpRequest req, long lastModified) throws ParseException {
+      String ifModifiedSince = req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+      if (ifModifiedSince == null || ifModifiedSince.isEmpty()) {
+         return false;
+      }
+
+      Date ifModifiedSinceDate = dateFormatter.get().parse(ifModifiedSince);
+
+      // Only compare up to the second because the datetime format we send to the client
+      // does not have milliseconds
+      long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
+      long fileLastModifiedSeconds = lastModified / 1000;
+      return ifModifiedSinceDateSeconds == fileLastModifiedSeconds;
+   }
+
    public void sendRedirect(ChannelHandlerContext ctx, String newUri) {
       FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FOUND);
-      response.headers().set(HttpHeaders.Names.LOCATION, newUri);
+      response.headers().set(HttpHeaderNames.LOCATION, newUri);
 
       // Close the connection as soon as the error message is sent.
       ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
@@ -183,7 +291,7 @@ public class NettyHttpFileHandler {
    public void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
       FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8));
-      response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
 
       // Close the connection as soon as the error message is sent.
       ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
@@ -210,11 +318,8 @@ public class NettyHttpFileHandler {
     *            HTTP response
     */
    public void setDateHeader(FullHttpResponse response) {
-      SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-      dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
       Calendar time = new GregorianCalendar();
-      response.headers().set(HttpHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+      response.headers().set(HttpHeaderNames.DATE, dateFormatter.get().format(time.getTime()));
    }
 
    /**
@@ -226,19 +331,29 @@ public class NettyHttpFileHandler {
     *            file to extract content type
     */
    public void setDateAndCacheHeaders(HttpResponse response, File fileToCache) {
-      SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-      dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+      setDateAndCacheHeaders(response, fileToCache.lastModified());
+   }
+
+   /**
+    * Sets the Date and Cache headers for the HTTP Response
+    *
+    * @param response
+    *            HTTP response
+    * @param lastModified
+    *            last modified time of the content, in milliseconds
+    */
+   public void setDateAndCacheHeaders(HttpResponse response, long lastModified) {
+      SimpleDateFormat formatter = dateFormatter.get();
 
       // Date header
       Calendar time = new GregorianCalendar();
-      response.headers().set(HttpHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+      response.headers().set(HttpHeaderNames.DATE, formatter.format(time.getTime()));
 
       // Add cache headers
       time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-      response.headers().set(HttpHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
-      response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-      response.headers().set(
-            HttpHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+      response.headers().set(HttpHeaderNames.EXPIRES, formatter.format(time.getTime()));
+      response.headers().set(HttpHeaderNames.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
+      response.headers().set(HttpHeaderNames.LAST_MODIFIED, formatter.format(new Date(lastModified)));
    }
 
    /**
@@ -250,22 +365,22 @@ public class NettyHttpFileHandler {
     *            file to extract content type
     */
    public void setContentTypeHeader(HttpResponse response, File file) {
-      response.headers().set(HttpHeaders.Names.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
    }
 
    public void sendHttpResponse(ChannelHandlerContext ctx, FullHttpRequest req, FullHttpResponse res) {
-      if (res.getStatus().code() != 200) {
-         ByteBuf f = Unpooled.copiedBuffer(res.getStatus().toString(), CharsetUtil.UTF_8);
+      if (res.status().code() != 200) {
+         ByteBuf f = Unpooled.copiedBuffer(res.status().toString(), CharsetUtil.UTF_8);
          res.content().clear();
          res.content().writeBytes(f);
          f.release();
       }
 
-      HttpHeaders.setContentLength(res, res.content().readableBytes());
+      HttpUtil.setContentLength(res, res.content().readableBytes());
       ChannelFuture f1;
       f1 = ctx.channel().writeAndFlush(res);
 
-      if (!HttpHeaders.isKeepAlive(req) || res.getStatus().code() != 200) {
+      if (!HttpUtil.isKeepAlive(req) || res.status().code() != 200) {
          f1.addListener(ChannelFutureListener.CLOSE);
       }
    }
@@ -0,0 +1,87 @@
+package com.khs.stockticker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what the sessions sent, and for what they did with updates their clients couldn't
+ * take yet. Shared by every session of an engine.
+ */
+public class OutboundStats {
+   private final AtomicLong heldTicks = new AtomicLong();
+   private final AtomicLong conflatedUpdates = new AtomicLong();
+   private final AtomicLong slowConsumersClosed = new AtomicLong();
+
+   // bumped for every frame from every event loop, hence LongAdders
+   private final LongAdder framesSent = new LongAdder();
+   private final LongAdder bytesSent = new LongAdder();
+
+   // microseconds
+   private final LatencyHistogram serializeTimes = new LatencyHistogram();
+   private final LatencyHistogram fanOutTimes = new LatencyHistogram();
+
+   /**
+    * Quote frames written, snapshots and deltas; command acks aren't counted.
+    */
+   public long getFramesSent() {
+      return framesSent.sum();
+   }
+
+   /**
+    * Payload bytes of those frames, before any compression.
+    */
+   public long getBytesSent() {
+      return bytesSent.sum();
+   }
+
+   /**
+    * How long encoding a quote frame takes.
+    */
+   public LatencyHistogram getSerializeTimes() {
+      return serializeTimes;
+   }
+
+   /**
+    * From a batch of quotes landing in the store to a session writing its frame for it.
+    */
+   public LatencyHistogram getFanOutTimes() {
+      return fanOutTimes;
+   }
+
+   /**
+    * Ticks a session sent nothing for because its channel was unwritable.
+    */
+   public long getHeldTicks() {
+      return heldTicks.get();
+   }
+
+   /**
+    * Symbol updates that were replaced by a newer price before they could be sent.
+    */
+   public long getConflatedUpdates() {
+      return conflatedUpdates.get();
+   }
+
+   /**
+    * Connections closed for staying unwritable too long.
+    */
+   public long getSlowConsumersClosed() {
+      return slowConsumersClosed.get();
+   }
+
+   void heldTick(int conflated) {
+      heldTicks.incrementAndGet();
+      if (conflated > 0) {
+         conflatedUpdates.addAndGet(conflated);
+      }
+   }
+
+   void frameSent(int bytes) {
+      framesSent.increment();
+      bytesSent.add(bytes);
+   }
+
+   void slowConsumerClosed() {
+      slowConsumersClosed.incrementAndGet();
+   }
+}
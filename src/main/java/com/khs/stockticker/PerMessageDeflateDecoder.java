@@ -0,0 +1,120 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the compressed messages a permessage-deflate client sends. Client messages are small
+ * commands, but they may still come fragmented, so a message that started compressed stays
+ * compressed through its continuation frames. Anything that inflates past
+ * {@link #MAX_MESSAGE_BYTES} closes the connection.
+ */
+public class PerMessageDeflateDecoder extends WebSocketExtensionDecoder {
+   private static final Logger logger = LoggerFactory.getLogger(PerMessageDeflateDecoder.class);
+
+   // same limit the frame decoder puts on an uncompressed frame
+   public static final int MAX_MESSAGE_BYTES = 65536;
+
+   private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+   private final Inflater inflater = new Inflater(true);
+   private final boolean noContextTakeover;
+   private final DeflateStats stats;
+   private byte[] input = new byte[256];
+   private boolean inflating;
+   private int messageBytes;
+
+   public PerMessageDeflateDecoder(boolean noContextTakeover, DeflateStats stats) {
+      this.noContextTakeover = noContextTakeover;
+      this.stats = stats;
+   }
+
+   @Override
+   public boolean acceptInboundMessage(Object msg) throws Exception {
+      if (msg instanceof ContinuationWebSocketFrame) {
+         return inflating;
+      }
+      return (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame)
+            && (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) != 0;
+   }
+
+   @Override
+   protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+      ByteBuf content = frame.content();
+      int length = content.readableBytes();
+      if (input.length < length) {
+         input = new byte[Math.max(length, input.length * 2)];
+      }
+      content.getBytes(content.readerIndex(), input, 0, length);
+
+      ByteBuf inflated = ctx.alloc().heapBuffer(Math.max(length * 2, 64));
+      try {
+         inflate(input, length, inflated);
+         if (frame.isFinalFragment()) {
+            inflate(TAIL, TAIL.length, inflated);
+            if (noContextTakeover || inflater.finished()) {
+               inflater.reset();
+            }
+         }
+      } catch (DataFormatException | IllegalStateException e) {
+         inflated.release();
+         logger.warn("Closing {}: bad compressed message ({})", ctx.channel(), e.getMessage());
+         ctx.close();
+         return;
+      }
+
+      boolean last = frame.isFinalFragment();
+      inflating = !last;
+      if (last) {
+         messageBytes = 0;
+      }
+      stats.inflated();
+
+      int rsv = frame.rsv() & ~WebSocketExtension.RSV1;
+      if (frame instanceof TextWebSocketFrame) {
+         out.add(new TextWebSocketFrame(last, rsv, inflated));
+      } else if (frame instanceof BinaryWebSocketFrame) {
+         out.add(new BinaryWebSocketFrame(last, rsv, inflated));
+      } else {
+         out.add(new ContinuationWebSocketFrame(last, rsv, inflated));
+      }
+   }
+
+   private void inflate(byte[] bytes, int length, ByteBuf out) throws DataFormatException {
+      inflater.setInput(bytes, 0, length);
+      while (true) {
+         out.ensureWritable(256);
+         int written = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+         out.writerIndex(out.writerIndex() + written);
+         messageBytes += written;
+         if (messageBytes > MAX_MESSAGE_BYTES) {
+            throw new IllegalStateException("message inflates past " + MAX_MESSAGE_BYTES + " bytes");
+         }
+         if (inflater.needsDictionary()) {
+            throw new DataFormatException("preset dictionary");
+         }
+         // a full buffer may mean zlib has more output waiting
+         if (out.isWritable() && (inflater.needsInput() || inflater.finished())) {
+            break;
+         }
+      }
+   }
+
+   @Override
+   public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      inflater.end();
+      super.handlerRemoved(ctx);
+   }
+}
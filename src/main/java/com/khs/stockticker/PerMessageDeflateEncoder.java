@@ -0,0 +1,103 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outgoing text and binary frames for one permessage-deflate connection.
+ *
+ * The server never fragments, so each frame is a whole message: it's deflated with a sync flush
+ * and the trailing empty block the flush leaves (00 00 ff ff) is cut off, as RFC 7692 asks.
+ * Frames under minBytes (acks, one-symbol deltas) go out as they are - deflate would barely
+ * shrink them and it isn't free.
+ */
+public class PerMessageDeflateEncoder extends WebSocketExtensionEncoder {
+   private static final int TAIL_LENGTH = 4;
+
+   private final Deflater deflater;
+   private final boolean noContextTakeover;
+   private final int minBytes;
+   private final DeflateStats stats;
+   private byte[] input = new byte[1024];
+
+   public PerMessageDeflateEncoder(int compressionLevel, boolean noContextTakeover, int minBytes, DeflateStats stats) {
+      this.deflater = new Deflater(compressionLevel, true);
+      this.noContextTakeover = noContextTakeover;
+      this.minBytes = minBytes;
+      this.stats = stats;
+   }
+
+   @Override
+   public boolean acceptOutboundMessage(Object msg) throws Exception {
+      if (!(msg instanceof TextWebSocketFrame) && !(msg instanceof BinaryWebSocketFrame)) {
+         return false;
+      }
+      WebSocketFrame frame = (WebSocketFrame) msg;
+      return frame.isFinalFragment() && (frame.rsv() & WebSocketExtension.RSV1) == 0;
+   }
+
+   @Override
+   protected void encode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+      ByteBuf content = frame.content();
+      int length = content.readableBytes();
+      if (length < minBytes) {
+         stats.skipped();
+         out.add(frame.retain());
+         return;
+      }
+
+      long start = System.nanoTime();
+      if (content.hasArray()) {
+         deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), length);
+      } else {
+         if (input.length < length) {
+            input = new byte[Math.max(length, input.length * 2)];
+         }
+         content.getBytes(content.readerIndex(), input, 0, length);
+         deflater.setInput(input, 0, length);
+      }
+
+      // deflate straight into the frame's backing array
+      ByteBuf compressed = ctx.alloc().heapBuffer(length / 2 + 64);
+      try {
+         while (true) {
+            int written = deflater.deflate(compressed.array(), compressed.arrayOffset() + compressed.writerIndex(),
+                  compressed.writableBytes(), Deflater.SYNC_FLUSH);
+            compressed.writerIndex(compressed.writerIndex() + written);
+            if (compressed.isWritable()) {
+               break;
+            }
+            compressed.ensureWritable(compressed.capacity());
+         }
+      } catch (RuntimeException e) {
+         compressed.release();
+         throw e;
+      }
+      compressed.writerIndex(compressed.writerIndex() - TAIL_LENGTH);
+      if (noContextTakeover) {
+         deflater.reset();
+      }
+      stats.compressed(length, compressed.readableBytes(), System.nanoTime() - start);
+
+      int rsv = frame.rsv() | WebSocketExtension.RSV1;
+      if (frame instanceof TextWebSocketFrame) {
+         out.add(new TextWebSocketFrame(true, rsv, compressed));
+      } else {
+         out.add(new BinaryWebSocketFrame(true, rsv, compressed));
+      }
+   }
+
+   @Override
+   public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      deflater.end();
+      super.handlerRemoved(ctx);
+   }
+}
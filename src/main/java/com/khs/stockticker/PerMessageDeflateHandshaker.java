@@ -0,0 +1,164 @@
+package com.khs.stockticker;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Negotiates permessage-deflate (RFC 7692) for a WebSocketServerExtensionHandler.
+ *
+ * java.util.zip always compresses with a 32K window, so an offer that limits the server's window
+ * is declined and the connection goes on uncompressed. What the client may use is up to us:
+ * clientMaxWindowBits and clientContextTakeover are sent back to every client that allows it.
+ * Without server context takeover each message is compressed on its own, which costs ratio but
+ * saves the deflater's history between frames.
+ */
+public class PerMessageDeflateHandshaker implements WebSocketServerExtensionHandshaker {
+   public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+   private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+   private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+   private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+   private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+   private static final int MAX_WINDOW_BITS = 15;
+   private static final int MIN_WINDOW_BITS = 8;
+
+   private final int compressionLevel;
+   private final boolean serverContextTakeover;
+   private final boolean clientContextTakeover;
+   private final int clientMaxWindowBits;
+   private final int minBytes;
+   private final DeflateStats stats = new DeflateStats();
+
+   /**
+    * @param compressionLevel      0-9, as for java.util.zip.Deflater
+    * @param serverContextTakeover keep compression history between frames sent to a client
+    * @param clientContextTakeover let clients keep theirs between the frames they send
+    * @param clientMaxWindowBits   largest window clients may compress with, 8-15
+    * @param minBytes              frames smaller than this go out uncompressed
+    */
+   public PerMessageDeflateHandshaker(int compressionLevel, boolean serverContextTakeover, boolean clientContextTakeover,
+                                      int clientMaxWindowBits, int minBytes) {
+      if (compressionLevel < 0 || compressionLevel > 9) {
+         throw new IllegalArgumentException("compressionLevel must be 0-9: " + compressionLevel);
+      }
+      if (clientMaxWindowBits < MIN_WINDOW_BITS || clientMaxWindowBits > MAX_WINDOW_BITS) {
+         throw new IllegalArgumentException("clientMaxWindowBits must be 8-15: " + clientMaxWindowBits);
+      }
+
+      this.compressionLevel = compressionLevel;
+      this.serverContextTakeover = serverContextTakeover;
+      this.clientContextTakeover = clientContextTakeover;
+      this.clientMaxWindowBits = clientMaxWindowBits;
+      this.minBytes = minBytes;
+   }
+
+   public DeflateStats getStats() {
+      return stats;
+   }
+
+   @Override
+   public WebSocketServerExtension handshakeExtension(WebSocketExtensionData offer) {
+      if (!PERMESSAGE_DEFLATE.equals(offer.name())) {
+         return null;
+      }
+
+      boolean serverNoContext = !serverContextTakeover;
+      boolean clientWindowAllowed = false;
+      int clientWindowBits = clientMaxWindowBits;
+      for (Map.Entry<String, String> parameter : offer.parameters().entrySet()) {
+         String value = parameter.getValue();
+         switch (parameter.getKey()) {
+            case SERVER_NO_CONTEXT_TAKEOVER:
+               serverNoContext = true;
+               break;
+            case CLIENT_NO_CONTEXT_TAKEOVER:
+               // only tells us what the client will do anyway
+               break;
+            case SERVER_MAX_WINDOW_BITS:
+               if (windowBits(value) != MAX_WINDOW_BITS) {
+                  return null;
+               }
+               break;
+            case CLIENT_MAX_WINDOW_BITS:
+               clientWindowAllowed = true;
+               if (value != null) {
+                  int offered = windowBits(value);
+                  if (offered < 0) {
+                     return null;
+                  }
+                  clientWindowBits = Math.min(clientWindowBits, offered);
+               }
+               break;
+            default:
+               // RFC 7692 says to decline offers with parameters we don't know
+               return null;
+         }
+      }
+
+      Map<String, String> response = new HashMap<>();
+      if (serverNoContext) {
+         response.put(SERVER_NO_CONTEXT_TAKEOVER, null);
+      }
+      if (!clientContextTakeover) {
+         response.put(CLIENT_NO_CONTEXT_TAKEOVER, null);
+      }
+      if (clientWindowAllowed && clientWindowBits < MAX_WINDOW_BITS) {
+         response.put(CLIENT_MAX_WINDOW_BITS, Integer.toString(clientWindowBits));
+      }
+      return new PerMessageDeflateExtension(serverNoContext, !clientContextTakeover, new WebSocketExtensionData(PERMESSAGE_DEFLATE, response));
+   }
+
+   /**
+    * The value of a window bits parameter, or -1 if it is missing or out of range.
+    */
+   private static int windowBits(String value) {
+      if (value == null) {
+         return -1;
+      }
+      try {
+         int bits = Integer.parseInt(value.trim());
+         return bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS ? bits : -1;
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private class PerMessageDeflateExtension implements WebSocketServerExtension {
+      private final boolean serverNoContext;
+      private final boolean clientNoContext;
+      private final WebSocketExtensionData responseData;
+
+      PerMessageDeflateExtension(boolean serverNoContext, boolean clientNoContext, WebSocketExtensionData responseData) {
+         this.serverNoContext = serverNoContext;
+         this.clientNoContext = clientNoContext;
+         this.responseData = responseData;
+      }
+
+      @Override
+      public int rsv() {
+         return RSV1;
+      }
+
+      @Override
+      public WebSocketExtensionEncoder newExtensionEncoder() {
+         return new PerMessageDeflateEncoder(compressionLevel, serverNoContext, minBytes, stats);
+      }
+
+      @Override
+      public WebSocketExtensionDecoder newExtensionDecoder() {
+         return new PerMessageDeflateDecoder(clientNoContext, stats);
+      }
+
+      @Override
+      public WebSocketExtensionData newReponseData() {
+         return responseData;
+      }
+   }
+}
@@ -0,0 +1,302 @@
+package com.khs.stockticker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides which symbols a pull source is asked for, and when.
+ *
+ * Every symbol gets its own poll interval, starting from the base interval and shortened for symbols
+ * many clients watch and for ones that have been moving, lengthened for ones that haven't, within
+ * [min, max]. While the market is closed everything drops to the closed interval, and is polled
+ * again as soon as it opens.
+ *
+ * Upstream requests are held to a requests-per-second budget with a token bucket. When symbols come
+ * due they are packed into as few requests as they fit, most overdue first, and any room left in
+ * the last request is filled with the symbols due next, which are fresher for free. Symbols the
+ * budget can't cover this time stay due and go first next time. Fetches outside the schedule, such
+ * as the quote API's, draw on the same budget through {@link #acquire}.
+ *
+ * The engine calls {@link #due} from its timer and {@link #polled} when the fetch completes, which
+ * may be on another thread, so everything here is synchronized; it runs a few times a second.
+ */
+public class PollScheduler {
+   public static final long TICK_MILLIS = 100L;
+   public static final long DEFAULT_MIN_INTERVAL_MILLIS = 500L;
+   public static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000L;
+   public static final long DEFAULT_CLOSED_INTERVAL_MILLIS = 300000L;
+   public static final double DEFAULT_REQUESTS_PER_SECOND = 10.0;
+
+   // a symbol that moves this much (0.1%) per base interval keeps the base interval
+   private static final double REFERENCE_MOVE = 0.001;
+   private static final double MAX_VOLATILITY_FACTOR = 4.0;
+
+   // weight of the newest poll in the moving average of how far a symbol moves
+   private static final double VOLATILITY_WEIGHT = 0.3;
+
+   private static final Comparator<SymbolState> BY_NEXT_DUE = new Comparator<SymbolState>() {
+      @Override
+      public int compare(SymbolState a, SymbolState b) {
+         return Long.compare(a.nextDue, b.nextDue);
+      }
+   };
+
+   private final long baseIntervalMillis;
+   private final long minIntervalMillis;
+   private final long maxIntervalMillis;
+   private final long closedIntervalMillis;
+   private final double requestsPerSecond;
+   private final MarketHours marketHours;
+
+   private final Map<String, SymbolState> symbols = new HashMap<>();
+   private double tokens;
+   private long refilledAt;
+   private boolean open = true;
+
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong deferred = new AtomicLong();
+
+   public PollScheduler(long baseIntervalMillis) {
+      this(baseIntervalMillis, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS, DEFAULT_CLOSED_INTERVAL_MILLIS,
+            DEFAULT_REQUESTS_PER_SECOND, MarketHours.ALWAYS_OPEN);
+   }
+
+   /**
+    * @param baseIntervalMillis interval for a symbol with one watcher that moves about 0.1% per interval
+    * @param requestsPerSecond  upstream request budget, 0 for none
+    */
+   public PollScheduler(long baseIntervalMillis, long minIntervalMillis, long maxIntervalMillis,
+                        long closedIntervalMillis, double requestsPerSecond, MarketHours marketHours) {
+      this.baseIntervalMillis = baseIntervalMillis;
+      this.minIntervalMillis = minIntervalMillis;
+      this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+      this.closedIntervalMillis = closedIntervalMillis;
+      this.requestsPerSecond = requestsPerSecond;
+      this.marketHours = marketHours;
+      this.tokens = Math.max(1.0, requestsPerSecond);
+   }
+
+   /**
+    * Upstream requests the scheduler has spent its budget on.
+    */
+   public long getRequests() {
+      return requests.get();
+   }
+
+   /**
+    * Times a due symbol had to wait for budget.
+    */
+   public long getDeferred() {
+      return deferred.get();
+   }
+
+   public synchronized int getSymbolCount() {
+      return symbols.size();
+   }
+
+   /**
+    * A new symbol is due straight away.
+    */
+   public synchronized void add(String symbol) {
+      if (!symbols.containsKey(symbol)) {
+         symbols.put(symbol, new SymbolState(symbol));
+      }
+   }
+
+   public synchronized void remove(String symbol) {
+      symbols.remove(symbol);
+   }
+
+   /**
+    * The symbols to fetch now, in the order to ask for them so the source batches them as they were
+    * packed. Empty if nothing is due or the budget is spent.
+    */
+   public synchronized List<String> due(long now, QuoteSource source) {
+      refill(now);
+
+      boolean wasOpen = open;
+      open = marketHours.isOpen(now);
+      List<SymbolState> due = new ArrayList<>();
+      List<SymbolState> upcoming = new ArrayList<>();
+      for (SymbolState state : symbols.values()) {
+         if (open && !wasOpen) {
+            // the market just opened, so nothing should sit out a closed-market interval
+            state.nextDue = now;
+         }
+         if (!state.inFlight) {
+            (state.nextDue <= now ? due : upcoming).add(state);
+         }
+      }
+      if (due.isEmpty()) {
+         return Collections.emptyList();
+      }
+
+      // most overdue for its own interval first
+      final long at = now;
+      Collections.sort(due, new Comparator<SymbolState>() {
+         @Override
+         public int compare(SymbolState a, SymbolState b) {
+            return Double.compare((double) (at - b.nextDue) / b.interval, (double) (at - a.nextDue) / a.interval);
+         }
+      });
+
+      int maxRequests = requestsPerSecond > 0 ? (int) tokens : Integer.MAX_VALUE;
+      int capacity = source.getRequestCapacity();
+      List<String> picked = new ArrayList<>();
+      int packed = 0;
+      int used = 0;
+      for (SymbolState state : due) {
+         int cost = source.getRequestCost(state.symbol);
+         // a symbol that costs nothing never needs a request of its own
+         if (cost > 0 && (packed == 0 || used > capacity - cost)) {
+            if (packed == maxRequests) {
+               break;
+            }
+            packed++;
+            used = 0;
+         }
+         used += cost;
+         state.inFlight = true;
+         picked.add(state.symbol);
+      }
+      deferred.addAndGet(due.size() - picked.size());
+
+      // top up the last request with whatever comes due soonest
+      if (packed > 0 && used < capacity) {
+         Collections.sort(upcoming, BY_NEXT_DUE);
+         for (SymbolState state : upcoming) {
+            int cost = source.getRequestCost(state.symbol);
+            if (used <= capacity - cost) {
+               used += cost;
+               state.inFlight = true;
+               picked.add(state.symbol);
+            }
+         }
+      }
+
+      if (requestsPerSecond > 0) {
+         tokens -= packed;
+      }
+      requests.addAndGet(packed);
+      return picked;
+   }
+
+   /**
+    * Spends budget on fetching symbols outside the schedule, as the quote API does when it misses,
+    * counting the requests the way due() packs them.
+    *
+    * @return how many of the symbols, from the front, the budget covers right now
+    */
+   public synchronized int acquire(List<String> symbols, QuoteSource source, long now) {
+      refill(now);
+
+      int maxRequests = requestsPerSecond > 0 ? (int) tokens : Integer.MAX_VALUE;
+      int capacity = source.getRequestCapacity();
+      int covered = 0;
+      int packed = 0;
+      int used = 0;
+      for (String symbol : symbols) {
+         int cost = source.getRequestCost(symbol);
+         if (cost > 0 && (packed == 0 || used > capacity - cost)) {
+            if (packed == maxRequests) {
+               break;
+            }
+            packed++;
+            used = 0;
+         }
+         used += cost;
+         covered++;
+      }
+
+      if (requestsPerSecond > 0) {
+         tokens -= packed;
+      }
+      requests.addAndGet(packed);
+      return covered;
+   }
+
+   /**
+    * Records a finished fetch of symbols, failed or not, and schedules each one's next poll.
+    *
+    * @param watchers how many clients are subscribed to a symbol
+    */
+   public synchronized void polled(List<String> polled, QuoteStore store, ToIntFunction<String> watchers, long now) {
+      for (String symbol : polled) {
+         SymbolState state = symbols.get(symbol);
+         if (state == null) {
+            // unsubscribed while it was being fetched
+            continue;
+         }
+         state.inFlight = false;
+
+         int id = store.idOf(symbol);
+         long price = id >= 0 ? store.price(id) : QuoteStore.NO_PRICE;
+         if (price != QuoteStore.NO_PRICE) {
+            if (state.lastPrice != QuoteStore.NO_PRICE && state.lastPrice != 0 && state.polledAt > 0) {
+               // a random walk moves with the square root of time, so scale the move to one base interval
+               double move = Math.abs(price - state.lastPrice) / (double) Math.abs(state.lastPrice);
+               double elapsed = Math.max(1, now - state.polledAt);
+               move *= Math.sqrt(baseIntervalMillis / elapsed);
+               state.volatility += (move - state.volatility) * VOLATILITY_WEIGHT;
+            }
+            state.lastPrice = price;
+         }
+
+         state.polledAt = now;
+         state.interval = intervalFor(state, watchers.applyAsInt(symbol));
+         state.nextDue = now + state.interval;
+      }
+   }
+
+   /**
+    * Base interval divided by 1 + log2(watchers) and by how volatile the symbol has been relative to
+    * REFERENCE_MOVE (square-rooted and capped at 4x either way), then clamped to [min, max].
+    */
+   long intervalFor(SymbolState state, int watchers) {
+      if (!open) {
+         return closedIntervalMillis;
+      }
+
+      double watchFactor = 1 + Math.log(Math.max(1, watchers)) / Math.log(2);
+      double volatilityFactor = Math.sqrt(state.volatility / REFERENCE_MOVE);
+      volatilityFactor = Math.max(1 / MAX_VOLATILITY_FACTOR, Math.min(MAX_VOLATILITY_FACTOR, volatilityFactor));
+
+      long interval = (long) (baseIntervalMillis / (watchFactor * volatilityFactor));
+      return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, interval));
+   }
+
+   private void refill(long now) {
+      if (requestsPerSecond <= 0) {
+         return;
+      }
+      if (refilledAt > 0) {
+         // at most a second's worth saved up
+         tokens = Math.min(Math.max(1.0, requestsPerSecond), tokens + (now - refilledAt) * requestsPerSecond / 1000.0);
+      }
+      refilledAt = now;
+   }
+
+   static class SymbolState {
+      final String symbol;
+      long nextDue;
+      long interval;
+      long polledAt;
+      long lastPrice = QuoteStore.NO_PRICE;
+
+      // starts neutral, so a new symbol gets the base interval until it has shown how it moves
+      double volatility = REFERENCE_MOVE;
+      boolean inFlight;
+
+      SymbolState(String symbol) {
+         this.symbol = symbol;
+         // due now, and a 1ms interval puts it ahead of anything that is merely overdue
+         this.interval = 1;
+      }
+   }
+}
@@ -0,0 +1,303 @@
+package com.khs.stockticker;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Quotes for GET /api/quotes, for clients that would rather poll than hold a websocket open.
+ *
+ * The cache is the engine's own QuoteStore, whose slots carry the time each price was stored, so
+ * symbols some websocket client is watching are always fresh and cost the upstream nothing. A
+ * quote younger than the TTL is served as is. One past it but within the stale window is still
+ * served straight away while a reload runs in the background, and anything older, or never seen,
+ * waits for its load. Loads are single-flight: however many requests miss on a symbol at once,
+ * only one upstream fetch for it is in progress. Loads go through the engine, so the bars, the
+ * journal, the alerts and any websocket subscribers see the quotes they bring like polled ones.
+ *
+ * A symbol only gets a slot in the store once upstream has returned a price for it, so requests for
+ * made-up symbols can't fill the store up. Loads come out of the poll scheduler's requests-per-second
+ * budget, so REST traffic can't push the upstream past it; a symbol the budget can't cover is served
+ * as it stands, stale or missing.
+ *
+ * Responses carry an ETag built from the prices alone, so a client polling faster than prices move
+ * mostly gets an empty 304.
+ */
+public class QuoteCache {
+   public static final String PATH = "/api/quotes";
+   public static final long DEFAULT_TTL_MILLIS = 5000L;
+   public static final long DEFAULT_STALE_MILLIS = 60000L;
+   public static final int MAX_SYMBOLS = 200;
+
+   // what ticker symbols look like, e.g. GOOG, BRK-B, ^GSPC, EURUSD=X
+   private static final Pattern SYMBOL = Pattern.compile("[A-Za-z0-9.^=-]{1,16}");
+
+   private final QuoteEngine quoteEngine;
+   private final QuoteSource quoteSource;
+   private final QuoteStore quoteStore;
+
+   // loads spend the same upstream budget as polling
+   private final PollScheduler pollScheduler;
+   private final long ttlMillis;
+   private final long staleMillis;
+
+   // symbol -> the load it is part of, while that load runs
+   private final ConcurrentMap<String, Future<Integer>> inFlight = new ConcurrentHashMap<>();
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder staleHits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder loads = new LongAdder();
+   private final LongAdder joinedLoads = new LongAdder();
+   private final LongAdder throttled = new LongAdder();
+
+   public QuoteCache(QuoteEngine quoteEngine) {
+      this(quoteEngine, DEFAULT_TTL_MILLIS, DEFAULT_STALE_MILLIS);
+   }
+
+   /**
+    * @param staleMillis how long past the TTL a quote may still be served while it is reloaded
+    */
+   public QuoteCache(QuoteEngine quoteEngine, long ttlMillis, long staleMillis) {
+      this.quoteEngine = quoteEngine;
+      this.quoteSource = quoteEngine.getQuoteSource();
+      this.quoteStore = quoteEngine.getQuoteStore();
+      this.pollScheduler = quoteEngine.getPollScheduler();
+      this.ttlMillis = ttlMillis;
+      this.staleMillis = staleMillis;
+   }
+
+   public long getTtlMillis() {
+      return ttlMillis;
+   }
+
+   /**
+    * Symbols served from a quote within the TTL.
+    */
+   public long getHits() {
+      return hits.sum();
+   }
+
+   /**
+    * Symbols served from an expired quote while it reloaded.
+    */
+   public long getStaleHits() {
+      return staleHits.sum();
+   }
+
+   /**
+    * Symbols that had to wait for a load.
+    */
+   public long getMisses() {
+      return misses.sum();
+   }
+
+   /**
+    * Upstream fetches started.
+    */
+   public long getLoads() {
+      return loads.sum();
+   }
+
+   /**
+    * Times a symbol was already being loaded and the request waited on that load instead.
+    */
+   public long getJoinedLoads() {
+      return joinedLoads.sum();
+   }
+
+   /**
+    * Symbols that needed a load but didn't get one, the upstream budget being spent.
+    */
+   public long getThrottled() {
+      return throttled.sum();
+   }
+
+   /**
+    * Whether the text looks like a ticker symbol, which also means it needs no escaping in JSON.
+    */
+   public static boolean isSymbol(String symbol) {
+      return SYMBOL.matcher(symbol).matches();
+   }
+
+   /**
+    * Splits a symbols=A,B&symbols=C query into distinct symbols, in order. Returns null if there are
+    * none, too many, or any that don't look like a ticker symbol.
+    */
+   public static List<String> parseSymbols(List<String> values) {
+      if (values == null) {
+         return null;
+      }
+
+      Set<String> symbols = new LinkedHashSet<>();
+      for (String value : values) {
+         for (String symbol : value.split(",")) {
+            symbol = symbol.trim();
+            if (symbol.isEmpty()) {
+               continue;
+            }
+            if (!isSymbol(symbol)) {
+               return null;
+            }
+            symbols.add(symbol);
+         }
+      }
+      return symbols.isEmpty() || symbols.size() > MAX_SYMBOLS ? null : new ArrayList<>(symbols);
+   }
+
+   /**
+    * Starts a load, as far as the upstream budget allows, for every symbol that is expired and not
+    * already loading. The future completes, on executor, once every symbol too old to serve has a
+    * fresh quote or its load has failed or been refused; stale but servable symbols never hold it up.
+    */
+   public Future<Void> load(List<String> symbols, EventExecutor executor) {
+      long now = System.currentTimeMillis();
+      long[] quote = new long[3];
+      List<String> toFetch = null;
+      Promise<Integer> fetched = null;
+      Set<Future<Integer>> waitFor = null;
+
+      for (String symbol : symbols) {
+         // looked up, never added: only a quote from upstream gets a symbol into the store
+         int id = quoteStore.idOf(symbol);
+         long age = id >= 0 && quoteStore.read(id, quote) ? now - quote[2] : Long.MAX_VALUE;
+         if (age <= ttlMillis) {
+            hits.increment();
+            continue;
+         }
+
+         boolean servable = age <= ttlMillis + staleMillis;
+         if (servable) {
+            staleHits.increment();
+         } else {
+            misses.increment();
+         }
+
+         Future<Integer> loading = inFlight.get(symbol);
+         if (loading == null) {
+            if (fetched == null) {
+               fetched = executor.newPromise();
+               toFetch = new ArrayList<>();
+            }
+            loading = inFlight.putIfAbsent(symbol, fetched);
+            if (loading == null) {
+               toFetch.add(symbol);
+               loading = fetched;
+            } else {
+               joinedLoads.increment();
+            }
+         } else {
+            joinedLoads.increment();
+         }
+
+         if (!servable) {
+            if (waitFor == null) {
+               waitFor = Collections.newSetFromMap(new IdentityHashMap<Future<Integer>, Boolean>());
+            }
+            waitFor.add(loading);
+         }
+      }
+
+      if (toFetch != null && !toFetch.isEmpty()) {
+         int covered = pollScheduler.acquire(toFetch, quoteSource, now);
+         if (covered < toFetch.size()) {
+            // over budget: these keep whatever they have, stale or nothing, until a later request
+            List<String> refused = toFetch.subList(covered, toFetch.size());
+            throttled.add(refused.size());
+            for (String symbol : refused) {
+               inFlight.remove(symbol, fetched);
+            }
+            toFetch = new ArrayList<>(toFetch.subList(0, covered));
+         }
+
+         if (toFetch.isEmpty()) {
+            fetched.trySuccess(0);
+         } else {
+            fetch(toFetch, fetched);
+         }
+      }
+
+      if (waitFor == null) {
+         return executor.newSucceededFuture(null);
+      }
+
+      final Promise<Void> ready = executor.newPromise();
+      final AtomicInteger remaining = new AtomicInteger(waitFor.size());
+      for (Future<Integer> loading : waitFor) {
+         loading.addListener(new GenericFutureListener<Future<Integer>>() {
+            @Override
+            public void operationComplete(Future<Integer> future) {
+               if (remaining.decrementAndGet() == 0) {
+                  ready.trySuccess(null);
+               }
+            }
+         });
+      }
+      return ready;
+   }
+
+   /**
+    * Changes whenever any of the symbols' price or change does, and only then.
+    */
+   public String etag(List<String> symbols) {
+      long[] quote = new long[3];
+      long hash = 0xcbf29ce484222325L;
+      for (String symbol : symbols) {
+         int id = quoteStore.idOf(symbol);
+         boolean known = id >= 0 && quoteStore.read(id, quote);
+         hash = (hash ^ symbol.hashCode()) * 0x100000001b3L;
+         hash = (hash ^ (known ? quote[0] : QuoteStore.NO_PRICE)) * 0x100000001b3L;
+         hash = (hash ^ (known ? quote[1] : 0L)) * 0x100000001b3L;
+      }
+      return "\"" + Long.toHexString(hash) + "\"";
+   }
+
+   /**
+    * {"GOOG":{"price":"551.18","change":"-1.02","time":1445367221000},...}, leaving out symbols
+    * with no price. Symbols have been through parseSymbols, so they need no escaping.
+    */
+   public String toJson(List<String> symbols) {
+      long[] quote = new long[3];
+      StringBuilder sb = new StringBuilder(16 + symbols.size() * 64).append('{');
+      for (String symbol : symbols) {
+         int id = quoteStore.idOf(symbol);
+         if (id < 0 || !quoteStore.read(id, quote)) {
+            continue;
+         }
+         if (sb.length() > 1) {
+            sb.append(',');
+         }
+         sb.append('"').append(symbol).append("\":{\"price\":\"");
+         QuoteStore.appendPrice(sb, quote[0]).append("\",\"change\":\"");
+         QuoteStore.appendPrice(sb, quote[1]).append("\",\"time\":").append(quote[2]).append('}');
+      }
+      return sb.append('}').toString();
+   }
+
+   private void fetch(final List<String> symbols, final Promise<Integer> fetched) {
+      loads.increment();
+      quoteEngine.fetch(symbols).addListener(new GenericFutureListener<Future<Integer>>() {
+         @Override
+         public void operationComplete(Future<Integer> future) {
+            for (String symbol : symbols) {
+               inFlight.remove(symbol, fetched);
+            }
+            Integer stored = future.getNow();
+            fetched.trySuccess(stored == null ? 0 : stored);
+         }
+      });
+   }
+}
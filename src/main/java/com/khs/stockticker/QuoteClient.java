@@ -0,0 +1,493 @@
+package com.khs.stockticker;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived, non-blocking client for the upstream quote service, the pull {@link QuoteSource}.
+ *
+ * Connections are kept alive and pooled per client, and large symbol sets are split into batches
+ * whose URLs stay under {@link #MAX_URL_LENGTH}. Batches run concurrently and their results are
+ * merged as they arrive.
+ */
+public class QuoteClient implements QuoteSource {
+   private static final Logger logger = LoggerFactory.getLogger(QuoteClient.class);
+
+   public static final String DEFAULT_BASE_URL = "http://query.yahooapis.com/v1/public/yql";
+
+   private static final String QUERY_START = "?q=select%20*%20from%20yahoo.finance.quotes%20where%20symbol%20in%20(";
+   private static final String QUERY_END = ")%0A%09%09&env=http%3A%2F%2Fdatatables.org%2Falltables.env&format=json";
+   private static final String SYMBOL_SEPARATOR = "%2C";
+
+   // stay well clear of the ~2k limit most proxies and servers put on a request line
+   public static final int MAX_URL_LENGTH = 2000;
+   public static final int DEFAULT_MAX_CONNECTIONS = 8;
+   public static final long REQUEST_TIMEOUT_MILLIS = 10000L;
+   private static final int MAX_RESPONSE_BYTES = 8 * 1024 * 1024;
+
+   private final EventLoopGroup group;
+   private final URI baseUri;
+   private final String host;
+   private final int port;
+   private final int maxConnections;
+   private final Bootstrap bootstrap;
+
+   // every batch URI is prefix, quoted symbols separated by SYMBOL_SEPARATOR, then QUERY_END
+   private final String prefix;
+   private final int fixedLength;
+
+   // idle keep-alive connections, most recently used first
+   private final Deque<Channel> idle = new ConcurrentLinkedDeque<>();
+
+   // batches waiting for a connection once maxConnections are busy
+   private final Queue<PendingRequest> pending = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger openConnections = new AtomicInteger();
+
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong errors = new AtomicLong();
+   private final LatencyHistogram parseTimes = new LatencyHistogram();
+
+   private volatile boolean closed = false;
+
+   public QuoteClient(EventLoopGroup group, String baseUrl) throws SSLException {
+      this(group, NioSocketChannel.class, baseUrl, DEFAULT_MAX_CONNECTIONS);
+   }
+
+   public QuoteClient(EventLoopGroup group, Class<? extends SocketChannel> channelClass, String baseUrl)
+         throws SSLException {
+      this(group, channelClass, baseUrl, DEFAULT_MAX_CONNECTIONS);
+   }
+
+   /**
+    * @param channelClass
+    *            socket channel type matching the group, e.g. EpollSocketChannel for an epoll group
+    */
+   public QuoteClient(EventLoopGroup group, Class<? extends SocketChannel> channelClass, String baseUrl,
+                      int maxConnections) throws SSLException {
+      this.group = group;
+      this.baseUri = URI.create(baseUrl);
+      this.maxConnections = maxConnections;
+
+      final boolean ssl = "https".equalsIgnoreCase(baseUri.getScheme());
+      this.host = baseUri.getHost();
+      this.port = baseUri.getPort() != -1 ? baseUri.getPort() : (ssl ? 443 : 80);
+      this.prefix = baseUri.getRawPath() + QUERY_START;
+      this.fixedLength = baseUri.getScheme().length() + 3 + baseUri.getRawAuthority().length() + QUERY_END.length();
+
+      final SslContext sslContext = ssl ? SslContextBuilder.forClient().build() : null;
+      this.bootstrap = new Bootstrap()
+            .group(group)
+            .channel(channelClass)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .handler(new ChannelInitializer<SocketChannel>() {
+               @Override
+               public void initChannel(SocketChannel ch) throws Exception {
+                  ChannelPipeline p = ch.pipeline();
+                  if (sslContext != null) {
+                     p.addLast("ssl", sslContext.newHandler(ch.alloc(), host, port));
+                  }
+                  p.addLast("codec", new HttpClientCodec());
+                  p.addLast("inflater", new HttpContentDecompressor());
+                  p.addLast("aggregator", new HttpObjectAggregator(MAX_RESPONSE_BYTES));
+                  p.addLast("handler", new QuoteResponseHandler());
+               }
+            });
+   }
+
+   /**
+    * Fetches the last trade price for every symbol and writes it into the store. The returned future
+    * always succeeds once every batch has finished, with the number of quotes stored; batches that
+    * fail are logged and simply contribute nothing.
+    */
+   @Override
+   public Future<Integer> fetch(Collection<String> symbols, final QuoteStore store) {
+      final Promise<Integer> result = group.next().newPromise();
+      final List<String> batches = buildBatchUris(symbols);
+      if (batches.isEmpty()) {
+         result.setSuccess(0);
+         return result;
+      }
+
+      final AtomicInteger updated = new AtomicInteger();
+      final AtomicInteger remaining = new AtomicInteger(batches.size());
+      for (final String uri : batches) {
+         Promise<Integer> batch = group.next().newPromise();
+         batch.addListener(new GenericFutureListener<Future<Integer>>() {
+            @Override
+            public void operationComplete(Future<Integer> future) {
+               if (future.isSuccess()) {
+                  updated.addAndGet(future.getNow());
+               } else {
+                  errors.incrementAndGet();
+                  logger.warn("Quote batch failed: {}", future.cause().toString());
+               }
+
+               if (remaining.decrementAndGet() == 0) {
+                  result.trySuccess(updated.get());
+               }
+            }
+         });
+         execute(new PendingRequest(uri, store, batch));
+      }
+
+      return result;
+   }
+
+   @Override
+   public boolean isPush() {
+      return false;
+   }
+
+   /**
+    * The URL length a batch may spend on symbols. The first symbol's separator is counted in here
+    * so that every symbol can cost the same.
+    */
+   @Override
+   public int getRequestCapacity() {
+      return MAX_URL_LENGTH - fixedLength - prefix.length() + SYMBOL_SEPARATOR.length();
+   }
+
+   @Override
+   public int getRequestCost(String symbol) {
+      return SYMBOL_SEPARATOR.length() + quote(symbol).length();
+   }
+
+   @Override
+   public void start(QuoteStore store, Listener listener) {
+      // polled by the engine
+   }
+
+   @Override
+   public void subscribed(String symbol) {
+      // the engine passes the symbols to every fetch
+   }
+
+   @Override
+   public void unsubscribed(String symbol) {
+   }
+
+   /**
+    * Batch requests sent upstream.
+    */
+   public long getRequests() {
+      return requests.get();
+   }
+
+   /**
+    * Batches that failed: connect errors, timeouts, non-200 answers and responses that wouldn't parse.
+    */
+   public long getErrors() {
+      return errors.get();
+   }
+
+   /**
+    * Microseconds spent parsing each upstream response.
+    */
+   public LatencyHistogram getParseTimes() {
+      return parseTimes;
+   }
+
+   @Override
+   public void close() {
+      closed = true;
+      Channel channel;
+      while ((channel = idle.poll()) != null) {
+         channel.close();
+      }
+
+      PendingRequest request;
+      while ((request = pending.poll()) != null) {
+         request.promise.tryFailure(new IllegalStateException("Quote client closed"));
+      }
+   }
+
+   /**
+    * Splits the symbols into request URIs (path and query) that each stay under MAX_URL_LENGTH.
+    */
+   List<String> buildBatchUris(Collection<String> symbols) {
+      List<String> uris = new ArrayList<>();
+      StringBuilder uri = null;
+      for (String symbol : symbols) {
+         String quoted = quote(symbol);
+         if (uri != null && fixedLength + uri.length() + SYMBOL_SEPARATOR.length() + quoted.length() > MAX_URL_LENGTH) {
+            uris.add(uri.append(QUERY_END).toString());
+            uri = null;
+         }
+
+         if (uri == null) {
+            uri = new StringBuilder(MAX_URL_LENGTH).append(prefix);
+         } else {
+            uri.append(SYMBOL_SEPARATOR);
+         }
+         uri.append(quoted);
+      }
+
+      if (uri != null) {
+         uris.add(uri.append(QUERY_END).toString());
+      }
+      return uris;
+   }
+
+   /**
+    * The symbol percent-encoded and in quotes, so nothing a client sends can break the request line
+    * or the query around it.
+    */
+   private static String quote(String symbol) {
+      try {
+         // the query is percent-encoded throughout, so a space is %20 rather than form encoding's +
+         return "%22" + URLEncoder.encode(symbol, "UTF-8").replace("+", "%20") + "%22";
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private void execute(PendingRequest request) {
+      if (closed) {
+         request.promise.tryFailure(new IllegalStateException("Quote client closed"));
+         return;
+      }
+
+      Channel channel = pollIdle();
+      if (channel != null) {
+         send(channel, request);
+         return;
+      }
+
+      if (openConnections.incrementAndGet() <= maxConnections) {
+         connect(request);
+      } else {
+         openConnections.decrementAndGet();
+         pending.add(request);
+
+         // a connection may have been released while this request was being queued
+         drainPending();
+      }
+   }
+
+   private void connect(final PendingRequest request) {
+      bootstrap.connect(host, port).addListener(new ChannelFutureListener() {
+         @Override
+         public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+               openConnections.decrementAndGet();
+               request.promise.tryFailure(future.cause());
+               drainPending();
+               return;
+            }
+
+            final Channel channel = future.channel();
+            channel.closeFuture().addListener(new ChannelFutureListener() {
+               @Override
+               public void operationComplete(ChannelFuture future) {
+                  idle.remove(channel);
+                  openConnections.decrementAndGet();
+                  drainPending();
+               }
+            });
+            send(channel, request);
+         }
+      });
+   }
+
+   private Channel pollIdle() {
+      Channel channel;
+      while ((channel = idle.poll()) != null) {
+         if (channel.isActive()) {
+            return channel;
+         }
+      }
+      return null;
+   }
+
+   private void release(Channel channel) {
+      if (closed) {
+         channel.close();
+         return;
+      }
+
+      PendingRequest request = pending.poll();
+      if (request != null) {
+         send(channel, request);
+      } else {
+         idle.offerFirst(channel);
+         drainPending();
+      }
+   }
+
+   private void drainPending() {
+      while (!pending.isEmpty()) {
+         Channel channel = pollIdle();
+         if (channel == null && openConnections.get() >= maxConnections) {
+            return;
+         }
+
+         PendingRequest request = pending.poll();
+         if (request == null) {
+            if (channel != null) {
+               idle.offerFirst(channel);
+            }
+            return;
+         }
+
+         if (channel != null) {
+            send(channel, request);
+         } else {
+            execute(request);
+         }
+      }
+   }
+
+   private void send(final Channel channel, final PendingRequest request) {
+      // the response handler is only ever touched from the connection's event loop
+      if (!channel.eventLoop().inEventLoop()) {
+         channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+               send(channel, request);
+            }
+         });
+         return;
+      }
+
+      FullHttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, request.uri);
+      httpRequest.headers().set(HttpHeaderNames.HOST, host);
+      httpRequest.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+      httpRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+
+      channel.pipeline().get(QuoteResponseHandler.class).begin(channel, request);
+      requests.incrementAndGet();
+      channel.writeAndFlush(httpRequest);
+   }
+
+   private static class PendingRequest {
+      final String uri;
+      final QuoteStore store;
+      final Promise<Integer> promise;
+
+      PendingRequest(String uri, QuoteStore store, Promise<Integer> promise) {
+         this.uri = uri;
+         this.store = store;
+         this.promise = promise;
+      }
+   }
+
+   /**
+    * One per pooled connection; completes the in-flight batch and hands the connection back.
+    */
+   private class QuoteResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+      private PendingRequest current;
+      private ScheduledFuture<?> timeout;
+
+      void begin(final Channel channel, PendingRequest request) {
+         current = request;
+         timeout = channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+               fail(new IllegalStateException("Quote request timed out"));
+               channel.close();
+            }
+         }, REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+         PendingRequest request = finish();
+         if (request == null) {
+            return;
+         }
+
+         if (response.status().code() != 200) {
+            request.promise.tryFailure(new IllegalStateException("Upstream returned " + response.status()));
+         } else {
+            try {
+               long start = System.nanoTime();
+               int parsed = QuoteResponseParser.parse(response.content(), request.store, System.currentTimeMillis());
+               parseTimes.record((System.nanoTime() - start) / 1000);
+               request.promise.trySuccess(parsed);
+            } catch (Exception e) {
+               request.promise.tryFailure(e);
+            }
+         }
+
+         if (HttpUtil.isKeepAlive(response)) {
+            release(ctx.channel());
+         } else {
+            ctx.close();
+         }
+      }
+
+      @Override
+      public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+         fail(new IllegalStateException("Upstream connection closed"));
+         super.channelInactive(ctx);
+      }
+
+      @Override
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+         fail(cause);
+         ctx.close();
+      }
+
+      private void fail(Throwable cause) {
+         PendingRequest request = finish();
+         if (request != null) {
+            request.promise.tryFailure(cause);
+         }
+      }
+
+      private PendingRequest finish() {
+         if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+         }
+         PendingRequest request = current;
+         current = null;
+         return request;
+      }
+   }
+}
@@ -0,0 +1,671 @@
+package com.khs.stockticker;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Process-wide quote engine shared by every WebSocket connection.
+ *
+ * Keeps a symbol -> subscriber registry, fetches each distinct symbol once per cycle and fans the
+ * result out to every channel subscribed to it, so upstream load follows the number of distinct
+ * symbols rather than the number of connections.
+ *
+ * Quotes come from a {@link QuoteSource}. A pull source is polled from a single shared
+ * {@link HashedWheelTimer}, armed only while somebody is subscribed, with a {@link PollScheduler}
+ * choosing which symbols are due and keeping to the upstream request budget; each completed fetch
+ * is fanned out to every session at once. A push source is told about each symbol as its first
+ * subscriber arrives and its last leaves, and every tick it reports is dispatched straight to that
+ * symbol's subscribers, optionally held for a short window so a burst of ticks goes out as one
+ * frame. Pushes run on each channel's own event loop. The thread count therefore stays flat no
+ * matter how many connections come and go.
+ */
+public class QuoteEngine {
+   private static final Logger logger = LoggerFactory.getLogger(QuoteEngine.class);
+
+   // base interval for the poll scheduler
+   public static final long POLL_INTERVAL_MILLIS = 2000L;
+
+   // record runs for every tick, on whichever thread brought it, so each thread reads quotes into its own
+   private static final ThreadLocal<long[]> recordQuote = new ThreadLocal<long[]>() {
+      @Override
+      protected long[] initialValue() {
+         return new long[3];
+      }
+   };
+
+   // how often the tick journal is swept for expired files
+   private static final long JOURNAL_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+   private final QuoteSource quoteSource;
+   private final long slowConsumerTimeoutMillis;
+   private final PollScheduler pollScheduler;
+   private final long dispatchWindowNanos;
+   private final TickJournal tickJournal;
+   private final OutboundStats outboundStats = new OutboundStats();
+
+   // microseconds from asking a pull source for a poll to every batch being in
+   private final LatencyHistogram fetchTimes = new LatencyHistogram();
+
+   // symbol -> channels that asked for it
+   private final ConcurrentMap<String, Set<Channel>> subscribers = new ConcurrentHashMap<>();
+
+   // latest quote per symbol, shared by every session
+   private final QuoteStore quoteStore;
+
+   // OHLC bars per symbol, fed by every quote that lands in the store
+   private final BarRollup barRollup = new BarRollup();
+
+   // price alerts, checked against every quote that lands in the store
+   private final AlertEngine alertEngine;
+
+   // subscribes to symbols with alerts on behalf of the alert engine, so they are fetched like any
+   // other; it has no session, so nothing is ever pushed to it
+   private final Channel alertWatcher = new LocalChannel();
+
+   // channel -> its session, removed when the channel goes away
+   private final ConcurrentMap<Channel, TickerSession> sessions = new ConcurrentHashMap<>();
+
+   // one timer thread for the whole process, no matter how many clients are connected
+   private final HashedWheelTimer timer = new HashedWheelTimer(
+         new ThreadFactoryBuilder()
+               .setDaemon(true)
+               .setNameFormat("quote-engine-%d")
+               .build()
+   );
+
+   // commands turned away because the store was full
+   private final AtomicLong symbolsRefused = new AtomicLong();
+
+   private final AtomicBoolean polling = new AtomicBoolean(false);
+   private volatile boolean stopped = false;
+   private volatile Timeout pollTimeout;
+
+   // subscribers per symbol, for the poll scheduler
+   private final ToIntFunction<String> watchers = symbol -> {
+      Set<Channel> channels = subscribers.get(symbol);
+      return channels == null ? 0 : channels.size();
+   };
+
+   private final TimerTask pollTask = new TimerTask() {
+      @Override
+      public void run(Timeout timeout) {
+         try {
+            pollOnce();
+         } catch (Exception e) {
+            logger.error("Quote poll failed", e);
+         }
+         scheduleNextPoll();
+      }
+   };
+
+   // clears out the journal files of symbols nobody has watched for a while
+   private final TimerTask expireTask = new TimerTask() {
+      @Override
+      public void run(Timeout timeout) {
+         try {
+            tickJournal.expire(System.currentTimeMillis());
+         } catch (Exception e) {
+            logger.error("Tick journal expiry failed", e);
+         }
+         if (!stopped) {
+            timer.newTimeout(this, JOURNAL_EXPIRY_MILLIS, TimeUnit.MILLISECONDS);
+         }
+      }
+   };
+
+   public QuoteEngine(QuoteSource quoteSource) {
+      this(quoteSource, TickerSession.DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * @param slowConsumerTimeoutMillis how long a connection may stay unwritable before it is closed,
+    *                                  0 to never close one
+    */
+   public QuoteEngine(QuoteSource quoteSource, long slowConsumerTimeoutMillis) {
+      this(quoteSource, slowConsumerTimeoutMillis, new PollScheduler(POLL_INTERVAL_MILLIS), 0L);
+   }
+
+   /**
+    * @param pollScheduler        when to poll which symbols of a pull source
+    * @param dispatchWindowMicros how long a session waits after a pushed tick before sending, so
+    *                             ticks landing meanwhile share its frame; 0 sends at once
+    */
+   public QuoteEngine(QuoteSource quoteSource, long slowConsumerTimeoutMillis, PollScheduler pollScheduler,
+                      long dispatchWindowMicros) {
+      this(quoteSource, slowConsumerTimeoutMillis, pollScheduler, dispatchWindowMicros, null);
+   }
+
+   /**
+    * @param tickJournal where every tick is recorded, for replay to new subscribers; null for none
+    */
+   public QuoteEngine(QuoteSource quoteSource, long slowConsumerTimeoutMillis, PollScheduler pollScheduler,
+                      long dispatchWindowMicros, TickJournal tickJournal) {
+      this(quoteSource, slowConsumerTimeoutMillis, pollScheduler, dispatchWindowMicros, tickJournal,
+            AlertEngine.DEFAULT_MAX_PER_CONNECTION);
+   }
+
+   /**
+    * @param maxAlertsPerConnection the most price alerts a connection may have waiting at once
+    */
+   public QuoteEngine(QuoteSource quoteSource, long slowConsumerTimeoutMillis, PollScheduler pollScheduler,
+                      long dispatchWindowMicros, TickJournal tickJournal, int maxAlertsPerConnection) {
+      this(quoteSource, slowConsumerTimeoutMillis, pollScheduler, dispatchWindowMicros, tickJournal,
+            maxAlertsPerConnection, QuoteStore.DEFAULT_MAX_SYMBOLS);
+   }
+
+   /**
+    * @param maxSymbols the most distinct symbols the server will ever track; see {@link #intern}
+    */
+   public QuoteEngine(QuoteSource quoteSource, long slowConsumerTimeoutMillis, PollScheduler pollScheduler,
+                      long dispatchWindowMicros, TickJournal tickJournal, int maxAlertsPerConnection,
+                      int maxSymbols) {
+      this.quoteSource = quoteSource;
+      this.quoteStore = new QuoteStore(maxSymbols);
+      this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+      this.pollScheduler = pollScheduler;
+      this.dispatchWindowNanos = TimeUnit.MICROSECONDS.toNanos(dispatchWindowMicros);
+      this.tickJournal = tickJournal;
+      this.alertEngine = new AlertEngine(quoteStore, maxAlertsPerConnection, new AlertEngine.Listener() {
+         @Override
+         public void watch(String symbol) {
+            addPeerSubscriber(alertWatcher, symbol);
+         }
+
+         @Override
+         public void unwatch(String symbol) {
+            removePeerSubscriber(alertWatcher, symbol);
+         }
+
+         @Override
+         public void triggered(Channel channel, String frame) {
+            TickerSession session = sessions.get(channel);
+            if (session != null) {
+               session.sendAlert(frame);
+            }
+         }
+      });
+      if (tickJournal != null) {
+         timer.newTimeout(expireTask, 0, TimeUnit.MILLISECONDS);
+      }
+      // pull sources may still report quotes that arrive between polls, as a cluster peer's do
+      quoteSource.start(quoteStore, new QuoteSource.Listener() {
+         @Override
+         public void quoteUpdated(int symbolId) {
+            if (!stopped) {
+               record(symbolId);
+               dispatch(symbolId);
+            }
+         }
+      });
+   }
+
+   public void stop() {
+      stopped = true;
+      Timeout timeout = pollTimeout;
+      if (timeout != null) {
+         timeout.cancel();
+      }
+      timer.stop();
+      quoteSource.close();
+   }
+
+   /**
+    * Makes sure the store knows every one of the symbols, which is what lets them be subscribed to.
+    * Symbols are never forgotten, so once the store is full only ones it already knows get through.
+    *
+    * @return false if the store is full and at least one of them is new; the rest stay known
+    */
+   public boolean intern(Collection<String> symbols) {
+      boolean interned = true;
+      for (String symbol : symbols) {
+         if (quoteStore.intern(symbol) < 0) {
+            interned = false;
+         }
+      }
+      if (!interned) {
+         symbolsRefused.incrementAndGet();
+      }
+      return interned;
+   }
+
+   public void subscribe(Channel channel, String symbol) {
+      subscribe(channel, Collections.singletonList(symbol));
+   }
+
+   public void unsubscribe(Channel channel, String symbol) {
+      unsubscribe(channel, Collections.singletonList(symbol));
+   }
+
+   /**
+    * Adds a batch of symbols and sends the client one snapshot for all of them.
+    */
+   public void subscribe(Channel channel, Collection<String> symbols) {
+      subscribe(channel, symbols, 0L, 0);
+   }
+
+   /**
+    * Like subscribe, but first replays each new symbol's journaled ticks from replaySince on, the
+    * newest replayLimit of them, before the snapshot. Nothing is replayed without a journal.
+    */
+   public void subscribe(Channel channel, Collection<String> symbols, long replaySince, int replayLimit) {
+      update(sessionFor(channel), new ArrayList<>(symbols), new ArrayList<String>(), replaySince, replayLimit);
+   }
+
+   /**
+    * Subscribes the channel to the symbols, then sends it their last limit bars in the interval and
+    * after that the latest bars whenever they change.
+    */
+   public void subscribeBars(Channel channel, Collection<String> symbols, int interval, int limit) {
+      TickerSession session = sessionFor(channel);
+      update(session, new ArrayList<>(symbols), new ArrayList<String>());
+      session.scheduleBars(barRollup, new ArrayList<>(symbols), interval, limit, quoteStore);
+   }
+
+   public void unsubscribe(Channel channel, Collection<String> symbols) {
+      TickerSession session = sessions.get(channel);
+      if (session != null) {
+         update(session, new ArrayList<String>(), new ArrayList<>(symbols));
+      }
+   }
+
+   /**
+    * Makes the channel's symbols exactly these, as one batch: whatever it had that isn't in the list
+    * goes, whatever is new comes in, and symbols in both are left alone.
+    */
+   public void replace(Channel channel, Collection<String> symbols) {
+      TickerSession session = sessionFor(channel);
+      Set<String> wanted = new LinkedHashSet<>(symbols);
+      List<String> toRemove = new ArrayList<>();
+      for (String symbol : session.getTickerSymbols()) {
+         if (!wanted.contains(symbol)) {
+            toRemove.add(symbol);
+         }
+      }
+      update(session, new ArrayList<>(wanted), toRemove);
+   }
+
+   /**
+    * Sets price alerts on the symbols for whichever of above, below (fixed-point prices) and
+    * movePercent (fixed-point percent) aren't NO_PRICE. Fired alerts are pushed to the channel.
+    *
+    * @return false, having set none, if the channel would have too many alerts
+    */
+   public boolean addAlerts(Channel channel, Collection<String> symbols, long above, long below, long movePercent) {
+      if (!channel.isActive()) {
+         // it has gone, and any alerts set now would outlive it
+         return true;
+      }
+      // the session's close hook is what clears them
+      sessionFor(channel);
+      return alertEngine.add(channel, symbols, above, below, movePercent);
+   }
+
+   /**
+    * Drops the channel's alerts on the symbols, or all of them for no symbols.
+    */
+   public void removeAlerts(Channel channel, Collection<String> symbols) {
+      if (symbols.isEmpty()) {
+         alertEngine.removeAll(channel);
+      } else {
+         alertEngine.remove(channel, symbols);
+      }
+   }
+
+   public void unsubscribeAll(Channel channel) {
+      alertEngine.removeAll(channel);
+      TickerSession session = sessions.remove(channel);
+      if (session != null) {
+         for (String symbol : session.getTickerSymbols()) {
+            removeSubscriber(channel, symbol);
+         }
+      }
+   }
+
+   /**
+    * Another cluster node wants the symbol's ticks relayed to it. Its channel counts as a subscriber
+    * for fetching and polling, but has no session, so nothing is pushed to it from here.
+    */
+   public void addPeerSubscriber(Channel peer, String symbol) {
+      addSubscriber(peer, symbol);
+      startPolling();
+   }
+
+   public void removePeerSubscriber(Channel peer, String symbol) {
+      removeSubscriber(peer, symbol);
+   }
+
+   /**
+    * Must be called on the channel's event loop, i.e. from channelWritabilityChanged.
+    */
+   public void writabilityChanged(Channel channel) {
+      TickerSession session = sessions.get(channel);
+      if (session != null) {
+         session.writabilityChanged(quoteStore);
+      }
+   }
+
+   public OutboundStats getOutboundStats() {
+      return outboundStats;
+   }
+
+   public LatencyHistogram getFetchTimes() {
+      return fetchTimes;
+   }
+
+   public QuoteSource getQuoteSource() {
+      return quoteSource;
+   }
+
+   public PollScheduler getPollScheduler() {
+      return pollScheduler;
+   }
+
+   /**
+    * Symbol subscriptions summed over every connection, so a symbol watched by three clients counts
+    * three times. Walks every session; meant for the occasional metrics scrape.
+    */
+   public long getSubscriptionCount() {
+      long count = 0;
+      for (TickerSession session : sessions.values()) {
+         count += session.getTickerSymbols().size();
+      }
+      return count;
+   }
+
+   /**
+    * Bytes queued for all connections that haven't made it to the socket yet.
+    */
+   public long getQueuedBytes() {
+      long queued = 0;
+      for (TickerSession session : sessions.values()) {
+         queued += session.getQueuedBytes();
+      }
+      return queued;
+   }
+
+   public int getSymbolCount() {
+      return subscribers.size();
+   }
+
+   public long getSymbolsRefused() {
+      return symbolsRefused.get();
+   }
+
+   public QuoteStore getQuoteStore() {
+      return quoteStore;
+   }
+
+   public TickJournal getTickJournal() {
+      return tickJournal;
+   }
+
+   public BarRollup getBarRollup() {
+      return barRollup;
+   }
+
+   public AlertEngine getAlertEngine() {
+      return alertEngine;
+   }
+
+   public int getChannelCount() {
+      return sessions.size();
+   }
+
+   private TickerSession sessionFor(final Channel channel) {
+      TickerSession session = sessions.get(channel);
+      if (session == null) {
+         TickerSession created = new TickerSession(channel, outboundStats, slowConsumerTimeoutMillis);
+         session = sessions.putIfAbsent(channel, created);
+         if (session == null) {
+            session = created;
+            channel.closeFuture().addListener(new ChannelFutureListener() {
+               @Override
+               public void operationComplete(ChannelFuture future) {
+                  unsubscribeAll(channel);
+               }
+            });
+         }
+      }
+      return session;
+   }
+
+   /**
+    * The session filters the batch down to what actually changed, so the registry and the poller
+    * only ever hear about each symbol once per channel.
+    */
+   private void update(TickerSession session, List<String> toAdd, List<String> toRemove) {
+      update(session, toAdd, toRemove, 0L, 0);
+   }
+
+   private void update(TickerSession session, List<String> toAdd, List<String> toRemove, long replaySince,
+                       int replayLimit) {
+      session.update(toAdd, toRemove, quoteStore);
+
+      Channel channel = session.getChannel();
+      for (String symbol : toRemove) {
+         removeSubscriber(channel, symbol);
+      }
+      for (String symbol : toAdd) {
+         addSubscriber(channel, symbol);
+      }
+
+      if (!toAdd.isEmpty()) {
+         if (tickJournal != null && replayLimit > 0) {
+            session.scheduleReplay(tickJournal, toAdd, replaySince, replayLimit, quoteStore);
+         }
+         session.scheduleSnapshot(quoteStore);
+         startPolling();
+      }
+   }
+
+   /**
+    * The quote source, the poll scheduler and the tick journal hear about a symbol's first subscriber
+    * and its last from inside compute, so the two can never arrive out of order.
+    */
+   private void addSubscriber(Channel channel, String symbol) {
+      subscribers.compute(symbol, (key, channels) -> {
+         if (channels == null) {
+            channels = ConcurrentHashMap.newKeySet();
+            // open before the source starts, so its first tick is journaled
+            if (tickJournal != null) {
+               tickJournal.open(key);
+            }
+            quoteSource.subscribed(key);
+            if (!quoteSource.isPush()) {
+               pollScheduler.add(key);
+            }
+         }
+         channels.add(channel);
+         return channels;
+      });
+   }
+
+   private void removeSubscriber(Channel channel, String symbol) {
+      subscribers.computeIfPresent(symbol, (key, channels) -> {
+         channels.remove(channel);
+         if (channels.isEmpty()) {
+            // out of the scheduler first, so the source is never polled for a symbol it has let go
+            pollScheduler.remove(key);
+            quoteSource.unsubscribed(key);
+            int id = quoteStore.idOf(key);
+            if (id >= 0) {
+               quoteStore.clear(id);
+            }
+            barRollup.remove(key);
+            if (tickJournal != null) {
+               tickJournal.release(key);
+            }
+            return null;
+         }
+         return channels;
+      });
+   }
+
+   private void startPolling() {
+      if (!stopped && !quoteSource.isPush() && polling.compareAndSet(false, true)) {
+         pollTimeout = timer.newTimeout(pollTask, 0, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   private void scheduleNextPoll() {
+      if (stopped) {
+         return;
+      }
+
+      if (subscribers.isEmpty()) {
+         // nobody is listening, so stop polling until the next subscribe
+         polling.set(false);
+
+         // a subscribe may have slipped in before the flag was cleared
+         if (!subscribers.isEmpty()) {
+            startPolling();
+         }
+         return;
+      }
+
+      // symbols still being fetched are never picked again, so a slow upstream can't make polls pile up
+      pollTimeout = timer.newTimeout(pollTask, PollScheduler.TICK_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Fetches whatever symbols the scheduler says are due and hands the shared result to every
+    * session, which picks out the changed symbols it asked for on its own event loop. The fetch
+    * itself never blocks; the returned future completes once every session has been handed the result.
+    */
+   Future<?> pollOnce() {
+      final long start = System.nanoTime();
+      final List<String> due = pollScheduler.due(System.currentTimeMillis(), quoteSource);
+      if (due.isEmpty()) {
+         return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+      }
+
+      final Future<Integer> fetch = quoteSource.fetch(due, quoteStore);
+      fetch.addListener(new GenericFutureListener<Future<Integer>>() {
+         @Override
+         public void operationComplete(Future<Integer> future) {
+            fetchTimes.record((System.nanoTime() - start) / 1000);
+            pollScheduler.polled(due, quoteStore, watchers, System.currentTimeMillis());
+            for (String symbol : due) {
+               record(quoteStore.idOf(symbol));
+            }
+            Integer updated = future.getNow();
+            if (updated != null && updated > 0) {
+               fanOut();
+            }
+         }
+      });
+      return fetch;
+   }
+
+   /**
+    * Fetches symbols off the poll schedule, as the quote API does on a miss, and hands the quotes
+    * of watched symbols to the bars, the journal, the alerts and the subscribers, as a poll would.
+    * The returned future is the source's, so listeners added to it run once that is done.
+    */
+   public Future<Integer> fetch(final List<String> symbols) {
+      Future<Integer> fetch = quoteSource.fetch(symbols, quoteStore);
+      fetch.addListener(new GenericFutureListener<Future<Integer>>() {
+         @Override
+         public void operationComplete(Future<Integer> future) {
+            Integer updated = future.getNow();
+            if (stopped || updated == null || updated == 0) {
+               return;
+            }
+            for (String symbol : symbols) {
+               // nobody watching means nothing to record, and bars for it would never be removed
+               int id = quoteStore.idOf(symbol);
+               if (id >= 0 && subscribers.containsKey(symbol)) {
+                  record(id);
+                  dispatch(id);
+               }
+            }
+         }
+      });
+      return fetch;
+   }
+
+   /**
+    * Feeds the symbol's quote to the bars and the journal, which both skip it if nothing changed,
+    * and to the alerts.
+    */
+   private void record(int symbolId) {
+      long[] quote = recordQuote.get();
+      if (symbolId < 0 || !quoteStore.read(symbolId, quote)) {
+         return;
+      }
+      String symbol = quoteStore.symbol(symbolId);
+      barRollup.update(symbol, quote[0], quote[1], quote[2]);
+      if (tickJournal != null) {
+         tickJournal.append(symbol, quote[0], quote[1], quote[2]);
+      }
+      alertEngine.check(symbol, quote[0], quote[2]);
+   }
+
+   /**
+    * Tells the symbol's subscribers it ticked. Sessions already waiting to send ignore it; the rest
+    * share a frame cache for the tick, made only once one of them needs it.
+    */
+   private void dispatch(int symbolId) {
+      Set<Channel> channels = subscribers.get(quoteStore.symbol(symbolId));
+      if (channels == null) {
+         return;
+      }
+
+      FrameCache frameCache = null;
+      try {
+         for (Channel channel : channels) {
+            TickerSession session = sessions.get(channel);
+            if (session != null && !session.isPushPending()) {
+               if (frameCache == null) {
+                  frameCache = new FrameCache(PooledByteBufAllocator.DEFAULT, outboundStats.getSerializeTimes());
+               }
+               session.dispatch(quoteStore, dispatchWindowNanos, frameCache);
+            }
+         }
+      } finally {
+         if (frameCache != null) {
+            frameCache.release();
+         }
+      }
+   }
+
+   /**
+    * Hands the store's latest quotes to every session.
+    */
+   private void fanOut() {
+      // one frame cache per tick, released once every session has sent from it
+      FrameCache frameCache = new FrameCache(PooledByteBufAllocator.DEFAULT, outboundStats.getSerializeTimes());
+      try {
+         for (TickerSession session : sessions.values()) {
+            session.schedulePush(quoteStore, frameCache);
+         }
+      } finally {
+         frameCache.release();
+      }
+   }
+}
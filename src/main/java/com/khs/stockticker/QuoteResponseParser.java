@@ -0,0 +1,247 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Pull parser for YQL quote responses that works straight off the response bytes.
+ *
+ * It walks query.results.quote, compares field names in place and writes Symbol,
+ * LastTradePriceOnly and Change straight into a {@link QuoteStore}: the symbol is looked up from its
+ * bytes and the numbers are parsed as fixed point, so a quote costs no allocation at all. Every
+ * other field is skipped without being decoded. Quotes may be an array or, for a single symbol, a
+ * bare object.
+ */
+public final class QuoteResponseParser extends JsonCursor {
+   private static final byte[] QUERY   = ascii("query");
+   private static final byte[] RESULTS = ascii("results");
+   private static final byte[] QUOTE   = ascii("quote");
+   private static final byte[] SYMBOL  = ascii("Symbol");
+   private static final byte[] PRICE   = ascii("LastTradePriceOnly");
+   private static final byte[] CHANGE  = ascii("Change");
+
+   private final QuoteStore store;
+   private final long timestamp;
+   private int updated;
+
+   private QuoteResponseParser(ByteBuf buf, QuoteStore store, long timestamp) {
+      reset(buf);
+      this.store = store;
+      this.timestamp = timestamp;
+   }
+
+   /**
+    * Stores every quote in the response that has a price. A symbol the store doesn't know yet, which
+    * only a REST load asks for, is added then, so made-up symbols never take up a slot. The buffer's
+    * indexes are left untouched.
+    *
+    * @return the number of quotes stored
+    * @throws IllegalArgumentException if the response is not well formed JSON
+    */
+   public static int parse(ByteBuf content, QuoteStore store, long timestamp) {
+      QuoteResponseParser parser = new QuoteResponseParser(content, store, timestamp);
+      parser.parse();
+      return parser.updated;
+   }
+
+   private void parse() {
+      if (!enterField(QUERY) || !enterField(RESULTS) || !enterField(QUOTE)) {
+         return;
+      }
+
+      byte c = peek();
+      if (c == '{') {
+         parseQuote();
+      } else if (c == '[') {
+         pos++;
+         if (peek() == ']') {
+            return;
+         }
+
+         do {
+            parseQuote();
+         } while (nextMember(']'));
+      }
+   }
+
+   private void parseQuote() {
+      if (peek() != '{') {
+         skipValue();
+         return;
+      }
+      pos++;
+
+      int symbolId = -1;
+      int symbolAt = -1;
+      long price = QuoteStore.NO_PRICE;
+      long change = QuoteStore.NO_PRICE;
+      if (peek() != '}') {
+         do {
+            if (matchName(SYMBOL)) {
+               symbolAt = peek() == '"' ? pos : -1;
+               symbolId = readSymbolId();
+            } else if (matchName(PRICE)) {
+               price = readFixed();
+            } else if (matchName(CHANGE)) {
+               change = readFixed();
+            } else {
+               skipNameAndValue();
+            }
+         } while (nextMember('}'));
+      } else {
+         pos++;
+      }
+
+      if (symbolId < 0 && symbolAt >= 0 && price != QuoteStore.NO_PRICE) {
+         // upstream has vouched for it; -1 if the store is full
+         symbolId = store.intern(readStringAt(symbolAt));
+      }
+
+      // prices such as "N/A" are left alone
+      if (symbolId >= 0 && price != QuoteStore.NO_PRICE) {
+         store.update(symbolId, price, change, timestamp);
+         updated++;
+      }
+   }
+
+   private int readSymbolId() {
+      if (peek() != '"') {
+         skipValue();
+         return -1;
+      }
+
+      int start = pos + 1;
+      skipString();
+      int length = pos - 1 - start;
+      if (buf.indexOf(start, start + length, (byte) '\\') >= 0) {
+         return store.idOf(readStringAt(start - 1));
+      }
+      return store.getSymbols().idOf(buf, start, length);
+   }
+
+   private long readFixed() {
+      byte c = peek();
+      int start;
+      int length;
+      if (c == '"') {
+         start = pos + 1;
+         skipString();
+         length = pos - 1 - start;
+      } else {
+         start = pos;
+         skipValue();
+         length = pos - start;
+      }
+      return QuoteStore.parsePrice(buf, start, length);
+   }
+
+   private String readStringAt(int index) {
+      int saved = pos;
+      pos = index;
+      String value = readString();
+      pos = saved;
+      return value;
+   }
+
+   /**
+    * Expects an object at the current position and moves to the value of the named member. Returns
+    * false, with the object skipped, if the value is null or the member isn't there.
+    */
+   private boolean enterField(byte[] name) {
+      byte c = peek();
+      if (c != '{') {
+         skipValue();
+         return false;
+      }
+      pos++;
+
+      if (peek() == '}') {
+         pos++;
+         return false;
+      }
+
+      do {
+         if (matchName(name)) {
+            return true;
+         }
+         skipNameAndValue();
+      } while (nextMember('}'));
+
+      return false;
+   }
+
+   private String readString() {
+      byte c = peek();
+      if (c != '"') {
+         // YQL sends numbers and nulls for some fields; keep numbers as their text
+         int start = pos;
+         skipValue();
+         String text = buf.toString(start, pos - start, CharsetUtil.US_ASCII).trim();
+         return "null".equals(text) ? null : text;
+      }
+
+      int start = ++pos;
+      while (pos < end) {
+         byte b = buf.getByte(pos);
+         if (b == '"') {
+            String value = buf.toString(start, pos - start, CharsetUtil.UTF_8);
+            pos++;
+            return value;
+         }
+         if (b == '\\') {
+            pos = start;
+            return readEscapedString();
+         }
+         pos++;
+      }
+      throw error();
+   }
+
+   private String readEscapedString() {
+      StringBuilder sb = new StringBuilder();
+      int runStart = pos;
+      while (pos < end) {
+         byte b = buf.getByte(pos);
+         if (b == '"') {
+            sb.append(buf.toString(runStart, pos - runStart, CharsetUtil.UTF_8));
+            pos++;
+            return sb.toString();
+         }
+
+         if (b != '\\') {
+            pos++;
+            continue;
+         }
+
+         sb.append(buf.toString(runStart, pos - runStart, CharsetUtil.UTF_8));
+         if (pos + 1 >= end) {
+            throw error();
+         }
+
+         byte escaped = buf.getByte(pos + 1);
+         pos += 2;
+         switch (escaped) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+               if (pos + 4 > end) {
+                  throw error();
+               }
+               sb.append((char) Integer.parseInt(buf.toString(pos, 4, CharsetUtil.US_ASCII), 16));
+               pos += 4;
+               break;
+            default: sb.append((char) escaped); break;
+         }
+         runStart = pos;
+      }
+      throw error();
+   }
+
+   @Override
+   protected IllegalArgumentException error() {
+      return new IllegalArgumentException("Malformed quote response at offset " + (pos - buf.readerIndex()));
+   }
+}
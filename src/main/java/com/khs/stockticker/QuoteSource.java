@@ -0,0 +1,63 @@
+package com.khs.stockticker;
+
+import io.netty.util.concurrent.Future;
+
+import java.util.Collection;
+
+/**
+ * Where the engine's quotes come from.
+ *
+ * A pull source (isPush() false) is polled: the engine calls {@link #fetch} on a timer with every
+ * subscribed symbol. A push source is started once and writes quotes into the store as they arrive,
+ * telling the listener about each one so it reaches that symbol's subscribers straight away; the
+ * engine tells it which symbols are wanted as the first subscriber for one arrives and the last one
+ * leaves.
+ *
+ * Either way quotes go straight into the engine's QuoteStore, so the sessions read them the same.
+ */
+public interface QuoteSource {
+   interface Listener {
+      /**
+       * Called by the source, from its own thread, once a changed quote is in the store.
+       */
+      void quoteUpdated(int symbolId);
+   }
+
+   boolean isPush();
+
+   /**
+    * Pull sources: stores the latest quote for each symbol. The future always succeeds, with the
+    * number of quotes stored.
+    */
+   Future<Integer> fetch(Collection<String> symbols, QuoteStore store);
+
+   /**
+    * Pull sources: how much fits in one upstream request, in the units of {@link #getRequestCost}.
+    * fetch() must fill requests in symbol order, starting a new one whenever the next symbol would
+    * overflow it, so the poll scheduler can pack symbols into requests the same way.
+    */
+   int getRequestCapacity();
+
+   /**
+    * Pull sources: how much of a request's capacity the symbol takes.
+    */
+   int getRequestCost(String symbol);
+
+   /**
+    * Push sources: begins writing quotes for the subscribed symbols into store. Pull sources get
+    * the call too, for any quotes they come by between fetches.
+    */
+   void start(QuoteStore store, Listener listener);
+
+   /**
+    * Push sources: somebody now wants quotes for this symbol.
+    */
+   void subscribed(String symbol);
+
+   /**
+    * Push sources: nobody wants quotes for this symbol any more.
+    */
+   void unsubscribed(String symbol);
+
+   void close();
+}
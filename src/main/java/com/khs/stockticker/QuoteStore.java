@@ -0,0 +1,263 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Central, in-place store of the latest quote per symbol.
+ *
+ * Symbols are interned to integer ids and each quote is kept as fixed-point longs (see
+ * {@link #SCALE}) in chunked primitive arrays, so an update allocates nothing and the store can hold
+ * tens of thousands of symbols in a few megabytes. Every slot carries a sequence number: writers
+ * claim it with a CAS and readers never lock, retrying only if they raced a write.
+ *
+ * Ids are never reused, since sessions, binary clients and the cluster all hold on to them, so the
+ * store takes at most maxSymbols symbols and refuses any more rather than growing forever.
+ */
+public class QuoteStore {
+   // prices and changes are stored in ten-thousandths
+   public static final long SCALE = 10000L;
+   public static final int  SCALE_DIGITS = 4;
+
+   // marks a slot that has no price yet, or an upstream value such as "N/A"
+   public static final long NO_PRICE = Long.MIN_VALUE;
+
+   private static final int CHUNK_SHIFT = 10;
+   private static final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+   private static final int CHUNK_MASK  = CHUNK_SIZE - 1;
+   private static final int MAX_CHUNKS  = 1024;
+
+   // as many as the chunks can hold
+   public static final int DEFAULT_MAX_SYMBOLS = MAX_CHUNKS * CHUNK_SIZE;
+
+   // layout of one slot
+   private static final int SEQUENCE  = 0;
+   private static final int PRICE     = 1;
+   private static final int CHANGE    = 2;
+   private static final int TIMESTAMP = 3;
+   private static final int FIELDS    = 4;
+
+   private final SymbolTable symbols = new SymbolTable();
+   private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+   private final int maxSymbols;
+
+   public QuoteStore() {
+      this(DEFAULT_MAX_SYMBOLS);
+   }
+
+   /**
+    * @param maxSymbols the most symbols the store will ever take, at most {@link #DEFAULT_MAX_SYMBOLS}
+    */
+   public QuoteStore(int maxSymbols) {
+      this.maxSymbols = Math.max(1, Math.min(maxSymbols, DEFAULT_MAX_SYMBOLS));
+   }
+
+   public SymbolTable getSymbols() {
+      return symbols;
+   }
+
+   /**
+    * Returns the id for symbol, adding it if this is the first time it has been seen, or -1 if it is
+    * new and the store is full.
+    */
+   public int intern(String symbol) {
+      int id = symbols.idOf(symbol);
+      if (id >= 0) {
+         return id;
+      }
+
+      synchronized (symbols) {
+         id = symbols.idOf(symbol);
+         if (id < 0) {
+            int next = symbols.size();
+            if (next >= maxSymbols) {
+               return -1;
+            }
+
+            // the slot must exist before anybody can look the id up
+            if (chunks.get(next >> CHUNK_SHIFT) == null) {
+               chunks.set(next >> CHUNK_SHIFT, newChunk());
+            }
+            id = symbols.add(symbol);
+         }
+      }
+      return id;
+   }
+
+   public int idOf(String symbol) {
+      return symbols.idOf(symbol);
+   }
+
+   public String symbol(int id) {
+      return symbols.name(id);
+   }
+
+   public int size() {
+      return symbols.size();
+   }
+
+   public int getMaxSymbols() {
+      return maxSymbols;
+   }
+
+   /**
+    * Records a new price. If change is NO_PRICE it is worked out from the previous price.
+    *
+    * @return true if the price differs from the one stored before
+    */
+   public boolean update(int id, long price, long change, long timestamp) {
+      AtomicLongArray chunk = chunks.get(id >> CHUNK_SHIFT);
+      int base = (id & CHUNK_MASK) * FIELDS;
+
+      long sequence = claim(chunk, base);
+      long previous = chunk.get(base + PRICE);
+      if (change == NO_PRICE) {
+         change = (previous == NO_PRICE || price == NO_PRICE) ? 0L : price - previous;
+      }
+      chunk.lazySet(base + PRICE, price);
+      chunk.lazySet(base + CHANGE, change);
+      chunk.lazySet(base + TIMESTAMP, timestamp);
+      chunk.set(base + SEQUENCE, sequence + 2);
+
+      return previous != price;
+   }
+
+   /**
+    * Forgets the price for a symbol nobody is watching any more, so it can't go out stale later.
+    */
+   public void clear(int id) {
+      update(id, NO_PRICE, 0L, 0L);
+   }
+
+   /**
+    * Latest price for the symbol, or NO_PRICE. A single read, so it never needs to retry.
+    */
+   public long price(int id) {
+      return chunks.get(id >> CHUNK_SHIFT).get((id & CHUNK_MASK) * FIELDS + PRICE);
+   }
+
+   /**
+    * Copies price, change and timestamp as one consistent snapshot into out[0..2].
+    *
+    * @return false if the symbol has no price
+    */
+   public boolean read(int id, long[] out) {
+      AtomicLongArray chunk = chunks.get(id >> CHUNK_SHIFT);
+      int base = (id & CHUNK_MASK) * FIELDS;
+      for (;;) {
+         long sequence = chunk.get(base + SEQUENCE);
+         if ((sequence & 1) != 0) {
+            continue;
+         }
+
+         out[0] = chunk.get(base + PRICE);
+         out[1] = chunk.get(base + CHANGE);
+         out[2] = chunk.get(base + TIMESTAMP);
+         if (chunk.get(base + SEQUENCE) == sequence) {
+            return out[0] != NO_PRICE;
+         }
+      }
+   }
+
+   private static long claim(AtomicLongArray chunk, int base) {
+      for (;;) {
+         long sequence = chunk.get(base + SEQUENCE);
+         if ((sequence & 1) == 0 && chunk.compareAndSet(base + SEQUENCE, sequence, sequence + 1)) {
+            return sequence;
+         }
+      }
+   }
+
+   private static AtomicLongArray newChunk() {
+      AtomicLongArray chunk = new AtomicLongArray(CHUNK_SIZE * FIELDS);
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+         chunk.lazySet(i * FIELDS + PRICE, NO_PRICE);
+      }
+      return chunk;
+   }
+
+   /**
+    * Parses a decimal such as "551.18", "-0.5" or "+1.23" into fixed point. Digits beyond
+    * {@link #SCALE_DIGITS} are dropped. Returns NO_PRICE for anything that isn't a number.
+    */
+   public static long parsePrice(ByteBuf buf, int index, int length) {
+      int end = index + length;
+      boolean negative = false;
+      if (index < end && (buf.getByte(index) == '-' || buf.getByte(index) == '+')) {
+         negative = buf.getByte(index) == '-';
+         index++;
+      }
+
+      long value = 0;
+      int fraction = -1;
+      boolean digits = false;
+      for (; index < end; index++) {
+         byte b = buf.getByte(index);
+         if (b == '.' && fraction < 0) {
+            fraction = 0;
+         } else if (b >= '0' && b <= '9') {
+            digits = true;
+            if (fraction < SCALE_DIGITS) {
+               value = value * 10 + (b - '0');
+               if (fraction >= 0) {
+                  fraction++;
+               }
+            }
+         } else {
+            return NO_PRICE;
+         }
+      }
+
+      if (!digits) {
+         return NO_PRICE;
+      }
+
+      for (int i = Math.max(fraction, 0); i < SCALE_DIGITS; i++) {
+         value *= 10;
+      }
+      return negative ? -value : value;
+   }
+
+   public static long parsePrice(String text) {
+      ByteBuf buf = Unpooled.wrappedBuffer(text.getBytes(CharsetUtil.US_ASCII));
+      return parsePrice(buf, 0, buf.readableBytes());
+   }
+
+   /**
+    * Formats a fixed-point price with at least two decimals, e.g. 5511800 -> "551.18".
+    */
+   public static String formatPrice(long price) {
+      return appendPrice(new StringBuilder(16), price).toString();
+   }
+
+   public static StringBuilder appendPrice(StringBuilder sb, long price) {
+      if (price < 0) {
+         sb.append('-');
+         price = -price;
+      }
+
+      long fraction = price % SCALE;
+      sb.append(price / SCALE).append('.');
+
+      // always two places, then only as many more as are significant
+      int digits = SCALE_DIGITS;
+      while (digits > 2 && fraction % 10 == 0) {
+         fraction /= 10;
+         digits--;
+      }
+
+      long pad = 1;
+      for (int i = 1; i < digits; i++) {
+         pad *= 10;
+      }
+      while (pad > 1 && fraction < pad) {
+         sb.append('0');
+         pad /= 10;
+      }
+      return sb.append(fraction);
+   }
+}
@@ -0,0 +1,229 @@
+package com.khs.stockticker;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A push {@link QuoteSource} that needs no network: every subscribed symbol takes a random walk,
+ * with ticks spread at random across the symbols at a fixed overall rate. Meant for driving the
+ * distribution path far harder than any real feed would, e.g. 100k ticks a second over thousands of
+ * symbols.
+ *
+ * Each changed price is reported to the listener as it is written, as a streaming feed would.
+ *
+ * Deterministic for a given seed: a symbol always starts at the same price, and the same
+ * subscriptions in the same order produce the same ticks. Ticks are written on one thread, holding
+ * the same lock subscription changes take, so once unsubscribed() returns no tick for the symbol
+ * can land in the store and undo the engine clearing its price. The listener is told outside the
+ * lock, since unsubscribed() is called with the engine's own held.
+ */
+public class SimulatedQuoteSource implements QuoteSource {
+   private static final Logger logger = LoggerFactory.getLogger(SimulatedQuoteSource.class);
+
+   public static final int DEFAULT_TICKS_PER_SECOND = 100000;
+   public static final long DEFAULT_INTERVAL_MILLIS = 10L;
+   public static final long DEFAULT_SEED = 42L;
+
+   private static final long CENT = QuoteStore.SCALE / 100;
+
+   private final int ticksPerSecond;
+   private final long intervalMillis;
+   private final long seed;
+   private final SplittableRandom random;
+
+   private final AtomicLong ticks = new AtomicLong();
+
+   // guarded by this: the symbols being walked and their prices, ids found by index
+   private int[] ids = new int[64];
+   private long[] prices = new long[64];
+   private int count;
+   private int[] indexOfId = new int[0];
+
+   // owned by the simulator thread: ticks owed from the fractional part of earlier batches, and the
+   // ids a batch changed, for telling the listener once the lock is let go
+   private double carry;
+   private int[] updated = new int[0];
+
+   private QuoteStore store;
+   private Listener listener;
+   private ScheduledExecutorService executor;
+
+   public SimulatedQuoteSource() {
+      this(DEFAULT_TICKS_PER_SECOND, DEFAULT_INTERVAL_MILLIS, DEFAULT_SEED);
+   }
+
+   /**
+    * @param intervalMillis how often a batch of ticks is written
+    */
+   public SimulatedQuoteSource(int ticksPerSecond, long intervalMillis, long seed) {
+      this.ticksPerSecond = ticksPerSecond;
+      this.intervalMillis = Math.max(1, intervalMillis);
+      this.seed = seed;
+      this.random = new SplittableRandom(seed);
+   }
+
+   @Override
+   public boolean isPush() {
+      return true;
+   }
+
+   @Override
+   public Future<Integer> fetch(Collection<String> symbols, QuoteStore store) {
+      // quotes arrive on their own
+      return ImmediateEventExecutor.INSTANCE.newSucceededFuture(0);
+   }
+
+   @Override
+   public int getRequestCapacity() {
+      return Integer.MAX_VALUE;
+   }
+
+   @Override
+   public int getRequestCost(String symbol) {
+      return 0;
+   }
+
+   @Override
+   public synchronized void start(QuoteStore store, Listener listener) {
+      if (executor != null) {
+         throw new IllegalStateException("Simulated quote source already started");
+      }
+      this.store = store;
+      this.listener = listener;
+      executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                  .setDaemon(true)
+                  .setNameFormat("quote-simulator-%d")
+                  .build());
+      executor.scheduleAtFixedRate(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               tick();
+            } catch (Exception e) {
+               // an exception would cancel the schedule, so keep going
+               logger.error("Simulated quote batch failed", e);
+            }
+         }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+      logger.info("Simulating {} ticks/sec in batches every {} ms, seed {}", ticksPerSecond, intervalMillis, seed);
+   }
+
+   @Override
+   public synchronized void subscribed(String symbol) {
+      int id = store.intern(symbol);
+      // the store is full, so nobody can be watching it
+      if (id >= 0) {
+         add(id, symbol);
+      }
+   }
+
+   @Override
+   public synchronized void unsubscribed(String symbol) {
+      int id = store.idOf(symbol);
+      if (id >= 0) {
+         remove(id);
+      }
+   }
+
+   @Override
+   public synchronized void close() {
+      if (executor != null) {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Ticks written so far.
+    */
+   public long getTicks() {
+      return ticks.get();
+   }
+
+   private void tick() {
+      carry += ticksPerSecond * intervalMillis / 1000.0;
+      int batch = (int) carry;
+      carry -= batch;
+      if (batch == 0) {
+         return;
+      }
+      if (updated.length < batch) {
+         updated = new int[batch];
+      }
+
+      int changed = 0;
+      synchronized (this) {
+         if (count == 0) {
+            return;
+         }
+         long timestamp = System.currentTimeMillis();
+         for (int i = 0; i < batch; i++) {
+            int index = random.nextInt(count);
+            long before = prices[index];
+            // up to about a tenth of a percent either way, on whole cents, never below a cent
+            long cents = Math.max(1, before / (1000 * CENT));
+            long after = Math.max(CENT, before + (random.nextLong(2 * cents + 1) - cents) * CENT);
+            prices[index] = after;
+            if (store.update(ids[index], after, QuoteStore.NO_PRICE, timestamp)) {
+               updated[changed++] = ids[index];
+            }
+         }
+      }
+      ticks.addAndGet(batch);
+
+      for (int i = 0; i < changed; i++) {
+         listener.quoteUpdated(updated[i]);
+      }
+   }
+
+   private void add(int id, String symbol) {
+      if (id < indexOfId.length && indexOfId[id] >= 0) {
+         return;
+      }
+      if (id >= indexOfId.length) {
+         int old = indexOfId.length;
+         indexOfId = Arrays.copyOf(indexOfId, Math.max(id + 1, old * 2));
+         Arrays.fill(indexOfId, old, indexOfId.length, -1);
+      }
+      if (count == ids.length) {
+         ids = Arrays.copyOf(ids, count * 2);
+         prices = Arrays.copyOf(prices, count * 2);
+      }
+
+      ids[count] = id;
+      prices[count] = startingPrice(symbol);
+      indexOfId[id] = count++;
+   }
+
+   private void remove(int id) {
+      if (id >= indexOfId.length || indexOfId[id] < 0) {
+         return;
+      }
+
+      // move the last symbol into the hole
+      int index = indexOfId[id];
+      int last = --count;
+      ids[index] = ids[last];
+      prices[index] = prices[last];
+      indexOfId[ids[index]] = index;
+      indexOfId[id] = -1;
+   }
+
+   /**
+    * Somewhere from $10 to $1000, the same for a symbol every run with the same seed.
+    */
+   private long startingPrice(String symbol) {
+      return new SplittableRandom(seed ^ symbol.hashCode()).nextInt(10, 1000) * QuoteStore.SCALE;
+   }
+}
@@ -0,0 +1,292 @@
+package com.khs.stockticker;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of the static files under the web root.
+ *
+ * Every file is preloaded into a direct buffer along with a gzip variant (kept only when it is
+ * actually smaller) and a strong, content-based ETag for each. A watcher thread drops entries when
+ * their files change on disk; the next request for them loads them again.
+ */
+public class StaticAssetCache {
+   private static final Logger logger = LoggerFactory.getLogger(StaticAssetCache.class);
+
+   // anything bigger is streamed from disk instead
+   public static final long MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+   private final Path root;
+   private final MimetypesFileTypeMap mimeTypesMap;
+   private final ConcurrentMap<Path, Asset> assets = new ConcurrentHashMap<>();
+   private WatchService watchService;
+
+   public StaticAssetCache(String rootDir, MimetypesFileTypeMap mimeTypesMap) {
+      this.root = Paths.get(rootDir).toAbsolutePath().normalize();
+      this.mimeTypesMap = mimeTypesMap;
+
+      preload(root);
+      startWatcher();
+   }
+
+   /**
+    * Returns the cached asset for a file under the web root, loading it on a miss, or null if the
+    * file isn't there or is too big to cache.
+    */
+   public Asset get(String path) {
+      Path key = Paths.get(path).toAbsolutePath().normalize();
+      Asset asset = assets.get(key);
+      if (asset != null) {
+         return asset;
+      }
+
+      try {
+         if (!key.startsWith(root) || !Files.isRegularFile(key) || Files.isHidden(key)) {
+            return null;
+         }
+      } catch (IOException e) {
+         return null;
+      }
+
+      asset = load(key);
+      if (asset == null) {
+         return null;
+      }
+
+      Asset existing = assets.putIfAbsent(key, asset);
+      if (existing != null) {
+         asset.release();
+         return existing;
+      }
+      return asset;
+   }
+
+   public void invalidate(Path file) {
+      Asset asset = assets.remove(file.toAbsolutePath().normalize());
+      if (asset != null) {
+         logger.debug("Static asset {} changed on disk, dropped from cache", file);
+         asset.release();
+      }
+   }
+
+   public void close() {
+      try {
+         if (watchService != null) {
+            watchService.close();
+         }
+      } catch (IOException e) {
+         logger.warn("Could not close static asset watcher", e);
+      }
+
+      for (Path key : assets.keySet()) {
+         invalidate(key);
+      }
+   }
+
+   private void preload(Path dir) {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+         for (Path entry : entries) {
+            if (Files.isDirectory(entry)) {
+               preload(entry);
+            } else if (Files.isRegularFile(entry) && !Files.isHidden(entry)) {
+               get(entry.toString());
+            }
+         }
+      } catch (IOException e) {
+         logger.warn("Could not preload static assets from " + dir, e);
+      }
+   }
+
+   private Asset load(Path file) {
+      try {
+         long size = Files.size(file);
+         if (size > MAX_CACHED_BYTES) {
+            return null;
+         }
+
+         long lastModified = Files.getLastModifiedTime(file).toMillis();
+         byte[] bytes = Files.readAllBytes(file);
+         byte[] gzipped = gzip(bytes);
+         String etag = etag(bytes);
+
+         ByteBuf content = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+         ByteBuf gzipContent = null;
+         if (gzipped.length < bytes.length) {
+            gzipContent = Unpooled.directBuffer(gzipped.length).writeBytes(gzipped);
+         }
+
+         String contentType = mimeTypesMap.getContentType(file.toString());
+         return new Asset(content, gzipContent, etag, contentType, lastModified);
+      } catch (IOException e) {
+         logger.warn("Could not load static asset " + file, e);
+         return null;
+      }
+   }
+
+   private void startWatcher() {
+      try {
+         watchService = FileSystems.getDefault().newWatchService();
+         register(root);
+      } catch (IOException e) {
+         logger.warn("Static asset watcher unavailable, cached files won't pick up changes", e);
+         return;
+      }
+
+      Thread watcher = new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("asset-watcher-%d")
+            .build()
+            .newThread(new Runnable() {
+               @Override
+               public void run() {
+                  watch();
+               }
+            });
+      watcher.start();
+   }
+
+   private void register(Path dir) throws IOException {
+      dir.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+         for (Path entry : entries) {
+            if (Files.isDirectory(entry)) {
+               register(entry);
+            }
+         }
+      }
+   }
+
+   private void watch() {
+      try {
+         for (;;) {
+            WatchKey key = watchService.take();
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+               if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                  // lost track of what changed, so start over
+                  for (Path cached : assets.keySet()) {
+                     invalidate(cached);
+                  }
+                  continue;
+               }
+
+               Path changed = dir.resolve((Path) event.context());
+               invalidate(changed);
+               if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                  register(changed);
+               }
+            }
+            key.reset();
+         }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+         // shutting down
+      } catch (IOException e) {
+         logger.warn("Static asset watcher stopped", e);
+      }
+   }
+
+   private static byte[] gzip(byte[] bytes) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+         gzip.write(bytes);
+      }
+      return out.toByteArray();
+   }
+
+   private static String etag(byte[] bytes) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+         StringBuilder sb = new StringBuilder(digest.length * 2);
+         for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+         throw new Error(e);
+      }
+   }
+
+   /**
+    * One cached file. Buffers handed out are retained duplicates, so a request in flight keeps its
+    * bytes alive even if the entry is dropped underneath it.
+    */
+   public static class Asset {
+      private final ByteBuf content;
+      private final ByteBuf gzipContent;
+      private final String etag;
+      private final String gzipEtag;
+      private final String contentType;
+      private final long lastModified;
+
+      Asset(ByteBuf content, ByteBuf gzipContent, String etag, String contentType, long lastModified) {
+         this.content = content;
+         this.gzipContent = gzipContent;
+         this.etag = '"' + etag + '"';
+         this.gzipEtag = '"' + etag + "-gz\"";
+         this.contentType = contentType;
+         this.lastModified = lastModified;
+      }
+
+      public boolean hasGzip() {
+         return gzipContent != null;
+      }
+
+      /**
+       * Returns a retained duplicate for the caller to write, or null if the entry was dropped in the
+       * meantime.
+       */
+      public ByteBuf content(boolean gzip) {
+         try {
+            return (gzip ? gzipContent : content).duplicate().retain();
+         } catch (IllegalReferenceCountException e) {
+            return null;
+         }
+      }
+
+      public String getEtag(boolean gzip) {
+         return gzip ? gzipEtag : etag;
+      }
+
+      public String getContentType() {
+         return contentType;
+      }
+
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      void release() {
+         content.release();
+         if (gzipContent != null) {
+            gzipContent.release();
+         }
+      }
+   }
+}
@@ -0,0 +1,320 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Server settings, read from /stockticker.properties on the classpath, then the file named by the
+ * "config" system property if there is one, then system properties, each overriding the one before.
+ * So -Dport=9090 still works the way it always has.
+ */
+public class StockTickerConfig {
+   private static final Logger logger = LoggerFactory.getLogger(StockTickerConfig.class);
+
+   public static final String DEFAULTS_RESOURCE = "/stockticker.properties";
+
+   private final Properties properties = new Properties();
+   private final boolean epoll;
+
+   public StockTickerConfig() {
+      this(System.getProperty("config"));
+   }
+
+   public StockTickerConfig(String configFile) {
+      try (InputStream is = StockTickerConfig.class.getResourceAsStream(DEFAULTS_RESOURCE)) {
+         if (is != null) {
+            properties.load(is);
+         }
+      } catch (IOException e) {
+         logger.warn("Cannot load " + DEFAULTS_RESOURCE, e);
+      }
+
+      if (configFile != null) {
+         try (InputStream is = new FileInputStream(configFile)) {
+            properties.load(is);
+            logger.info("Loaded configuration from {}", configFile);
+         } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot load configuration file " + configFile, e);
+         }
+      }
+
+      properties.putAll(System.getProperties());
+      epoll = pickEpoll();
+   }
+
+   public String getString(String key, String defaultValue) {
+      String value = properties.getProperty(key);
+      return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+   }
+
+   public int getInt(String key, int defaultValue) {
+      String value = getString(key, null);
+      return value == null ? defaultValue : Integer.parseInt(value);
+   }
+
+   public long getLong(String key, long defaultValue) {
+      String value = getString(key, null);
+      return value == null ? defaultValue : Long.parseLong(value);
+   }
+
+   public double getDouble(String key, double defaultValue) {
+      String value = getString(key, null);
+      return value == null ? defaultValue : Double.parseDouble(value);
+   }
+
+   public boolean getBoolean(String key, boolean defaultValue) {
+      String value = getString(key, null);
+      return value == null ? defaultValue : Boolean.parseBoolean(value);
+   }
+
+   public int getPort() {
+      return getInt("port", 8080);
+   }
+
+   public String getQuoteUrl() {
+      return getString("quote.url", QuoteClient.DEFAULT_BASE_URL);
+   }
+
+   /**
+    * True when epoll was asked for, or left on auto, and the native library loaded.
+    */
+   public boolean useEpoll() {
+      return epoll;
+   }
+
+   private boolean pickEpoll() {
+      String transport = getString("transport", "auto");
+      if ("nio".equalsIgnoreCase(transport)) {
+         return false;
+      }
+
+      if (Epoll.isAvailable()) {
+         return true;
+      }
+
+      if ("epoll".equalsIgnoreCase(transport)) {
+         logger.warn("epoll transport requested but unavailable, falling back to NIO", Epoll.unavailabilityCause());
+      }
+      return false;
+   }
+
+   /**
+    * Server sockets to bind. More than one needs SO_REUSEPORT, so NIO always gets one.
+    */
+   public int getAcceptorThreads() {
+      return useEpoll() ? Math.max(1, getInt("acceptor.threads", 1)) : 1;
+   }
+
+   /**
+    * 0 leaves it to Netty, which uses twice the number of cores.
+    */
+   public int getWorkerThreads() {
+      return getInt("worker.threads", 0);
+   }
+
+   public EventLoopGroup newEventLoopGroup(int threads) {
+      return useEpoll() ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+   }
+
+   public Class<? extends ServerSocketChannel> getServerChannelClass() {
+      return useEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+   }
+
+   public Class<? extends SocketChannel> getSocketChannelClass() {
+      return useEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+   }
+
+   public ByteBufAllocator getAllocator() {
+      return "unpooled".equalsIgnoreCase(getString("allocator", "pooled"))
+            ? UnpooledByteBufAllocator.DEFAULT
+            : PooledByteBufAllocator.DEFAULT;
+   }
+
+   public boolean isTcpNoDelay() {
+      return getBoolean("tcp.nodelay", true);
+   }
+
+   public int getBacklog() {
+      return getInt("so.backlog", 1024);
+   }
+
+   public int getWriteBufferLowWaterMark() {
+      return getInt("write.buffer.low.watermark", 32 * 1024);
+   }
+
+   public int getWriteBufferHighWaterMark() {
+      return getInt("write.buffer.high.watermark", 64 * 1024);
+   }
+
+   /**
+    * How long a client may stay over the high watermark before it is disconnected; 0 never does.
+    */
+   public long getSlowConsumerTimeoutMillis() {
+      return getLong("slow.consumer.timeout.millis", TickerSession.DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * Where quotes come from: "http" polls the quote.url service, "simulated" runs a random walk with
+    * no network at all. Either can be shared out across a cluster.
+    */
+   public QuoteSource newQuoteSource(EventLoopGroup group) throws SSLException {
+      String source = getString("quote.source", "http");
+      if ("simulated".equalsIgnoreCase(source)) {
+         return cluster(new SimulatedQuoteSource(
+               getInt("quote.simulator.ticks.per.second", SimulatedQuoteSource.DEFAULT_TICKS_PER_SECOND),
+               getLong("quote.simulator.interval.millis", SimulatedQuoteSource.DEFAULT_INTERVAL_MILLIS),
+               getLong("quote.simulator.seed", SimulatedQuoteSource.DEFAULT_SEED)), group);
+      }
+      if (!"http".equalsIgnoreCase(source)) {
+         throw new IllegalArgumentException("Unknown quote.source " + source + ", expected http or simulated");
+      }
+      return cluster(new QuoteClient(group, getSocketChannelClass(), getQuoteUrl()), group);
+   }
+
+   /**
+    * With cluster.peers set, wraps the source so each symbol is fetched by only one node. Every node
+    * is given the same peer list and its own cluster.self.
+    */
+   private QuoteSource cluster(QuoteSource source, EventLoopGroup group) {
+      String peers = getString("cluster.peers", null);
+      if (peers == null) {
+         return source;
+      }
+
+      String self = getString("cluster.self", null);
+      if (self == null) {
+         throw new IllegalArgumentException("cluster.peers needs cluster.self, this node's host:port in it");
+      }
+      List<String> nodes = new ArrayList<>();
+      for (String peer : peers.split(",")) {
+         if (!peer.trim().isEmpty()) {
+            nodes.add(peer.trim());
+         }
+      }
+      return new ClusterQuoteSource(source, self, nodes, getInt("cluster.virtual.nodes", HashRing.DEFAULT_VIRTUAL_NODES),
+            group, getServerChannelClass(), getSocketChannelClass());
+   }
+
+   /**
+    * Per-symbol poll intervals for pull sources, inside an upstream requests-per-second budget, with
+    * the market calendar deciding when to back off. No market.hours means always open.
+    */
+   public PollScheduler newPollScheduler() {
+      MarketHours marketHours = MarketHours.parse(
+            getString("market.timezone", "America/New_York"),
+            getString("market.hours", null),
+            getString("market.days", "MON,TUE,WED,THU,FRI"),
+            getString("market.holidays", null));
+      return new PollScheduler(
+            getLong("quote.poll.interval.millis", QuoteEngine.POLL_INTERVAL_MILLIS),
+            getLong("quote.poll.min.interval.millis", PollScheduler.DEFAULT_MIN_INTERVAL_MILLIS),
+            getLong("quote.poll.max.interval.millis", PollScheduler.DEFAULT_MAX_INTERVAL_MILLIS),
+            getLong("quote.poll.closed.interval.millis", PollScheduler.DEFAULT_CLOSED_INTERVAL_MILLIS),
+            getDouble("quote.requests.per.second", PollScheduler.DEFAULT_REQUESTS_PER_SECOND),
+            marketHours);
+   }
+
+   /**
+    * How long a session holds a pushed tick for others to join it in one frame; 0 sends each at once.
+    */
+   public long getDispatchWindowMicros() {
+      return getLong("quote.dispatch.window.micros", 0L);
+   }
+
+   /**
+    * The tick journal under journal.dir, or null when that isn't set.
+    */
+   public TickJournal newTickJournal() throws IOException {
+      String dir = getString("journal.dir", null);
+      if (dir == null) {
+         return null;
+      }
+      TickJournal journal = new TickJournal(Paths.get(dir),
+            getInt("journal.segment.bytes", TickJournal.DEFAULT_SEGMENT_BYTES),
+            getInt("journal.segments", TickJournal.DEFAULT_SEGMENTS),
+            getLong("journal.retention.millis", TickJournal.DEFAULT_RETENTION_MILLIS));
+      logger.info("Journaling ticks to {}", dir);
+      return journal;
+   }
+
+   /**
+    * How long a quote served by GET /api/quotes counts as fresh.
+    */
+   public long getQuoteCacheTtlMillis() {
+      return getLong("api.quotes.ttl.millis", QuoteCache.DEFAULT_TTL_MILLIS);
+   }
+
+   /**
+    * How long past its TTL a quote may still be served while it reloads.
+    */
+   public long getQuoteCacheStaleMillis() {
+      return getLong("api.quotes.stale.millis", QuoteCache.DEFAULT_STALE_MILLIS);
+   }
+
+   /**
+    * The biggest websocket message a client may send, its fragments together; anything bigger closes
+    * the connection.
+    */
+   public int getMaxMessageBytes() {
+      return getInt("websocket.max.message.bytes", StockTickerServerHandler.DEFAULT_MAX_MESSAGE_BYTES);
+   }
+
+   /**
+    * The most price alerts one connection may have waiting; an alert command past it is refused.
+    */
+   public int getMaxAlertsPerConnection() {
+      return getInt("alerts.max.per.connection", AlertEngine.DEFAULT_MAX_PER_CONNECTION);
+   }
+
+   /**
+    * The most distinct symbols the server will track over its lifetime. Symbols are never forgotten,
+    * so once this many have been seen commands naming new ones are refused.
+    */
+   public int getMaxSymbols() {
+      return getInt("quote.store.max.symbols", QuoteStore.DEFAULT_MAX_SYMBOLS);
+   }
+
+   /**
+    * A permessage-deflate negotiator for the websocket pipeline, or null when compression is off.
+    */
+   public PerMessageDeflateHandshaker newDeflateHandshaker() {
+      if (!getBoolean("websocket.deflate", false)) {
+         return null;
+      }
+      return new PerMessageDeflateHandshaker(
+            getInt("websocket.deflate.level", 1),
+            getBoolean("websocket.deflate.server.context.takeover", true),
+            getBoolean("websocket.deflate.client.context.takeover", true),
+            getInt("websocket.deflate.client.max.window.bits", 15),
+            getInt("websocket.deflate.min.bytes", 256));
+   }
+
+   /**
+    * Whether to put a LoggingHandler on the server channels. Off unless you are chasing a problem.
+    */
+   public boolean isConnectionLogging() {
+      return getBoolean("logging.connections", false);
+   }
+}
@@ -1,214 +1,205 @@
 package com.khs.stockticker;
 
-import com.eclipsesource.json.JsonArray;
-import com.eclipsesource.json.JsonObject;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
-import io.netty.channel.Channel;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import org.apache.http.Header;
-import org.apache.http.HeaderElement;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.client.entity.GzipDecompressingEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
-
-import java.io.IOException;
-import java.util.HashMap;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by jwb on 3/13/15.
  */
 public class StockTickerMessageHandler implements WebSocketMessageHandler {
-   private static final String STOCK_URL_START = "http://query.yahooapis.com/v1/public/yql?q=select%20*%20from%20yahoo.finance.quotes%20where%20symbol%20in%20(";
-   private static final String STOCK_URL_END = ")%0A%09%09&env=http%3A%2F%2Fdatatables.org%2Falltables.env&format=json";
-   
-   // Keep track of the tickers the user has asked for info about
-   private List<String> tickerSymbols = new CopyOnWriteArrayList<>();
-
-   // stateless JSON serializer/deserializer
+   // an ack is always one of these, so each is encoded once and shared
+   private static final ByteBuf SUCCESS          = ack("success");
+   private static final ByteBuf NO_SYMBOL        = ack("Failed. No ticker symbol given.");
+   private static final ByteBuf NOT_A_SYMBOL     = ack("Failed. Not a ticker symbol.");
+   private static final ByteBuf BAD_INTERVAL     = ack("Failed. Interval must be 1s, 1m, 5m or 1h.");
+   private static final ByteBuf UNKNOWN_COMMAND  = ack("Failed. Command not recognized.");
+   private static final ByteBuf BAD_ALERT        = ack("Failed. An alert needs above, below or movePercent (over 0, at most 100) as a number.");
+   private static final ByteBuf TOO_MANY_ALERTS  = ack("Failed. Too many alerts on this connection.");
+   private static final ByteBuf TOO_MANY_SYMBOLS = ack("Failed. The server is tracking too many symbols to take new ones.");
+
+   private static final long MAX_MOVE_PERCENT = 100L * QuoteStore.SCALE;
+
+   // shared by every connection; does the polling and pushes updates back to the client
+   private final QuoteEngine quoteEngine;
+
+   // stateless JSON serializer/deserializer, for the commands the parser leaves to it
    private Gson gson = new Gson();
 
-   private static final AtomicBoolean keepRunning = new AtomicBoolean(true);
-
-   // Keep track of the current channel so we can talk directly to the client
-   private AtomicReference<Channel> channel = new AtomicReference();
+   // one handler per connection, only called on its event loop, so these are reused command to command
+   private final TickerRequestParser parser;
+   private final TickerRequest request = new TickerRequest();
+   private final List<String> symbols = new ArrayList<>();
 
-   // need an executor for the thread that will intermittently send data to the client
-   private ExecutorService executor = Executors.newSingleThreadExecutor(
-         new ThreadFactoryBuilder()
-               .setDaemon(true)
-               .setNameFormat("ticker-processor-%d")
-               .build()
-   );
-
-   public StockTickerMessageHandler() {
-      SendResultsCallable toClientCallable = new SendResultsCallable();
-      FutureTask<String> toClientPc = new FutureTask<>(toClientCallable);
-      executor.execute(toClientPc);
+   public StockTickerMessageHandler(QuoteEngine quoteEngine) {
+      this.quoteEngine = quoteEngine;
+      this.parser = new TickerRequestParser(quoteEngine.getQuoteStore().getSymbols());
    }
 
    public String handleMessage(ChannelHandlerContext ctx, String frameText) {
-      this.channel.set(ctx.channel());
-      TickerResponse tickerResponse = new TickerResponse();
-      TickerRequest tickerRequest = gson.fromJson(frameText, TickerRequest.class);
-
-      if (tickerRequest.getCommand() != null) {
-         if ("add".equals(tickerRequest.getCommand())) {
-            tickerSymbols.add(tickerRequest.getTickerSymbol());
-            tickerResponse.setResult("success");
-         } else if ("remove".equals(tickerRequest.getCommand())) {
-            tickerSymbols.remove(tickerRequest.getTickerSymbol());
-            tickerResponse.setResult("success");
-         } else {
-            tickerResponse.setResult("Failed. Command not recognized.");
-         }
-      } else {
-         tickerResponse.setResult("Failed. Command not recognized.");
+      ByteBuf response = handleMessage(ctx, Unpooled.wrappedBuffer(frameText.getBytes(CharsetUtil.UTF_8)));
+      try {
+         return response.toString(CharsetUtil.UTF_8);
+      } finally {
+         response.release();
       }
-
-      String response = gson.toJson(tickerResponse);
-      return response;
    }
 
    /**
-    * This class runs as a thread, and waits for messages to arrive in its queue that are to be sent back to the client.
-    *
-    * @author jwb
+    * add, remove and replace take either one tickerSymbol or a tickerSymbols array. Either way the
+    * whole command is applied as one batch and answered with one ack. add may also ask for the
+    * journaled ticks of its new symbols, with replayLast and/or replaySince, which come after the
+    * ack and before the snapshot. bars subscribes to the symbols' OHLC bars in an interval (1m unless
+    * given), sending the last limit of them and then each as it changes. alert sets price alerts on
+    * the symbols, any of above, below and movePercent, each pushed as an alert frame once it fires;
+    * clearAlerts drops the connection's alerts on the symbols, or all of them if none are given.
     */
-   class SendResultsCallable implements Callable<String> {
-      // one per callable as it is stateless, but not thread safe
-      private Gson gson = new Gson();
-
-      public SendResultsCallable() {
+   public ByteBuf handleMessage(ChannelHandlerContext ctx, ByteBuf message) {
+      TickerRequest tickerRequest = request;
+      if (!parser.parse(message, tickerRequest)) {
+         // escapes and the like, which the parser leaves to Gson
+         tickerRequest = gson.fromJson(message.toString(CharsetUtil.UTF_8), TickerRequest.class);
       }
+      return handleRequest(ctx, tickerRequest).duplicate();
+   }
 
-      @Override
-      public String call() throws Exception {
-         // keep going until all messages are sent
-         while (keepRunning.get()) {
-            if (tickerSymbols.size() > 0) {
-               TickerResponse tickerResponse = new TickerResponse();
-               tickerResponse.setResult("success");
-               tickerResponse.setTickerData(getPricesForSymbols(tickerSymbols));
-
-               String response = gson.toJson(tickerResponse);
+   private ByteBuf handleRequest(ChannelHandlerContext ctx, TickerRequest tickerRequest) {
+      String command = tickerRequest.getCommand();
+      List<String> symbols = symbolsOf(tickerRequest);
 
-               // send the client an update
-               channel.get().writeAndFlush(new TextWebSocketFrame(response));
+      if ("add".equals(command) || "remove".equals(command)) {
+         if (symbols.isEmpty()) {
+            return NO_SYMBOL;
+         }
+         if ("add".equals(command)) {
+            if (!areSymbols(symbols)) {
+               // they end up in upstream URLs and hand-written frames
+               return NOT_A_SYMBOL;
+            } else if (!quoteEngine.intern(symbols)) {
+               return TOO_MANY_SYMBOLS;
             }
-
-            // only try to send back to client every 2 seconds so it isn't overwhelmed with messages
-            Thread.sleep(2000L);
+            subscribe(ctx, symbols, tickerRequest);
+         } else {
+            quoteEngine.unsubscribe(ctx.channel(), symbols);
+         }
+         return SUCCESS;
+      } else if ("bars".equals(command)) {
+         int interval = BarRollup.intervalOf(tickerRequest.getInterval() == null ? "1m" : tickerRequest.getInterval());
+         Integer limit = tickerRequest.getLimit();
+         if (symbols.isEmpty()) {
+            return NO_SYMBOL;
+         } else if (QuoteCache.parseSymbols(symbols) == null) {
+            // bar frames are written by hand, so only symbols that need no escaping
+            return NOT_A_SYMBOL;
+         } else if (interval < 0) {
+            return BAD_INTERVAL;
+         } else if (!quoteEngine.intern(symbols)) {
+            return TOO_MANY_SYMBOLS;
          }
+         quoteEngine.subscribeBars(ctx.channel(), symbols, interval,
+               limit == null ? BarRollup.DEFAULT_CAPACITY : Math.max(0, Math.min(limit, BarRollup.DEFAULT_CAPACITY)));
+         return SUCCESS;
+      } else if ("alert".equals(command)) {
+         if (symbols.isEmpty()) {
+            return NO_SYMBOL;
+         } else if (QuoteCache.parseSymbols(symbols) == null) {
+            // alert frames are written by hand too
+            return NOT_A_SYMBOL;
+         } else if (!quoteEngine.intern(symbols)) {
+            return TOO_MANY_SYMBOLS;
+         }
+         return alert(ctx, symbols, tickerRequest);
+      } else if ("clearAlerts".equals(command)) {
+         quoteEngine.removeAlerts(ctx.channel(), symbols);
+         return SUCCESS;
+      } else if ("replace".equals(command)) {
+         // an empty list is fine here, it just drops everything
+         if (!areSymbols(symbols)) {
+            return NOT_A_SYMBOL;
+         } else if (!quoteEngine.intern(symbols)) {
+            return TOO_MANY_SYMBOLS;
+         }
+         quoteEngine.replace(ctx.channel(), symbols);
+         return SUCCESS;
+      }
+      return UNKNOWN_COMMAND;
+   }
 
-         return "done";
+   private void subscribe(ChannelHandlerContext ctx, List<String> symbols, TickerRequest tickerRequest) {
+      Integer last = tickerRequest.getReplayLast();
+      Long since = tickerRequest.getReplaySince();
+      if ((last == null || last <= 0) && (since == null || since <= 0)) {
+         quoteEngine.subscribe(ctx.channel(), symbols);
+         return;
       }
+
+      // since alone means all of them since then, as many as a replay sends
+      int limit = last != null && last > 0 ? last : TickJournal.MAX_REPLAY;
+      quoteEngine.subscribe(ctx.channel(), symbols, since != null && since > 0 ? since : 0L, limit);
    }
 
-   private Map<String, String> getPricesForSymbols(List<String> symbols) {
-      Map<String, String> response = new HashMap<>();
-      String url = STOCK_URL_START;
-      boolean first = true;
-      for (String symbol : symbols) {
-         if (first) {
-            first = false;
-         } else {
-            url += "%2C";
-         }
-         url += "%22" + symbol + "%22";
+   private ByteBuf alert(ChannelHandlerContext ctx, List<String> symbols, TickerRequest tickerRequest) {
+      String aboveText = tickerRequest.getAbove();
+      String belowText = tickerRequest.getBelow();
+      String moveText = tickerRequest.getMovePercent();
+      if (aboveText == null && belowText == null && moveText == null) {
+         return BAD_ALERT;
       }
-      
-      url += STOCK_URL_END;
 
-      CloseableHttpClient httpClient = HttpClients.custom()
-         .addInterceptorFirst(new HttpRequestInterceptor() {
+      // a condition that was given has to be a number
+      long above = aboveText == null ? QuoteStore.NO_PRICE : QuoteStore.parsePrice(aboveText);
+      long below = belowText == null ? QuoteStore.NO_PRICE : QuoteStore.parsePrice(belowText);
+      long movePercent = moveText == null ? QuoteStore.NO_PRICE : QuoteStore.parsePrice(moveText);
+      if (aboveText != null && above == QuoteStore.NO_PRICE
+            || belowText != null && below == QuoteStore.NO_PRICE
+            || moveText != null && (movePercent <= 0 || movePercent > MAX_MOVE_PERCENT)) {
+         return BAD_ALERT;
+      }
 
-            public void process(
-                  final HttpRequest request,
-                  final HttpContext context) throws HttpException, IOException {
-               if (!request.containsHeader("Accept-Encoding")) {
-                  request.addHeader("Accept-Encoding", "gzip");
-               }
+      if (!quoteEngine.addAlerts(ctx.channel(), symbols, above, below, movePercent)) {
+         return TOO_MANY_ALERTS;
+      }
+      return SUCCESS;
+   }
 
-            }
-         }).addInterceptorFirst(new HttpResponseInterceptor() {
-
-               public void process(
-                     final HttpResponse response,
-                     final HttpContext context) throws HttpException, IOException {
-                  HttpEntity entity = response.getEntity();
-                  if (entity != null) {
-                     Header ceheader = entity.getContentEncoding();
-                     if (ceheader != null) {
-                        HeaderElement[] codecs = ceheader.getElements();
-                        for (int i = 0; i < codecs.length; i++) {
-                           if (codecs[i].getName().equalsIgnoreCase("gzip")) {
-                              response.setEntity(
-                                    new GzipDecompressingEntity(response.getEntity()));
-                              return;
-                           }
-                        }
-                     }
-                  }
-               }
-            }).build();
+   /**
+    * The engine copies whatever it keeps, so the same list does for every command.
+    */
+   private List<String> symbolsOf(TickerRequest tickerRequest) {
+      symbols.clear();
+      addSymbol(symbols, tickerRequest.getTickerSymbol());
+      if (tickerRequest.getTickerSymbols() != null) {
+         for (String symbol : tickerRequest.getTickerSymbols()) {
+            addSymbol(symbols, symbol);
+         }
+      }
+      return symbols;
+   }
 
-      try {
-         HttpUriRequest query = RequestBuilder.get()
-             .setUri(url)
-             .build();
-         CloseableHttpResponse queryResponse = httpClient.execute(query);
-         try {
-            HttpEntity entity = queryResponse.getEntity();
-            if (entity != null) {
-               String data = EntityUtils.toString(entity);
-               JsonObject jsonObject = JsonObject.readFrom(data);
-               jsonObject = jsonObject.get("query").asObject();
-               jsonObject = jsonObject.get("results").asObject();
-               if (jsonObject.get("quote").isArray()) {
-                  JsonArray jsonArray = jsonObject.get("quote").asArray();
-                  for (int i = 0; i < jsonArray.size(); i++) {
-                     jsonObject = jsonArray.get(i).asObject();
-                     String symbol = jsonObject.get("Symbol").asString();
-                     String price = jsonObject.get("LastTradePriceOnly").asString();
-                     response.put(symbol, price);
-                  }
-               } else {
-                  jsonObject = jsonObject.get("quote").asObject();
-                  String symbol = jsonObject.get("Symbol").asString();
-                  String price = jsonObject.get("LastTradePriceOnly").asString();
-                  response.put(symbol, price);
-               }
-            }
-         } finally {
-            queryResponse.close();
+   private static boolean areSymbols(List<String> symbols) {
+      for (String symbol : symbols) {
+         if (!QuoteCache.isSymbol(symbol)) {
+            return false;
          }
-      } catch (Exception e) {
-      } finally {
-         try {httpClient.close();} catch (Exception e) {}
       }
+      return true;
+   }
 
-      return response;
+   private static void addSymbol(List<String> symbols, String symbol) {
+      if (symbol != null && !symbol.trim().isEmpty()) {
+         symbols.add(symbol.trim());
+      }
+   }
+
+   private static ByteBuf ack(String result) {
+      TickerResponse tickerResponse = new TickerResponse();
+      tickerResponse.setResult(result);
+      byte[] bytes = new Gson().toJson(tickerResponse).getBytes(CharsetUtil.UTF_8);
+      return Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
    }
 }
@@ -19,58 +19,112 @@ package com.khs.stockticker;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Server that accept the path of a file an echo back its content.
  */
 public final class StockTickerServer {
    private static final Logger logger = LoggerFactory.getLogger(StockTickerServerHandler.class);
-   private static final int PORT = Integer.parseInt(System.getProperty("port", "8080"));
 
    public static void main(String[] args) throws Exception {
+      final StockTickerConfig config = new StockTickerConfig();
+      final int acceptors = config.getAcceptorThreads();
+
       // Configure the server.
-      EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-      EventLoopGroup workerGroup = new NioEventLoopGroup();
+      EventLoopGroup bossGroup = config.newEventLoopGroup(acceptors);
+      EventLoopGroup workerGroup = config.newEventLoopGroup(config.getWorkerThreads());
+
+      // one quote engine for the whole process, shared by every connection
+      final QuoteEngine quoteEngine = new QuoteEngine(
+            config.newQuoteSource(workerGroup),
+            config.getSlowConsumerTimeoutMillis(),
+            config.newPollScheduler(),
+            config.getDispatchWindowMicros(),
+            config.newTickJournal(),
+            config.getMaxAlertsPerConnection(),
+            config.getMaxSymbols());
+      if (quoteEngine.getQuoteSource() instanceof ClusterQuoteSource) {
+         ((ClusterQuoteSource) quoteEngine.getQuoteSource()).join(quoteEngine);
+      }
+      final PerMessageDeflateHandshaker deflate = config.newDeflateHandshaker();
+      final QuoteCache quoteCache = new QuoteCache(quoteEngine, config.getQuoteCacheTtlMillis(), config.getQuoteCacheStaleMillis());
+      final MetricsReporter metrics = new MetricsReporter(quoteEngine, deflate != null ? deflate.getStats() : null, quoteCache);
       try {
          ServerBootstrap b = new ServerBootstrap();
          b.group(bossGroup, workerGroup)
-          .channel(NioServerSocketChannel.class)
-          .handler(new LoggingHandler(LogLevel.INFO))
+          .channel(config.getServerChannelClass())
+          .option(ChannelOption.SO_BACKLOG, config.getBacklog())
+          .option(ChannelOption.ALLOCATOR, config.getAllocator())
+          .childOption(ChannelOption.ALLOCATOR, config.getAllocator())
+          .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+          .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()))
           .childHandler(new ChannelInitializer<SocketChannel>() {
              @Override
              public void initChannel(SocketChannel ch) throws Exception {
+                metrics.connectionOpened(ch);
+
                 ChannelPipeline p = ch.pipeline();
                 p.addLast("encoder", new HttpResponseEncoder());
                 p.addLast("decoder", new HttpRequestDecoder());
                 p.addLast("aggregator", new HttpObjectAggregator(65536));
-                p.addLast("handler", new StockTickerServerHandler());
+                if (deflate != null) {
+                   // swaps itself for the deflate encoder and decoder once a client negotiates it
+                   p.addLast("wsextensions", new WebSocketServerExtensionHandler(deflate));
+                }
+                p.addLast("handler", new StockTickerServerHandler(quoteEngine, deflate != null, metrics, quoteCache,
+                      config.getMaxMessageBytes()));
              }
           });
 
+         if (config.isConnectionLogging()) {
+            b.handler(new LoggingHandler(LogLevel.INFO));
+         }
+
+         // with SO_REUSEPORT every acceptor thread gets its own listening socket on the same port
+         if (acceptors > 1) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+         }
+
          // Start the server.
-         ChannelFuture f = b.bind(PORT).sync();
-         logger.info("Ticket Symbol Server started");
+         List<ChannelFuture> servers = new ArrayList<>(acceptors);
+         for (int i = 0; i < acceptors; i++) {
+            servers.add(b.bind(config.getPort()).sync());
+         }
+         logger.info("Ticket Symbol Server started on port {} ({} transport, {} acceptor(s))",
+               config.getPort(), config.useEpoll() ? "epoll" : "nio", acceptors);
 
-         // Wait until the server socket is closed.
-         f.channel().closeFuture().sync();
+         // Wait until the server sockets are closed.
+         for (ChannelFuture f : servers) {
+            f.channel().closeFuture().sync();
+         }
       } finally {
          logger.info("Ticket Symbol Server shutdown started");
          // Shut down all event loops to terminate all threads.
+         quoteEngine.stop();
+         if (deflate != null) {
+            logger.info("permessage-deflate: {}", deflate.getStats());
+         }
          bossGroup.shutdownGracefully();
          workerGroup.shutdownGracefully();
          logger.info("Ticket Symbol Server shutdown completed");
       }
    }
-}
\ No newline at end of file
+}
@@ -1,10 +1,21 @@
 package com.khs.stockticker;
 
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
@@ -13,18 +24,52 @@ import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 public class StockTickerServerHandler extends SimpleChannelInboundHandler<Object> {
    private static final Logger logger = LoggerFactory.getLogger(StockTickerServerHandler.class);
 
+   public static final int DEFAULT_MAX_MESSAGE_BYTES = 65536;
+
+   // close code for a message over the limit
+   private static final int MESSAGE_TOO_BIG = 1009;
+
+   protected final QuoteEngine quoteEngine;
+   protected final boolean allowExtensions;
+   protected final MetricsReporter metrics;
+   protected final QuoteCache quoteCache;
+   protected final int maxMessageBytes;
    protected WebSocketServerHandshaker handshaker;
-   private   StringBuilder frameBuffer = null;
-   protected WebSocketMessageHandler wsMessageHandler = new StockTickerMessageHandler();
+
+   // the fragments of a message split over several frames, so far
+   private   CompositeByteBuf fragments = null;
+   protected WebSocketMessageHandler wsMessageHandler;
    protected NettyHttpFileHandler httpFileHandler = new NettyHttpFileHandler();
    
-   public StockTickerServerHandler() {
+   public StockTickerServerHandler(QuoteEngine quoteEngine) {
+      this(quoteEngine, false, null, null, DEFAULT_MAX_MESSAGE_BYTES);
+   }
+
+   /**
+    * @param allowExtensions whether the handshake may accept websocket extensions (RSV bits)
+    * @param metrics what GET /metrics serves, or null for no metrics endpoint
+    * @param quoteCache what GET /api/quotes serves, or null for no quote API
+    * @param maxMessageBytes the biggest websocket message, all its frames together, a client may send
+    */
+   public StockTickerServerHandler(QuoteEngine quoteEngine, boolean allowExtensions, MetricsReporter metrics,
+                                   QuoteCache quoteCache, int maxMessageBytes) {
+      this.quoteEngine = quoteEngine;
+      this.allowExtensions = allowExtensions;
+      this.metrics = metrics;
+      this.quoteCache = quoteCache;
+      this.maxMessageBytes = maxMessageBytes;
+      this.wsMessageHandler = new StockTickerMessageHandler(quoteEngine);
    }
 
    @Override
@@ -36,12 +81,26 @@ public class StockTickerServerHandler extends SimpleChannelInboundHandler<Object
       }
    }
 
+   @Override
+   public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+      // lets a session hold back updates while the client is slow, and catch up once it drains
+      quoteEngine.writabilityChanged(ctx.channel());
+      super.channelWritabilityChanged(ctx);
+   }
+
+   @Override
+   public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      releaseFragments();
+      super.channelInactive(ctx);
+   }
+
    protected void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame) {
       logger.debug("Received incoming frame [{}]", frame.getClass().getName());
       // Check for closing frame
       if (frame instanceof CloseWebSocketFrame) {
-         if (frameBuffer != null) {
-             handleMessageCompleted(ctx, frameBuffer.toString());
+         if (fragments != null) {
+             handleMessageCompleted(ctx, fragments);
+             releaseFragments();
          }
          handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
          return;
@@ -57,63 +116,215 @@ public class StockTickerServerHandler extends SimpleChannelInboundHandler<Object
          return;
       }
 
+      ByteBuf content = frame.content();
       if (frame instanceof TextWebSocketFrame) {
-         frameBuffer = new StringBuilder();
-         frameBuffer.append(((TextWebSocketFrame)frame).text());
+         releaseFragments();
+         if (frame.isFinalFragment()) {
+            // the usual case, a whole message in one frame, is handled straight from the frame's buffer
+            if (fits(ctx, content.readableBytes())) {
+               handleMessageCompleted(ctx, content);
+            }
+            return;
+         }
+         // past its component limit a composite copies everything into one buffer, and with empty
+         // fragments skipped there can't be more components than bytes, so it never gets there
+         fragments = ctx.alloc().compositeBuffer(Math.max(2, maxMessageBytes));
       } else if (frame instanceof ContinuationWebSocketFrame) {
-         if (frameBuffer != null) {
-            frameBuffer.append(((ContinuationWebSocketFrame)frame).text());
-         } else {
+         if (fragments == null) {
             logger.warn("Continuation frame received without initial frame.");
+            return;
          }
       } else {
          throw new UnsupportedOperationException(String.format("%s frame types not supported", frame.getClass().getName()));
       }
 
+      // the fragments are kept as they are, not copied
+      if (!fits(ctx, fragments.readableBytes() + content.readableBytes())) {
+         return;
+      }
+      if (content.isReadable()) {
+         fragments.addComponent(true, content.retain());
+      }
+
       // Check if Text or Continuation Frame is final fragment and handle if needed.
       if (frame.isFinalFragment()) {
-         handleMessageCompleted(ctx, frameBuffer.toString());
-         frameBuffer = null;
+         handleMessageCompleted(ctx, fragments);
+         releaseFragments();
       }
    }
-   
-   protected void handleMessageCompleted(ChannelHandlerContext ctx, String frameText) {
-      String response = wsMessageHandler.handleMessage(ctx, frameText);
+
+   protected void handleMessageCompleted(ChannelHandlerContext ctx, ByteBuf message) {
+      ByteBuf response = wsMessageHandler.handleMessage(ctx, message);
       if (response != null) {
          ctx.channel().writeAndFlush(new TextWebSocketFrame(response));
       }
    }
 
+   /**
+    * Closes the connection with 1009 if a message would be bigger than maxMessageBytes.
+    */
+   private boolean fits(ChannelHandlerContext ctx, int messageBytes) {
+      if (messageBytes <= maxMessageBytes) {
+         return true;
+      }
+      logger.warn("Closing {}, message over {} bytes", ctx.channel().remoteAddress(), maxMessageBytes);
+      releaseFragments();
+      handshaker.close(ctx.channel(), new CloseWebSocketFrame(MESSAGE_TOO_BIG, "Message too big"));
+      return false;
+   }
+
+   private void releaseFragments() {
+      if (fragments != null) {
+         fragments.release();
+         fragments = null;
+      }
+   }
+
    protected boolean handleREST(ChannelHandlerContext ctx, FullHttpRequest req) {
       // check request path here and process any HTTP REST calls
       // return true if message has been processed
+      QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+      String path = decoder.path();
+      if (quoteCache != null && QuoteCache.PATH.equals(path)) {
+         handleQuotes(ctx, req, decoder);
+         return true;
+      }
+
+      if (BarRollup.PATH.equals(path)) {
+         handleBars(ctx, req, decoder);
+         return true;
+      }
+
+      if (metrics != null && MetricsReporter.PATH.equals(path)) {
+         FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+               Unpooled.copiedBuffer(metrics.scrape(), CharsetUtil.UTF_8));
+         res.headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsReporter.CONTENT_TYPE);
+         res.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+         httpFileHandler.sendHttpResponse(ctx, req, res);
+         return true;
+      }
 
       return false;
    }
 
+   /**
+    * GET /api/quotes?symbols=GOOG,F. Answers once any symbol too old to serve has been loaded, which
+    * is usually straight away.
+    */
+   protected void handleQuotes(final ChannelHandlerContext ctx, final FullHttpRequest req, QueryStringDecoder decoder) {
+      final List<String> symbols = QuoteCache.parseSymbols(decoder.parameters().get("symbols"));
+      if (symbols == null) {
+         httpFileHandler.sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+         return;
+      }
+
+      // the request is released when channelRead0 returns, before a load could finish
+      req.retain();
+      quoteCache.load(symbols, ctx.executor()).addListener(new GenericFutureListener<Future<Void>>() {
+         @Override
+         public void operationComplete(Future<Void> future) {
+            try {
+               sendQuotes(ctx, req, symbols);
+            } finally {
+               req.release();
+            }
+         }
+      });
+   }
+
+   protected void sendQuotes(ChannelHandlerContext ctx, FullHttpRequest req, List<String> symbols) {
+      if (!ctx.channel().isActive()) {
+         return;
+      }
+
+      String etag = quoteCache.etag(symbols);
+      String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+      boolean notModified = ifNoneMatch != null && ("*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag));
+
+      // unlike sendHttpResponse, a 304 here keeps the connection for the client's next poll
+      ByteBuf content = notModified
+            ? Unpooled.EMPTY_BUFFER
+            : Unpooled.copiedBuffer(quoteCache.toJson(symbols), CharsetUtil.UTF_8);
+      FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+            notModified ? HttpResponseStatus.NOT_MODIFIED : HttpResponseStatus.OK, content);
+      res.headers().set(HttpHeaderNames.ETAG, etag);
+      res.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=" + quoteCache.getTtlMillis() / 1000);
+      if (!notModified) {
+         res.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+      }
+      HttpUtil.setContentLength(res, content.readableBytes());
+      sendKeepAlive(ctx, req, res);
+   }
+
+   /**
+    * GET /api/bars?symbol=GOOG&interval=1m&limit=500, the symbol's latest OHLC bars, oldest first.
+    * interval is 1s, 1m (the default), 5m or 1h. Bars are only kept for symbols somebody is
+    * watching, so any other symbol gets none.
+    */
+   protected void handleBars(ChannelHandlerContext ctx, FullHttpRequest req, QueryStringDecoder decoder) {
+      List<String> symbols = QuoteCache.parseSymbols(decoder.parameters().get("symbol"));
+      int interval = BarRollup.intervalOf(parameter(decoder, "interval", "1m"));
+      int limit;
+      try {
+         limit = Integer.parseInt(parameter(decoder, "limit", String.valueOf(BarRollup.DEFAULT_CAPACITY)));
+      } catch (NumberFormatException e) {
+         limit = -1;
+      }
+      if (symbols == null || symbols.size() != 1 || interval < 0 || limit < 0) {
+         httpFileHandler.sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+         return;
+      }
+
+      StringBuilder sb = new StringBuilder(64 + Math.min(limit, BarRollup.DEFAULT_CAPACITY) * 112).append('{');
+      quoteEngine.getBarRollup().appendJson(sb, symbols.get(0), interval, limit).append('}');
+      FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+            Unpooled.copiedBuffer(sb, CharsetUtil.UTF_8));
+      res.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+      res.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+      HttpUtil.setContentLength(res, res.content().readableBytes());
+      sendKeepAlive(ctx, req, res);
+   }
+
+   private static String parameter(QueryStringDecoder decoder, String name, String defaultValue) {
+      List<String> values = decoder.parameters().get(name);
+      return values == null || values.isEmpty() ? defaultValue : values.get(0);
+   }
+
+   /**
+    * Unlike sendHttpResponse, keeps the connection open if the client asked, for its next poll.
+    */
+   private void sendKeepAlive(ChannelHandlerContext ctx, FullHttpRequest req, FullHttpResponse res) {
+      if (HttpUtil.isKeepAlive(req)) {
+         res.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+         ctx.writeAndFlush(res);
+      } else {
+         ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+      }
+   }
+
    protected void handleHttpRequest(ChannelHandlerContext ctx, FullHttpRequest req)
          throws Exception {
       // Handle a bad request.
-      if (!req.getDecoderResult().isSuccess()) {
+      if (!req.decoderResult().isSuccess()) {
          httpFileHandler.sendError(ctx, HttpResponseStatus.BAD_REQUEST);
          return;
       }
 
       // If you're going to do normal HTTP POST authentication before upgrading the
       // WebSocket, the recommendation is to handle it right here
-      if (req.getMethod() == HttpMethod.POST) {
+      if (req.method() == HttpMethod.POST) {
          httpFileHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN);
          return;
       }
 
       // Allow only GET methods.
-      if (req.getMethod() != HttpMethod.GET) {
+      if (req.method() != HttpMethod.GET) {
          httpFileHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN);
          return;
       }
 
       // Send the demo page and favicon.ico
-      if ("/".equals(req.getUri())) {
+      if ("/".equals(req.uri())) {
          httpFileHandler.sendRedirect(ctx, "/index.html");
          return;
       }
@@ -123,12 +334,15 @@ public class StockTickerServerHandler extends SimpleChannelInboundHandler<Object
       if (upgradeHeader != null && "websocket".equalsIgnoreCase(upgradeHeader)) {
          // Handshake. Ideally you'd want to configure your websocket uri
          String url = "ws://" + req.headers().get("Host") + "/wsticker";
-         WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(url, null, false);
+         WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(url, TickerSession.SUBPROTOCOLS, allowExtensions,
+               maxMessageBytes);
          handshaker = wsFactory.newHandshaker(req);
          if (handshaker == null) {
             WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
          } else {
             handshaker.handshake(ctx.channel(), req);
+            // null when the client didn't ask for one we speak, which means JSON
+            ctx.channel().attr(TickerSession.SUBPROTOCOL).set(handshaker.selectedSubprotocol());
          }
       } else {
          boolean handled = handleREST(ctx, req);
@@ -0,0 +1,146 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps ticker symbols to dense integer ids, which are never reused.
+ *
+ * Lookups are lock free and can be done straight from the bytes of a buffer, so the parser never
+ * has to build a String to find a symbol it already knows. Adds must be serialized by the caller.
+ */
+public class SymbolTable {
+   private static final int INITIAL_CAPACITY = 1024;
+
+   // open addressing, always at most half full
+   private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+   private volatile String[] names = new String[INITIAL_CAPACITY];
+   private volatile int size;
+
+   /**
+    * Returns the id for symbol, or -1 if it has never been added.
+    */
+   public int idOf(String symbol) {
+      AtomicReferenceArray<Entry> t = table;
+      int mask = t.length() - 1;
+      for (int i = hash(symbol) & mask; ; i = (i + 1) & mask) {
+         Entry entry = t.get(i);
+         if (entry == null) {
+            return -1;
+         }
+         if (entry.name.equals(symbol)) {
+            return entry.id;
+         }
+      }
+   }
+
+   /**
+    * Returns the id for the ASCII symbol at buf[index, index + length), or -1 if it has never been added.
+    */
+   public int idOf(ByteBuf buf, int index, int length) {
+      int h = 0;
+      for (int i = 0; i < length; i++) {
+         h = 31 * h + (buf.getByte(index + i) & 0xff);
+      }
+
+      AtomicReferenceArray<Entry> t = table;
+      int mask = t.length() - 1;
+      for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+         Entry entry = t.get(i);
+         if (entry == null) {
+            return -1;
+         }
+         if (entry.matches(buf, index, length)) {
+            return entry.id;
+         }
+      }
+   }
+
+   public String name(int id) {
+      return names[id];
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Adds a symbol that is not in the table yet and returns its id. Callers must hold a lock.
+    */
+   int add(String symbol) {
+      int id = size;
+      if (id == names.length) {
+         String[] grown = new String[id * 2];
+         System.arraycopy(names, 0, grown, 0, id);
+         names = grown;
+      }
+      names[id] = symbol;
+
+      AtomicReferenceArray<Entry> t = table;
+      if ((id + 1) * 2 > t.length()) {
+         t = rehash(t, t.length() * 2);
+      }
+      insert(t, new Entry(symbol, id));
+
+      table = t;
+      size = id + 1;
+      return id;
+   }
+
+   private static AtomicReferenceArray<Entry> rehash(AtomicReferenceArray<Entry> old, int capacity) {
+      AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<>(capacity);
+      for (int i = 0; i < old.length(); i++) {
+         Entry entry = old.get(i);
+         if (entry != null) {
+            insert(grown, entry);
+         }
+      }
+      return grown;
+   }
+
+   private static void insert(AtomicReferenceArray<Entry> t, Entry entry) {
+      int mask = t.length() - 1;
+      int i = entry.hash & mask;
+      while (t.get(i) != null) {
+         i = (i + 1) & mask;
+      }
+      t.set(i, entry);
+   }
+
+   // String.hashCode over the ASCII bytes, so both lookups land in the same slot
+   private static int hash(String symbol) {
+      return spread(symbol.hashCode());
+   }
+
+   private static int spread(int h) {
+      return h ^ (h >>> 16);
+   }
+
+   private static final class Entry {
+      final String name;
+      final byte[] bytes;
+      final int id;
+      final int hash;
+
+      Entry(String name, int id) {
+         this.name = name;
+         this.bytes = name.getBytes(CharsetUtil.UTF_8);
+         this.id = id;
+         this.hash = hash(name);
+      }
+
+      boolean matches(ByteBuf buf, int index, int length) {
+         if (bytes.length != length) {
+            return false;
+         }
+         for (int i = 0; i < length; i++) {
+            if (buf.getByte(index + i) != bytes[i]) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+}
@@ -0,0 +1,515 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only history of every price each symbol has had, so a client that subscribes can be sent
+ * the recent ticks rather than just the latest price.
+ *
+ * Each symbol has its own log: a run of fixed-size segment files, SYMBOL.000000000042.ticks,
+ * memory-mapped as they are created, with the oldest deleted once there are more than the number
+ * kept. A record is three big-endian longs, timestamp, price and change, with the timestamp
+ * written last, so a record is there once its timestamp is non-zero and a reopened segment ends at
+ * its first zero timestamp. Timestamps never go backwards within a symbol's log.
+ *
+ * To find where a time falls without reading every record, each segment keeps the timestamp of
+ * every INDEX_INTERVAL'th record in memory, so a lookup reads at most that many.
+ *
+ * Reads hand out slices of the mapped segments rather than copies: binary clients get the records
+ * exactly as they sit on disk, and JSON is written straight from them. Writes survive the process
+ * dying but not the machine, as nothing forces them to disk.
+ *
+ * Only symbols somebody is watching are open: {@link #open} maps a symbol's files and
+ * {@link #release} closes them again, unmapping each segment once no read still holds it. Appends
+ * and reads for a symbol that isn't open do nothing, so a tick landing after its last subscriber
+ * left can't bring it back. {@link #expire} deletes the files of closed symbols that haven't been
+ * written for the retention period, so symbols nobody asks for again don't stay on disk for ever.
+ */
+public class TickJournal {
+   private static final Logger logger = LoggerFactory.getLogger(TickJournal.class);
+
+   public static final int RECORD_BYTES = 24;
+   public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+   public static final int DEFAULT_SEGMENTS = 4;
+   public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+   // the most ticks one replay will send per symbol
+   public static final int MAX_REPLAY = 5000;
+
+   private static final int INDEX_INTERVAL = 256;
+   private static final String SUFFIX = ".ticks";
+
+   private static final int TIMESTAMP = 0;
+   private static final int PRICE = 8;
+   private static final int CHANGE = 16;
+
+   // symbols become file names, so nothing that could leave the directory, e.g. GOOG, BRK-B, ^GSPC
+   private static final Pattern SYMBOL = Pattern.compile("[A-Za-z0-9^=-][A-Za-z0-9.^=-]{0,15}");
+
+   private final Path dir;
+   private final int recordsPerSegment;
+   private final int segmentsKept;
+   private final long retentionMillis;
+
+   // open symbols only; see release
+   private final ConcurrentMap<String, SymbolLog> logs = new ConcurrentHashMap<>();
+
+   private final LongAdder appended = new LongAdder();
+   private final LongAdder replayed = new LongAdder();
+   private final LongAdder expired = new LongAdder();
+
+   public TickJournal(Path dir) throws IOException {
+      this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENTS, DEFAULT_RETENTION_MILLIS);
+   }
+
+   /**
+    * @param segmentBytes    size of each segment file, rounded down to whole records
+    * @param segmentsKept    segments per symbol, the oldest going once a new one would exceed it
+    * @param retentionMillis how long a closed symbol's files are kept after they were last written
+    */
+   public TickJournal(Path dir, int segmentBytes, int segmentsKept, long retentionMillis) throws IOException {
+      this.dir = Files.createDirectories(dir);
+      this.recordsPerSegment = Math.max(INDEX_INTERVAL, segmentBytes / RECORD_BYTES);
+      this.segmentsKept = Math.max(1, segmentsKept);
+      this.retentionMillis = retentionMillis;
+   }
+
+   /**
+    * Ticks written.
+    */
+   public long getAppended() {
+      return appended.sum();
+   }
+
+   /**
+    * Ticks read back for clients.
+    */
+   public long getReplayed() {
+      return replayed.sum();
+   }
+
+   /**
+    * Segment files deleted for being past the retention period.
+    */
+   public long getExpired() {
+      return expired.sum();
+   }
+
+   /**
+    * Symbols whose logs are open.
+    */
+   public int getOpen() {
+      return logs.size();
+   }
+
+   /**
+    * Opens the symbol's log, if it isn't already, so its ticks are journaled. Symbols that wouldn't
+    * make a safe file name aren't.
+    */
+   public void open(String symbol) {
+      if (SYMBOL.matcher(symbol).matches()) {
+         logs.computeIfAbsent(symbol, key -> new SymbolLog(key));
+      }
+   }
+
+   /**
+    * Records the symbol's quote unless it is the same as the last one recorded, if its log is open.
+    *
+    * @return whether a record was written
+    */
+   public boolean append(String symbol, long price, long change, long timestamp) {
+      SymbolLog log = logs.get(symbol);
+      if (log != null && log.append(price, change, timestamp)) {
+         appended.increment();
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * The newest ticks from since onwards, at most limit of them (capped at MAX_REPLAY), oldest
+    * first. Pass 0 for since to just get the last limit ticks. None if the symbol isn't open. The
+    * caller must release them.
+    */
+   public Ticks read(String symbol, long since, int limit) {
+      SymbolLog log = logs.get(symbol);
+      Ticks ticks = log == null ? Ticks.EMPTY : log.read(since, Math.min(limit, MAX_REPLAY));
+      replayed.add(ticks.getCount());
+      return ticks;
+   }
+
+   /**
+    * Closes the symbol's log, for when nobody watches it any more. Its files stay, for the next
+    * open, until they expire.
+    */
+   public void release(String symbol) {
+      SymbolLog log = logs.remove(symbol);
+      if (log != null) {
+         log.close();
+      }
+   }
+
+   /**
+    * Deletes the segment files of closed symbols last written before the retention period. Each
+    * symbol is checked inside compute, so it can't be opened while its files go.
+    *
+    * @return how many were deleted
+    */
+   public int expire(long now) {
+      final long cutoff = now - retentionMillis;
+      List<Path> files = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+         for (Path file : stream) {
+            files.add(file);
+         }
+      } catch (IOException e) {
+         logger.warn("Cannot list the tick journal in " + dir, e);
+         return 0;
+      }
+
+      int deleted = 0;
+      for (final Path file : files) {
+         String symbol = symbolOf(file);
+         if (symbol == null) {
+            continue;
+         }
+         final boolean[] gone = new boolean[1];
+         logs.compute(symbol, (key, log) -> {
+            if (log == null) {
+               try {
+                  if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                     gone[0] = Files.deleteIfExists(file);
+                  }
+               } catch (IOException e) {
+                  logger.warn("Cannot expire tick journal segment " + file, e);
+               }
+            }
+            return log;
+         });
+         if (gone[0]) {
+            deleted++;
+         }
+      }
+      expired.add(deleted);
+      return deleted;
+   }
+
+   /**
+    * The symbol a segment file belongs to, or null if it isn't one.
+    */
+   private static String symbolOf(Path file) {
+      String name = file.getFileName().toString();
+      int dot = name.lastIndexOf('.', name.length() - SUFFIX.length() - 1);
+      return name.endsWith(SUFFIX) && dot > 0 ? name.substring(0, dot) : null;
+   }
+
+   /**
+    * A run of ticks read from the journal. The segments they come from stay mapped, even once
+    * rolled off or closed, until the ticks are released, which has to happen exactly once.
+    */
+   public static final class Ticks {
+      static final Ticks EMPTY = new Ticks(null, Collections.<Segment>emptyList(), Collections.<ByteBuffer>emptyList(), 0);
+
+      private final SymbolLog log;
+      private final List<Segment> pinned;
+      private final List<ByteBuffer> slices;
+      private final int count;
+
+      Ticks(SymbolLog log, List<Segment> pinned, List<ByteBuffer> slices, int count) {
+         this.log = log;
+         this.pinned = pinned;
+         this.slices = slices;
+         this.count = count;
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      /**
+       * Lets go of the segments, after which the slices and any buffer made from them are unusable.
+       */
+      public void release() {
+         if (log != null) {
+            log.unpin(pinned);
+         }
+      }
+
+      /**
+       * The records as they are on disk, RECORD_BYTES each, wrapped rather than copied.
+       */
+      public ByteBuf toByteBuf() {
+         return Unpooled.wrappedBuffer(slices.toArray(new ByteBuffer[slices.size()]));
+      }
+
+      /**
+       * [{"price":"551.18","change":"-1.02","time":1445367221000},...]
+       */
+      public StringBuilder appendJson(StringBuilder sb) {
+         sb.append('[');
+         boolean first = true;
+         for (ByteBuffer slice : slices) {
+            for (int offset = slice.position(); offset < slice.limit(); offset += RECORD_BYTES) {
+               if (!first) {
+                  sb.append(',');
+               }
+               first = false;
+               sb.append("{\"price\":\"");
+               QuoteStore.appendPrice(sb, slice.getLong(offset + PRICE)).append("\",\"change\":\"");
+               QuoteStore.appendPrice(sb, slice.getLong(offset + CHANGE)).append("\",\"time\":");
+               sb.append(slice.getLong(offset + TIMESTAMP)).append('}');
+            }
+         }
+         return sb.append(']');
+      }
+   }
+
+   private static class Segment {
+      final long number;
+      final Path path;
+      final MappedByteBuffer buffer;
+      final long[] index;
+      int count;
+
+      // reads holding slices of it, and whether it has left its log; guarded by the log
+      int pins;
+      boolean dropped;
+
+      Segment(long number, Path path, MappedByteBuffer buffer, int records) {
+         this.number = number;
+         this.path = path;
+         this.buffer = buffer;
+         this.index = new long[(records + INDEX_INTERVAL - 1) / INDEX_INTERVAL];
+      }
+
+      long timestamp(int record) {
+         return buffer.getLong(record * RECORD_BYTES + TIMESTAMP);
+      }
+
+      /**
+       * The first record at or after since: a binary search of the sparse index, then a scan of
+       * the one stretch it lands in.
+       */
+      int find(long since) {
+         int blocks = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+         int lo = 0;
+         int hi = blocks;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index[mid] < since) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+
+         // everything in block lo is at or after since, so the answer is in the block before it
+         int record = Math.max(0, (lo - 1) * INDEX_INTERVAL);
+         while (record < count && timestamp(record) < since) {
+            record++;
+         }
+         return record;
+      }
+
+      ByteBuffer slice(int from, int to) {
+         ByteBuffer slice = buffer.duplicate();
+         slice.limit(to * RECORD_BYTES).position(from * RECORD_BYTES);
+         return slice.slice().asReadOnlyBuffer();
+      }
+
+      /**
+       * Marks it gone from its log, unmapping it now if no read holds it.
+       */
+      void drop() {
+         dropped = true;
+         if (pins == 0) {
+            PlatformDependent.freeDirectBuffer(buffer);
+         }
+      }
+   }
+
+   private class SymbolLog {
+      final String symbol;
+
+      // oldest first; all guarded by this
+      final List<Segment> segments = new ArrayList<>();
+      long lastTimestamp;
+      long lastPrice = QuoteStore.NO_PRICE;
+      long lastChange;
+
+      // set if the files can't be opened or written, so the symbol stops being journaled
+      boolean failed;
+
+      // set once released, for appends and reads that got the log just before
+      boolean closed;
+
+      SymbolLog(String symbol) {
+         this.symbol = symbol;
+         try {
+            open();
+         } catch (IOException e) {
+            logger.error("Cannot open the tick journal for " + symbol + ", not journaling it", e);
+            failed = true;
+         }
+      }
+
+      synchronized boolean append(long price, long change, long timestamp) {
+         if (failed || closed || (price == lastPrice && change == lastChange)) {
+            return false;
+         }
+
+         Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+         if (segment == null || segment.count == recordsPerSegment) {
+            try {
+               segment = roll(segment == null ? 0 : segment.number + 1);
+            } catch (IOException e) {
+               logger.error("Cannot add a tick journal segment for " + symbol + ", not journaling it any more", e);
+               failed = true;
+               return false;
+            }
+         }
+
+         // never backwards, and never 0, which marks the end of a segment
+         timestamp = Math.max(Math.max(1, timestamp), lastTimestamp);
+         int offset = segment.count * RECORD_BYTES;
+         segment.buffer.putLong(offset + PRICE, price);
+         segment.buffer.putLong(offset + CHANGE, change);
+         segment.buffer.putLong(offset + TIMESTAMP, timestamp);
+         if (segment.count % INDEX_INTERVAL == 0) {
+            segment.index[segment.count / INDEX_INTERVAL] = timestamp;
+         }
+         segment.count++;
+
+         lastTimestamp = timestamp;
+         lastPrice = price;
+         lastChange = change;
+         return true;
+      }
+
+      synchronized Ticks read(long since, int limit) {
+         List<Segment> pinned = new ArrayList<>();
+         List<ByteBuffer> slices = new ArrayList<>();
+         int count = 0;
+         for (int i = segments.size() - 1; i >= 0 && count < limit; i--) {
+            Segment segment = segments.get(i);
+            int from = Math.max(segment.find(since), segment.count - (limit - count));
+            if (from < segment.count) {
+               segment.pins++;
+               pinned.add(segment);
+               slices.add(segment.slice(from, segment.count));
+               count += segment.count - from;
+            }
+            if (from > 0) {
+               // anything older is either before since or over the limit
+               break;
+            }
+         }
+         Collections.reverse(slices);
+         return count == 0 ? Ticks.EMPTY : new Ticks(this, pinned, slices, count);
+      }
+
+      synchronized void unpin(List<Segment> pinned) {
+         for (Segment segment : pinned) {
+            if (--segment.pins == 0 && segment.dropped) {
+               PlatformDependent.freeDirectBuffer(segment.buffer);
+            }
+         }
+      }
+
+      synchronized void close() {
+         closed = true;
+         for (Segment segment : segments) {
+            segment.drop();
+         }
+         segments.clear();
+      }
+
+      private void open() throws IOException {
+         List<Long> numbers = new ArrayList<>();
+         try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+               if (symbol.equals(symbolOf(file))) {
+                  String name = file.getFileName().toString();
+                  int dot = name.lastIndexOf('.', name.length() - SUFFIX.length() - 1);
+                  numbers.add(Long.parseLong(name.substring(dot + 1, name.length() - SUFFIX.length())));
+               }
+            }
+         }
+         Collections.sort(numbers);
+
+         for (long number : numbers) {
+            Segment segment = map(number);
+            // records are written in order, so they end where the first zero timestamp is
+            int lo = 0;
+            int hi = recordsPerSegment;
+            while (lo < hi) {
+               int mid = (lo + hi) >>> 1;
+               if (segment.timestamp(mid) != 0) {
+                  lo = mid + 1;
+               } else {
+                  hi = mid;
+               }
+            }
+            segment.count = lo;
+            for (int record = 0; record < segment.count; record += INDEX_INTERVAL) {
+               segment.index[record / INDEX_INTERVAL] = segment.timestamp(record);
+            }
+            segments.add(segment);
+         }
+
+         for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (segment.count > 0) {
+               int last = (segment.count - 1) * RECORD_BYTES;
+               lastTimestamp = segment.buffer.getLong(last + TIMESTAMP);
+               lastPrice = segment.buffer.getLong(last + PRICE);
+               lastChange = segment.buffer.getLong(last + CHANGE);
+               break;
+            }
+         }
+      }
+
+      private Segment roll(long number) throws IOException {
+         Segment segment = map(number);
+         segments.add(segment);
+         while (segments.size() > segmentsKept) {
+            // readers already holding slices of it keep the mapping alive
+            Segment oldest = segments.remove(0);
+            oldest.drop();
+            Files.deleteIfExists(oldest.path);
+         }
+         return segment;
+      }
+
+      private Segment map(long number) throws IOException {
+         Path path = dir.resolve(String.format("%s.%012d%s", symbol, number, SUFFIX));
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+               StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_BYTES);
+            return new Segment(number, path, buffer, recordsPerSegment);
+         }
+      }
+   }
+}
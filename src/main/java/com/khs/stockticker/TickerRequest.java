@@ -1,5 +1,7 @@
 package com.khs.stockticker;
 
+import java.util.List;
+
 /**
  * Created by jwb on 3/13/15.
  */
@@ -7,6 +9,22 @@ public class TickerRequest {
    private String command;
    private String tickerSymbol;
 
+   // batch form of tickerSymbol, for add, remove and replace
+   private List<String> tickerSymbols;
+
+   // add only: replay journaled ticks first, the last replayLast and/or those since replaySince (epoch millis)
+   private Integer replayLast;
+   private Long replaySince;
+
+   // bars only: 1s, 1m, 5m or 1h, and how many bars of history to send first
+   private String interval;
+   private Integer limit;
+
+   // alert only: fire once the price is at or above, at or below, or has moved this percent either way
+   private String above;
+   private String below;
+   private String movePercent;
+
    public String getCommand() {
       return command;
    }
@@ -15,6 +33,38 @@ public class TickerRequest {
       return tickerSymbol;
    }
 
+   public List<String> getTickerSymbols() {
+      return tickerSymbols;
+   }
+
+   public Integer getReplayLast() {
+      return replayLast;
+   }
+
+   public Long getReplaySince() {
+      return replaySince;
+   }
+
+   public String getInterval() {
+      return interval;
+   }
+
+   public Integer getLimit() {
+      return limit;
+   }
+
+   public String getAbove() {
+      return above;
+   }
+
+   public String getBelow() {
+      return below;
+   }
+
+   public String getMovePercent() {
+      return movePercent;
+   }
+
    public void setCommand(String command) {
       this.command = command;
    }
@@ -23,6 +73,38 @@ public class TickerRequest {
       this.tickerSymbol = tickerSymbol;
    }
 
+   public void setTickerSymbols(List<String> tickerSymbols) {
+      this.tickerSymbols = tickerSymbols;
+   }
+
+   public void setReplayLast(Integer replayLast) {
+      this.replayLast = replayLast;
+   }
+
+   public void setReplaySince(Long replaySince) {
+      this.replaySince = replaySince;
+   }
+
+   public void setInterval(String interval) {
+      this.interval = interval;
+   }
+
+   public void setLimit(Integer limit) {
+      this.limit = limit;
+   }
+
+   public void setAbove(String above) {
+      this.above = above;
+   }
+
+   public void setBelow(String below) {
+      this.below = below;
+   }
+
+   public void setMovePercent(String movePercent) {
+      this.movePercent = movePercent;
+   }
+
    @Override
    public boolean equals(Object o) {
       if (this == o) { return true; }
@@ -32,6 +114,14 @@ public class TickerRequest {
 
       if (command != null ? !command.equals(that.command) : that.command != null) { return false; }
       if (tickerSymbol != null ? !tickerSymbol.equals(that.tickerSymbol) : that.tickerSymbol != null) { return false; }
+      if (tickerSymbols != null ? !tickerSymbols.equals(that.tickerSymbols) : that.tickerSymbols != null) { return false; }
+      if (replayLast != null ? !replayLast.equals(that.replayLast) : that.replayLast != null) { return false; }
+      if (replaySince != null ? !replaySince.equals(that.replaySince) : that.replaySince != null) { return false; }
+      if (interval != null ? !interval.equals(that.interval) : that.interval != null) { return false; }
+      if (limit != null ? !limit.equals(that.limit) : that.limit != null) { return false; }
+      if (above != null ? !above.equals(that.above) : that.above != null) { return false; }
+      if (below != null ? !below.equals(that.below) : that.below != null) { return false; }
+      if (movePercent != null ? !movePercent.equals(that.movePercent) : that.movePercent != null) { return false; }
 
       return true;
    }
@@ -40,6 +130,14 @@ public class TickerRequest {
    public int hashCode() {
       int result = command != null ? command.hashCode() : 0;
       result = 31 * result + (tickerSymbol != null ? tickerSymbol.hashCode() : 0);
+      result = 31 * result + (tickerSymbols != null ? tickerSymbols.hashCode() : 0);
+      result = 31 * result + (replayLast != null ? replayLast.hashCode() : 0);
+      result = 31 * result + (replaySince != null ? replaySince.hashCode() : 0);
+      result = 31 * result + (interval != null ? interval.hashCode() : 0);
+      result = 31 * result + (limit != null ? limit.hashCode() : 0);
+      result = 31 * result + (above != null ? above.hashCode() : 0);
+      result = 31 * result + (below != null ? below.hashCode() : 0);
+      result = 31 * result + (movePercent != null ? movePercent.hashCode() : 0);
       return result;
    }
 
@@ -48,6 +146,14 @@ public class TickerRequest {
       return "TickerRequest{"  +
               "command='"      + command + '\'' +
             ", tickerSymbol='" + tickerSymbol + '\'' +
+            ", tickerSymbols=" + tickerSymbols +
+            ", replayLast="    + replayLast +
+            ", replaySince="   + replaySince +
+            ", interval='"     + interval + '\'' +
+            ", limit="         + limit +
+            ", above='"        + above + '\'' +
+            ", below='"        + below + '\'' +
+            ", movePercent='"  + movePercent + '\'' +
             '}';
    }
 }
@@ -0,0 +1,280 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for websocket commands that works straight off the message bytes, filling in a
+ * {@link TickerRequest} the caller reuses from one command to the next.
+ *
+ * Field names are compared in place and numbers are parsed from their digits. A command or interval
+ * comes back as the constant it matches, and a symbol the {@link SymbolTable} already knows as its
+ * interned name, so a command for symbols seen before allocates nothing; only text that matches none
+ * of those is decoded. Other fields are skipped without being decoded.
+ *
+ * Anything it doesn't handle itself, escapes or numbers with fractions for instance, or that isn't
+ * well formed, makes parse return false for the caller to fall back to a general JSON parser. One
+ * per connection: the request's tickerSymbols list belongs to the parser and is reused as well.
+ */
+public final class TickerRequestParser extends JsonCursor {
+   private static final byte[] COMMAND        = ascii("command");
+   private static final byte[] TICKER_SYMBOL  = ascii("tickerSymbol");
+   private static final byte[] TICKER_SYMBOLS = ascii("tickerSymbols");
+   private static final byte[] REPLAY_LAST    = ascii("replayLast");
+   private static final byte[] REPLAY_SINCE   = ascii("replaySince");
+   private static final byte[] INTERVAL       = ascii("interval");
+   private static final byte[] LIMIT          = ascii("limit");
+   private static final byte[] ABOVE          = ascii("above");
+   private static final byte[] BELOW          = ascii("below");
+   private static final byte[] MOVE_PERCENT   = ascii("movePercent");
+
+   private static final String[] COMMANDS = { "add", "remove", "replace", "bars", "alert", "clearAlerts" };
+
+   private final SymbolTable symbols;
+   private final List<String> tickerSymbols = new ArrayList<>();
+
+   public TickerRequestParser(SymbolTable symbols) {
+      this.symbols = symbols;
+   }
+
+   /**
+    * Parses the readable bytes of message into request, replacing every field. The buffer's indexes
+    * are left untouched.
+    *
+    * @return false if the message is one to leave to a general JSON parser; request is then garbage
+    */
+   public boolean parse(ByteBuf message, TickerRequest request) {
+      reset(message);
+      try {
+         parseRequest(request);
+         return true;
+      } catch (IllegalArgumentException e) {
+         return false;
+      } finally {
+         buf = null;
+      }
+   }
+
+   private void parseRequest(TickerRequest request) {
+      request.setCommand(null);
+      request.setTickerSymbol(null);
+      request.setTickerSymbols(null);
+      request.setReplayLast(null);
+      request.setReplaySince(null);
+      request.setInterval(null);
+      request.setLimit(null);
+      request.setAbove(null);
+      request.setBelow(null);
+      request.setMovePercent(null);
+
+      expect('{');
+      if (peek() == '}') {
+         pos++;
+      } else {
+         do {
+            if (matchName(COMMAND)) {
+               request.setCommand(readCommand());
+            } else if (matchName(TICKER_SYMBOL)) {
+               request.setTickerSymbol(readSymbol());
+            } else if (matchName(TICKER_SYMBOLS)) {
+               request.setTickerSymbols(readSymbols());
+            } else if (matchName(REPLAY_LAST)) {
+               request.setReplayLast(readNull() ? null : (int) readLong(Integer.MAX_VALUE));
+            } else if (matchName(REPLAY_SINCE)) {
+               request.setReplaySince(readNull() ? null : readLong(Long.MAX_VALUE));
+            } else if (matchName(INTERVAL)) {
+               request.setInterval(readInterval());
+            } else if (matchName(LIMIT)) {
+               request.setLimit(readNull() ? null : (int) readLong(Integer.MAX_VALUE));
+            } else if (matchName(ABOVE)) {
+               request.setAbove(readNumberText());
+            } else if (matchName(BELOW)) {
+               request.setBelow(readNumberText());
+            } else if (matchName(MOVE_PERCENT)) {
+               request.setMovePercent(readNumberText());
+            } else {
+               skipNameAndValue();
+            }
+         } while (nextMember('}'));
+      }
+
+      while (pos < end) {
+         if (!isWhitespace(buf.getByte(pos++))) {
+            throw error();
+         }
+      }
+   }
+
+   private String readCommand() {
+      if (readNull()) {
+         return null;
+      }
+
+      int start = readStringContents();
+      int length = pos - 1 - start;
+      for (String command : COMMANDS) {
+         if (matches(command, start, length)) {
+            return command;
+         }
+      }
+      return buf.toString(start, length, CharsetUtil.UTF_8);
+   }
+
+   private String readInterval() {
+      if (readNull()) {
+         return null;
+      }
+
+      int start = readStringContents();
+      int length = pos - 1 - start;
+      int interval = BarRollup.intervalOf(buf, start, length);
+      return interval >= 0 ? BarRollup.intervalName(interval) : buf.toString(start, length, CharsetUtil.UTF_8);
+   }
+
+   /**
+    * A symbol with the whitespace around it trimmed off, as the handler would.
+    */
+   private String readSymbol() {
+      if (readNull()) {
+         return null;
+      }
+
+      int start = readStringContents();
+      int last = pos - 1;
+      while (start < last && (buf.getByte(start) & 0xff) <= ' ') {
+         start++;
+      }
+      while (last > start && (buf.getByte(last - 1) & 0xff) <= ' ') {
+         last--;
+      }
+
+      int id = symbols.idOf(buf, start, last - start);
+      return id >= 0 ? symbols.name(id) : buf.toString(start, last - start, CharsetUtil.UTF_8);
+   }
+
+   private List<String> readSymbols() {
+      if (readNull()) {
+         return null;
+      }
+
+      expect('[');
+      tickerSymbols.clear();
+      if (peek() == ']') {
+         pos++;
+         return tickerSymbols;
+      }
+
+      do {
+         tickerSymbols.add(readSymbol());
+      } while (nextMember(']'));
+      return tickerSymbols;
+   }
+
+   /**
+    * The text of a number, or of a string, which is how prices usually come. Decoded, since alerts
+    * are set far less often than symbols are added.
+    */
+   private String readNumberText() {
+      if (readNull()) {
+         return null;
+      }
+
+      if (peek() == '"') {
+         int start = readStringContents();
+         return buf.toString(start, pos - 1 - start, CharsetUtil.UTF_8);
+      }
+      int start = pos;
+      skipValue();
+      return buf.toString(start, pos - start, CharsetUtil.US_ASCII);
+   }
+
+   /**
+    * A whole number no bigger than max. Gson takes numbers in quotes as well, so this does too.
+    */
+   private long readLong(long max) {
+      boolean quoted = peek() == '"';
+      if (quoted) {
+         pos++;
+      }
+      boolean negative = pos < end && buf.getByte(pos) == '-';
+      if (negative) {
+         pos++;
+      }
+
+      long value = 0;
+      int digits = 0;
+      while (pos < end) {
+         byte b = buf.getByte(pos);
+         if (b < '0' || b > '9') {
+            break;
+         }
+         // 18 digits can't overflow
+         if (++digits > 18) {
+            throw error();
+         }
+         value = value * 10 + (b - '0');
+         pos++;
+      }
+      if (digits == 0 || value > max) {
+         throw error();
+      }
+
+      if (quoted) {
+         if (pos >= end || buf.getByte(pos) != '"') {
+            throw error();
+         }
+         pos++;
+      }
+      return negative ? -value : value;
+   }
+
+   private boolean readNull() {
+      if (peek() != 'n') {
+         return false;
+      }
+      if (pos + 4 > end || buf.getByte(pos + 1) != 'u' || buf.getByte(pos + 2) != 'l' || buf.getByte(pos + 3) != 'l') {
+         throw error();
+      }
+      pos += 4;
+      return true;
+   }
+
+   /**
+    * Consumes a string with no escapes in it and returns where its contents start; they end at the
+    * closing quote, just before pos.
+    */
+   private int readStringContents() {
+      expect('"');
+      int start = pos;
+      while (pos < end) {
+         byte b = buf.getByte(pos++);
+         if (b == '"') {
+            return start;
+         }
+         if (b == '\\') {
+            throw error();
+         }
+      }
+      throw error();
+   }
+
+   private boolean matches(String ascii, int index, int length) {
+      if (ascii.length() != length) {
+         return false;
+      }
+      for (int i = 0; i < length; i++) {
+         if (buf.getByte(index + i) != ascii.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   protected IllegalArgumentException error() {
+      return new IllegalArgumentException("Not a command this parser handles, at offset " + (pos - buf.readerIndex()));
+   }
+}
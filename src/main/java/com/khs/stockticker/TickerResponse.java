@@ -6,13 +6,31 @@ import java.util.Map;
  * Created by jwb on 3/13/15.
  */
 public class TickerResponse {
+   // frameType values for pushed quote frames; command acks carry no frameType
+   public static final String SNAPSHOT = "snapshot";
+   public static final String DELTA    = "delta";
+
+   // journaled ticks sent ahead of the snapshot when an add asks for them
+   public static final String REPLAY   = "replay";
+
+   // OHLC bars for a bars subscription: its history first, then the latest bars as they change
+   public static final String BARS     = "bars";
+
+   // a price alert the client set has fired
+   public static final String ALERT    = "alert";
+
    private String result;
+   private String frameType;
    private Map<String,String> tickerData;
 
    public String getResult() {
       return result;
    }
 
+   public String getFrameType() {
+      return frameType;
+   }
+
    public Map<String,String> getTickerData() {
       return tickerData;
    }
@@ -21,6 +39,10 @@ public class TickerResponse {
       this.result = command;
    }
 
+   public void setFrameType(String frameType) {
+      this.frameType = frameType;
+   }
+
    public void setTickerData(Map<String,String> tickerData) {
       this.tickerData = tickerData;
    }
@@ -33,6 +55,7 @@ public class TickerResponse {
       TickerResponse that = (TickerResponse) o;
 
       if (result != null ? !result.equals(that.result) : that.result != null) { return false; }
+      if (frameType != null ? !frameType.equals(that.frameType) : that.frameType != null) { return false; }
       if (tickerData != null ? !tickerData.equals(that.tickerData) : that.tickerData != null) { return false; }
 
       return true;
@@ -41,6 +64,7 @@ public class TickerResponse {
    @Override
    public int hashCode() {
       int result = this.result != null ? this.result.hashCode() : 0;
+      result = 31 * result + (frameType != null ? frameType.hashCode() : 0);
       result = 31 * result + (tickerData != null ? tickerData.hashCode() : 0);
       return result;
    }
@@ -49,6 +73,7 @@ public class TickerResponse {
    public String toString() {
       return "TickerResponse{"  +
               "result='"      + result + '\'' +
+            ", frameType='" + frameType + '\'' +
             ", tickerData='" + tickerData + '\'' +
             '}';
    }
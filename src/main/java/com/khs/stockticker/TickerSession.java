@@ -0,0 +1,708 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-connection subscription state. Updates are always pushed from the channel's own event loop,
+ * so nothing here needs a thread of its own.
+ *
+ * A client gets a full snapshot of its symbols when it subscribes and after that only the symbols
+ * whose price changed since the last frame sent to it. Prices are read straight out of the shared
+ * {@link QuoteStore}, so a tick where nothing changed for this client allocates nothing.
+ *
+ * While the channel is over its write-buffer high watermark nothing is written. Since only the last
+ * price sent is tracked, the updates held back conflate to the latest price per symbol and go out as
+ * one delta once the channel drains. A client that stays unwritable past the slow consumer timeout
+ * is disconnected.
+ *
+ * Quote frames are JSON text unless the client negotiated {@link BinaryQuoteCodec#SUBPROTOCOL},
+ * in which case they use that compact layout instead. Command acks are always JSON.
+ */
+public class TickerSession {
+   private static final Logger logger = LoggerFactory.getLogger(TickerSession.class);
+
+   public static final long DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLIS = 30000L;
+
+   // bars sent per bar subscription as they change: the open one and the one before, which may
+   // have closed since the last frame
+   private static final int LIVE_BARS = 2;
+
+   // JSON is what you get without asking for anything
+   public static final String JSON_SUBPROTOCOL = "stockticker.json";
+   public static final String SUBPROTOCOLS = JSON_SUBPROTOCOL + "," + BinaryQuoteCodec.SUBPROTOCOL;
+
+   // the subprotocol picked in the handshake, set on the channel before any command arrives
+   public static final AttributeKey<String> SUBPROTOCOL = AttributeKey.valueOf("ticker.subprotocol");
+
+   private final Channel channel;
+   private final boolean binary;
+   private final OutboundStats stats;
+   private final long slowConsumerTimeoutMillis;
+
+   // Keep track of the tickers the user has asked for info about
+   private final Set<String> tickerSymbols = ConcurrentHashMap.newKeySet();
+
+   // symbol ids and the last price sent for each; only touched from the channel's event loop
+   private int[]  symbolIds = new int[8];
+   private long[] lastSent  = new long[8];
+   private int    symbolCount;
+
+   // symbols whose latest price is being held back; event loop only, like the arrays above
+   private boolean[] held = new boolean[8];
+   private boolean   holding;
+   private ScheduledFuture<?> slowConsumerCheck;
+
+   // symbols a snapshot has gone out for since they were added; deltas only carry these, so one
+   // can't reach the client ahead of the symbol's replay and snapshot
+   private boolean[] defined = new boolean[8];
+
+   // bar subscriptions, symbol and interval, with the bars' version when last sent; event loop only
+   private BarRollup barRollup;
+   private String[] barSymbols = new String[0];
+   private int[]    barIds = new int[0];
+   private int[]    barIntervals = new int[0];
+   private long[]   barVersions = new long[0];
+   private int      barCount;
+
+   // set while a dispatched push is queued; ticks arriving meanwhile go out in that same push
+   private final AtomicBoolean pushPending = new AtomicBoolean();
+   private long pendingSinceNanos;
+   private FrameCache pendingFrameCache;
+   private Runnable dispatchedPush;
+
+   public TickerSession(Channel channel) {
+      this(channel, new OutboundStats(), DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLIS);
+   }
+
+   public TickerSession(Channel channel, OutboundStats stats, long slowConsumerTimeoutMillis) {
+      this.channel = channel;
+      this.binary = BinaryQuoteCodec.SUBPROTOCOL.equals(channel.attr(SUBPROTOCOL).get());
+      this.stats = stats;
+      this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+   }
+
+   public Channel getChannel() {
+      return channel;
+   }
+
+   public Set<String> getTickerSymbols() {
+      return tickerSymbols;
+   }
+
+   /**
+    * Bytes written to the channel but not yet taken by the socket.
+    */
+   public long getQueuedBytes() {
+      ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+      return outboundBuffer == null ? 0L : outboundBuffer.totalPendingWriteBytes();
+   }
+
+   public boolean add(String symbol, final int symbolId) {
+      boolean added = tickerSymbols.add(symbol);
+      if (added) {
+         runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+               addIds(new int[] { symbolId }, 1);
+            }
+         });
+      }
+      return added;
+   }
+
+   public boolean remove(String symbol, final int symbolId) {
+      boolean removed = tickerSymbols.remove(symbol);
+      if (removed) {
+         runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+               removeIds(new int[] { symbolId }, 1);
+            }
+         });
+      }
+      return removed;
+   }
+
+   /**
+    * Applies a batch of adds and removes with a single event loop task, so no push ever goes out
+    * with half of it applied. Symbols that are already watched are dropped from toAdd, and ones
+    * that aren't are dropped from toRemove, leaving both holding only what actually changed.
+    */
+   public void update(List<String> toAdd, List<String> toRemove, QuoteStore quoteStore) {
+      final int[] removeIds = new int[toRemove.size()];
+      int removeCount = 0;
+      for (Iterator<String> it = toRemove.iterator(); it.hasNext(); ) {
+         String symbol = it.next();
+         if (tickerSymbols.remove(symbol)) {
+            removeIds[removeCount++] = quoteStore.idOf(symbol);
+         } else {
+            it.remove();
+         }
+      }
+
+      final int[] addIds = new int[toAdd.size()];
+      int addCount = 0;
+      for (Iterator<String> it = toAdd.iterator(); it.hasNext(); ) {
+         String symbol = it.next();
+         int id = quoteStore.intern(symbol);
+         // a full store refuses new symbols
+         if (id >= 0 && tickerSymbols.add(symbol)) {
+            addIds[addCount++] = id;
+         } else {
+            it.remove();
+         }
+      }
+
+      if (removeCount == 0 && addCount == 0) {
+         return;
+      }
+
+      final int removed = removeCount;
+      final int added = addCount;
+      runOnEventLoop(new Runnable() {
+         @Override
+         public void run() {
+            removeIds(removeIds, removed);
+            addIds(addIds, added);
+         }
+      });
+   }
+
+   /**
+    * Sends the client every known price for its symbols, flagged as a snapshot.
+    */
+   public void scheduleSnapshot(final QuoteStore quoteStore) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      // always queued, so the ack for the command that caused it goes out first
+      channel.eventLoop().execute(new Runnable() {
+         @Override
+         public void run() {
+            snapshot(quoteStore);
+         }
+      });
+   }
+
+   /**
+    * Sends the client each symbol's journaled ticks, one frame per symbol, ahead of the snapshot
+    * that should be scheduled straight after. Binary frames carry the journal's records as they are
+    * mapped from disk, without copying them.
+    */
+   public void scheduleReplay(final TickJournal journal, List<String> symbols, final long since, final int limit,
+                              final QuoteStore quoteStore) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      final String[] toReplay = symbols.toArray(new String[symbols.size()]);
+      channel.eventLoop().execute(new Runnable() {
+         @Override
+         public void run() {
+            for (String symbol : toReplay) {
+               if (!channel.isActive()) {
+                  return;
+               }
+               replay(symbol, journal.read(symbol, since, limit), quoteStore);
+            }
+         }
+      });
+   }
+
+   /**
+    * Hands the tick to the channel's event loop, which sends the client the prices that changed.
+    * The session holds a reference on the tick's frame cache until it has sent its frame.
+    */
+   public void schedulePush(final QuoteStore quoteStore, final FrameCache frameCache) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      frameCache.retain();
+      channel.eventLoop().execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               push(quoteStore, frameCache, frameCache.getTickNanos());
+            } finally {
+               frameCache.release();
+            }
+         }
+      });
+   }
+
+   public boolean isPushPending() {
+      return pushPending.get();
+   }
+
+   /**
+    * One of this session's symbols just ticked. Queues a single push on the event loop, after
+    * windowNanos if there is a window, unless one is already queued; every tick that lands before
+    * it runs goes out in the same frame. The tick's frame cache is shared with the symbol's other
+    * subscribers, so those sending the same changes share one encoded frame; the session holds a
+    * reference on it until the push has run.
+    */
+   public void dispatch(final QuoteStore quoteStore, long windowNanos, FrameCache frameCache) {
+      if (!pushPending.compareAndSet(false, true)) {
+         return;
+      }
+      if (!channel.isActive()) {
+         pushPending.set(false);
+         return;
+      }
+
+      // published to the event loop by the task hand-off below
+      pendingSinceNanos = System.nanoTime();
+      frameCache.retain();
+      pendingFrameCache = frameCache;
+      if (dispatchedPush == null) {
+         dispatchedPush = new Runnable() {
+            @Override
+            public void run() {
+               long since = pendingSinceNanos;
+               FrameCache cache = pendingFrameCache;
+               pendingFrameCache = null;
+               // cleared first, so a tick that lands while this runs queues another push
+               pushPending.set(false);
+               try {
+                  push(quoteStore, cache, since);
+               } finally {
+                  cache.release();
+               }
+            }
+         };
+      }
+
+      if (windowNanos > 0) {
+         channel.eventLoop().schedule(dispatchedPush, windowNanos, TimeUnit.NANOSECONDS);
+      } else {
+         channel.eventLoop().execute(dispatchedPush);
+      }
+   }
+
+   /**
+    * Sends the client the symbols' last limit bars in the interval, and from then on the latest bars
+    * whenever they change, until the symbol is removed. Bar frames are JSON whatever the subprotocol.
+    */
+   public void scheduleBars(final BarRollup barRollup, List<String> symbols, final int interval, final int limit,
+                            final QuoteStore quoteStore) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      final String[] toAdd = symbols.toArray(new String[symbols.size()]);
+      channel.eventLoop().execute(new Runnable() {
+         @Override
+         public void run() {
+            if (!channel.isActive()) {
+               return;
+            }
+            TickerSession.this.barRollup = barRollup;
+            for (String symbol : toAdd) {
+               // taken before the bars are read, so a tick landing in between is sent again, not lost
+               long version = barRollup.getVersion(symbol);
+               addBars(symbol, quoteStore.idOf(symbol), interval, version);
+               sendBars(symbol, interval, limit);
+            }
+         }
+      });
+   }
+
+   /**
+    * Sends a fired alert. Always queued, so an alert that fires as it is set goes out after the ack.
+    * Alerts are rare and each one matters, so they go out even to a slow client.
+    */
+   public void sendAlert(final String frame) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      channel.eventLoop().execute(new Runnable() {
+         @Override
+         public void run() {
+            if (channel.isActive()) {
+               send(new TextWebSocketFrame(frame));
+            }
+         }
+      });
+   }
+
+   private void replay(String symbol, final TickJournal.Ticks ticks, QuoteStore quoteStore) {
+      if (ticks.getCount() == 0) {
+         return;
+      }
+
+      if (binary) {
+         // the frame is the mapped records themselves, so the journal keeps them until it is written
+         ByteBuf header = BinaryQuoteCodec.newReplayHeader(channel.alloc(), quoteStore.idOf(symbol), symbol);
+         send(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(header, ticks.toByteBuf())))
+               .addListener(new ChannelFutureListener() {
+                  @Override
+                  public void operationComplete(ChannelFuture future) {
+                     ticks.release();
+                  }
+               });
+         return;
+      }
+
+      // symbols got here through the journal, which only takes ones that need no escaping
+      StringBuilder sb = new StringBuilder(64 + ticks.getCount() * 64);
+      sb.append("{\"result\":\"success\",\"frameType\":\"").append(TickerResponse.REPLAY)
+        .append("\",\"tickerSymbol\":\"").append(symbol).append("\",\"ticks\":");
+      try {
+         ticks.appendJson(sb).append('}');
+      } finally {
+         ticks.release();
+      }
+      send(new TextWebSocketFrame(sb.toString()));
+   }
+
+   void snapshot(QuoteStore quoteStore) {
+      // the channel may have closed while this task was queued
+      if (!channel.isActive()) {
+         return;
+      }
+
+      // a snapshot answers a command, so it goes out even if the client is backed up
+      if (binary) {
+         sendBinarySnapshot(quoteStore);
+         return;
+      }
+
+      Map<String, String> tickerData = new HashMap<>();
+      for (int i = 0; i < symbolCount; i++) {
+         long price = quoteStore.price(symbolIds[i]);
+         lastSent[i] = price;
+         held[i] = false;
+         defined[i] = true;
+         if (price != QuoteStore.NO_PRICE) {
+            tickerData.put(quoteStore.symbol(symbolIds[i]), QuoteStore.formatPrice(price));
+         }
+      }
+
+      if (!tickerData.isEmpty()) {
+         TickerResponse tickerResponse = newResponse(TickerResponse.SNAPSHOT, tickerData);
+         send(new TextWebSocketFrame(encode(tickerResponse)));
+      }
+   }
+
+   /**
+    * @param sinceNanos when the quotes being pushed reached the store, for the fan-out histogram.
+    *                   The frame is flushed before this returns, so that is ingest to socket.
+    */
+   void push(QuoteStore quoteStore, FrameCache frameCache, long sinceNanos) {
+      // the channel may have closed while this task was queued
+      if (!channel.isActive()) {
+         return;
+      }
+
+      if (!channel.isWritable()) {
+         hold(quoteStore);
+         return;
+      }
+
+      if (sendDelta(quoteStore, frameCache)) {
+         stats.getFanOutTimes().record((System.nanoTime() - sinceNanos) / 1000);
+      }
+      if (barCount > 0) {
+         pushBars();
+      }
+   }
+
+   /**
+    * Called on the event loop when the channel crosses a write-buffer watermark. Once it drains,
+    * whatever was held back goes out as a single delta of the latest prices.
+    */
+   void writabilityChanged(QuoteStore quoteStore) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      if (!channel.isWritable()) {
+         startSlowConsumerCheck();
+         return;
+      }
+
+      if (slowConsumerCheck != null) {
+         slowConsumerCheck.cancel(false);
+         slowConsumerCheck = null;
+      }
+
+      if (holding) {
+         holding = false;
+         Arrays.fill(held, 0, symbolCount, false);
+
+         // nobody else has this frame, so there is no cache to share it through
+         sendDelta(quoteStore, null);
+      }
+      if (barCount > 0) {
+         pushBars();
+      }
+   }
+
+   /**
+    * Sends the symbols whose price moved since they were last sent, if there are any, and marks
+    * them sent. Symbols still waiting for their snapshot are left to it. JSON clients with the same
+    * changes this tick share one frame from the frame cache; binary frames cost so little to encode
+    * that each client gets its own. Returns whether a frame went out.
+    */
+   private boolean sendDelta(QuoteStore quoteStore, FrameCache frameCache) {
+      if (binary) {
+         return sendBinaryDelta(quoteStore);
+      }
+
+      Map<String, String> tickerData = null;
+      for (int i = 0; i < symbolCount; i++) {
+         long price = quoteStore.price(symbolIds[i]);
+         if (defined[i] && price != QuoteStore.NO_PRICE && price != lastSent[i]) {
+            if (tickerData == null) {
+               tickerData = new HashMap<>();
+            }
+            tickerData.put(quoteStore.symbol(symbolIds[i]), QuoteStore.formatPrice(price));
+            lastSent[i] = price;
+         }
+      }
+
+      if (tickerData != null) {
+         TickerResponse tickerResponse = newResponse(TickerResponse.DELTA, tickerData);
+         ByteBuf frame = frameCache != null
+               ? frameCache.frameFor(tickerResponse)
+               : encode(tickerResponse);
+         send(new TextWebSocketFrame(frame));
+         return true;
+      }
+      return false;
+   }
+
+   private boolean sendBinaryDelta(QuoteStore quoteStore) {
+      ByteBuf frame = null;
+      for (int i = 0; i < symbolCount; i++) {
+         long price = quoteStore.price(symbolIds[i]);
+         // an id only goes out in a delta once a snapshot has told the client which symbol it is
+         if (defined[i] && price != QuoteStore.NO_PRICE && price != lastSent[i]) {
+            if (frame == null) {
+               frame = BinaryQuoteCodec.newFrame(channel.alloc(), BinaryQuoteCodec.DELTA, symbolCount - i);
+            }
+            BinaryQuoteCodec.writeDelta(frame, symbolIds[i], price);
+            lastSent[i] = price;
+         }
+      }
+
+      if (frame != null) {
+         send(new BinaryWebSocketFrame(frame));
+         return true;
+      }
+      return false;
+   }
+
+   private void sendBinarySnapshot(QuoteStore quoteStore) {
+      if (symbolCount == 0) {
+         return;
+      }
+
+      // every symbol goes in, priced or not, so the client learns all of its ids
+      ByteBuf frame = BinaryQuoteCodec.newFrame(channel.alloc(), BinaryQuoteCodec.SNAPSHOT, symbolCount);
+      for (int i = 0; i < symbolCount; i++) {
+         long price = quoteStore.price(symbolIds[i]);
+         lastSent[i] = price;
+         held[i] = false;
+         defined[i] = true;
+         BinaryQuoteCodec.writeSnapshot(frame, symbolIds[i], quoteStore.symbol(symbolIds[i]), price);
+      }
+      send(new BinaryWebSocketFrame(frame));
+   }
+
+   private ByteBuf encode(TickerResponse tickerResponse) {
+      long start = System.nanoTime();
+      ByteBuf frame = FrameCache.encode(channel.alloc(), tickerResponse);
+      stats.getSerializeTimes().record((System.nanoTime() - start) / 1000);
+      return frame;
+   }
+
+   /**
+    * Sends the latest bars of every bar subscription whose symbol has ticked since they were last sent.
+    */
+   private void pushBars() {
+      for (int i = 0; i < barCount; i++) {
+         long version = barRollup.getVersion(barSymbols[i]);
+         if (version != barVersions[i]) {
+            barVersions[i] = version;
+            sendBars(barSymbols[i], barIntervals[i], LIVE_BARS);
+         }
+      }
+   }
+
+   private void sendBars(String symbol, int interval, int limit) {
+      StringBuilder sb = new StringBuilder(96 + limit * 112);
+      sb.append("{\"result\":\"success\",\"frameType\":\"").append(TickerResponse.BARS).append("\",");
+      barRollup.appendJson(sb, symbol, interval, limit).append('}');
+      send(new TextWebSocketFrame(sb.toString()));
+   }
+
+   private void addBars(String symbol, int symbolId, int interval, long version) {
+      for (int i = 0; i < barCount; i++) {
+         if (barIds[i] == symbolId && barIntervals[i] == interval) {
+            barVersions[i] = version;
+            return;
+         }
+      }
+      if (barCount == barIds.length) {
+         int capacity = Math.max(4, barCount * 2);
+         barSymbols = Arrays.copyOf(barSymbols, capacity);
+         barIds = Arrays.copyOf(barIds, capacity);
+         barIntervals = Arrays.copyOf(barIntervals, capacity);
+         barVersions = Arrays.copyOf(barVersions, capacity);
+      }
+      barSymbols[barCount] = symbol;
+      barIds[barCount] = symbolId;
+      barIntervals[barCount] = interval;
+      barVersions[barCount] = version;
+      barCount++;
+   }
+
+   private ChannelFuture send(WebSocketFrame frame) {
+      stats.frameSent(frame.content().readableBytes());
+      return channel.writeAndFlush(frame);
+   }
+
+   /**
+    * Leaves lastSent alone so the changes pile up as the latest price per symbol, counting each
+    * update that replaces one already waiting.
+    */
+   private void hold(QuoteStore quoteStore) {
+      int conflated = 0;
+      for (int i = 0; i < symbolCount; i++) {
+         long price = quoteStore.price(symbolIds[i]);
+         if (defined[i] && price != QuoteStore.NO_PRICE && price != lastSent[i]) {
+            if (held[i]) {
+               conflated++;
+            }
+            held[i] = true;
+         }
+      }
+      holding = true;
+      stats.heldTick(conflated);
+
+      // writability events can be missed if the channel was unwritable before we first saw it
+      startSlowConsumerCheck();
+   }
+
+   private void startSlowConsumerCheck() {
+      if (slowConsumerCheck != null || slowConsumerTimeoutMillis <= 0) {
+         return;
+      }
+
+      slowConsumerCheck = channel.eventLoop().schedule(new Runnable() {
+         @Override
+         public void run() {
+            slowConsumerCheck = null;
+            if (channel.isActive() && !channel.isWritable()) {
+               logger.info("Closing {}, unwritable for over {} ms with {} bytes queued",
+                     channel, slowConsumerTimeoutMillis, getQueuedBytes());
+               stats.slowConsumerClosed();
+               channel.close();
+            }
+         }
+      }, slowConsumerTimeoutMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * tickerSymbols already keeps duplicates out, so the ids just go on the end.
+    */
+   private void addIds(int[] ids, int count) {
+      int needed = symbolCount + count;
+      if (needed > symbolIds.length) {
+         int capacity = Math.max(needed, symbolIds.length * 2);
+         symbolIds = Arrays.copyOf(symbolIds, capacity);
+         lastSent = Arrays.copyOf(lastSent, capacity);
+         held = Arrays.copyOf(held, capacity);
+         defined = Arrays.copyOf(defined, capacity);
+      }
+      for (int i = 0; i < count; i++) {
+         symbolIds[symbolCount] = ids[i];
+         lastSent[symbolCount] = QuoteStore.NO_PRICE;
+         held[symbolCount] = false;
+         defined[symbolCount] = false;
+         symbolCount++;
+      }
+   }
+
+   /**
+    * One pass over the arrays however many ids go, keeping the rest in order.
+    */
+   private void removeIds(int[] ids, int count) {
+      if (count == 0) {
+         return;
+      }
+
+      Arrays.sort(ids, 0, count);
+      int kept = 0;
+      for (int i = 0; i < symbolCount; i++) {
+         if (Arrays.binarySearch(ids, 0, count, symbolIds[i]) < 0) {
+            symbolIds[kept] = symbolIds[i];
+            lastSent[kept] = lastSent[i];
+            held[kept] = held[i];
+            defined[kept] = defined[i];
+            kept++;
+         }
+      }
+      symbolCount = kept;
+
+      // a removed symbol's bar subscriptions go with it
+      kept = 0;
+      for (int i = 0; i < barCount; i++) {
+         if (Arrays.binarySearch(ids, 0, count, barIds[i]) < 0) {
+            barSymbols[kept] = barSymbols[i];
+            barIds[kept] = barIds[i];
+            barIntervals[kept] = barIntervals[i];
+            barVersions[kept] = barVersions[i];
+            kept++;
+         }
+      }
+      Arrays.fill(barSymbols, kept, barCount, null);
+      barCount = kept;
+   }
+
+   private static TickerResponse newResponse(String frameType, Map<String, String> tickerData) {
+      TickerResponse tickerResponse = new TickerResponse();
+      tickerResponse.setResult("success");
+      tickerResponse.setFrameType(frameType);
+      tickerResponse.setTickerData(tickerData);
+      return tickerResponse;
+   }
+
+   private void runOnEventLoop(Runnable task) {
+      if (!channel.isActive()) {
+         return;
+      }
+
+      if (channel.eventLoop().inEventLoop()) {
+         task.run();
+      } else {
+         channel.eventLoop().execute(task);
+      }
+   }
+}
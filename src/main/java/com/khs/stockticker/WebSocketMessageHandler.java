@@ -1,5 +1,6 @@
 package com.khs.stockticker;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
 /**
@@ -7,4 +8,10 @@ import io.netty.channel.ChannelHandlerContext;
  */
 public interface WebSocketMessageHandler {
    public String handleMessage(ChannelHandlerContext ctx, String frameText);
+
+   /**
+    * Same, straight from the message's UTF-8 bytes, which stay the caller's and are only good for the
+    * call. Returns the reply's UTF-8 bytes for the caller to send, or null for no reply.
+    */
+   public ByteBuf handleMessage(ChannelHandlerContext ctx, ByteBuf message);
 }
@@ -0,0 +1,121 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BinaryQuoteCodecTest {
+   private final ByteBuf frame = Unpooled.buffer();
+
+   @After
+   public void release() {
+      frame.release();
+   }
+
+   @Test
+   public void varintsAreSevenBitsLowFirst() {
+      BinaryQuoteCodec.writeVarint(frame, 0);
+      BinaryQuoteCodec.writeVarint(frame, 127);
+      BinaryQuoteCodec.writeVarint(frame, 128);
+      BinaryQuoteCodec.writeVarint(frame, 300);
+
+      assertEquals(0x00, frame.readUnsignedByte());
+      assertEquals(0x7f, frame.readUnsignedByte());
+      assertEquals(0x80, frame.readUnsignedByte());
+      assertEquals(0x01, frame.readUnsignedByte());
+      assertEquals(0xac, frame.readUnsignedByte());
+      assertEquals(0x02, frame.readUnsignedByte());
+      assertFalse(frame.isReadable());
+   }
+
+   @Test
+   public void signedVarintsRoundTrip() {
+      long[] values = { 0, 1, -1, 5511800, -102000, Long.MAX_VALUE, Long.MIN_VALUE + 1 };
+      for (long value : values) {
+         BinaryQuoteCodec.writeSignedVarint(frame, value);
+      }
+      for (long value : values) {
+         assertEquals(value, readSignedVarint(frame));
+      }
+      assertFalse(frame.isReadable());
+   }
+
+   @Test
+   public void snapshotNamesEverySymbolPricedOrNot() {
+      ByteBuf snapshot = BinaryQuoteCodec.newFrame(UnpooledByteBufAllocator.DEFAULT, BinaryQuoteCodec.SNAPSHOT, 2);
+      try {
+         BinaryQuoteCodec.writeSnapshot(snapshot, 3, "GOOG", 5511800L);
+         BinaryQuoteCodec.writeSnapshot(snapshot, 200, "BRK-B", QuoteStore.NO_PRICE);
+
+         assertEquals(BinaryQuoteCodec.SNAPSHOT, snapshot.readByte());
+         assertEquals(3, readVarint(snapshot));
+         assertEquals("GOOG", readName(snapshot));
+         assertEquals(1, snapshot.readByte());
+         assertEquals(5511800L, readSignedVarint(snapshot));
+
+         assertEquals(200, readVarint(snapshot));
+         assertEquals("BRK-B", readName(snapshot));
+         assertEquals(0, snapshot.readByte());
+         assertFalse(snapshot.isReadable());
+      } finally {
+         snapshot.release();
+      }
+   }
+
+   @Test
+   public void deltaIsIdAndPrice() {
+      ByteBuf delta = BinaryQuoteCodec.newFrame(UnpooledByteBufAllocator.DEFAULT, BinaryQuoteCodec.DELTA, 1);
+      try {
+         BinaryQuoteCodec.writeDelta(delta, 7, -25000L);
+
+         assertEquals(BinaryQuoteCodec.DELTA, delta.readByte());
+         assertEquals(7, readVarint(delta));
+         assertEquals(-25000L, readSignedVarint(delta));
+         assertFalse(delta.isReadable());
+      } finally {
+         delta.release();
+      }
+   }
+
+   @Test
+   public void replayHeaderIsFollowedByRecords() {
+      ByteBuf header = BinaryQuoteCodec.newReplayHeader(UnpooledByteBufAllocator.DEFAULT, 1, "^GSPC");
+      try {
+         assertEquals(BinaryQuoteCodec.REPLAY, header.readByte());
+         assertEquals(1, readVarint(header));
+         assertEquals("^GSPC", readName(header));
+         assertFalse(header.isReadable());
+      } finally {
+         header.release();
+      }
+   }
+
+   private static long readVarint(ByteBuf buf) {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = buf.readByte();
+         value |= (long) (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+      }
+   }
+
+   private static long readSignedVarint(ByteBuf buf) {
+      long zigzag = readVarint(buf);
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+   }
+
+   private static String readName(ByteBuf buf) {
+      int length = (int) readVarint(buf);
+      String name = buf.toString(buf.readerIndex(), length, CharsetUtil.UTF_8);
+      buf.skipBytes(length);
+      return name;
+   }
+}
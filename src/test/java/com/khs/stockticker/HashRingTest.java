@@ -0,0 +1,108 @@
+package com.khs.stockticker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashRingTest {
+   private static final int SYMBOLS = 10000;
+
+   @Test
+   public void emptyRingOwnsNothing() {
+      assertNull(new HashRing().ownerOf("GOOG"));
+   }
+
+   @Test
+   public void addAndRemoveSayWhetherTheyChangedAnything() {
+      HashRing ring = new HashRing();
+      assertTrue(ring.add("a:1"));
+      assertFalse(ring.add("a:1"));
+      assertTrue(ring.remove("a:1"));
+      assertFalse(ring.remove("a:1"));
+   }
+
+   @Test
+   public void ownershipIsTheSameOnEveryRingWithTheSameNodes() {
+      HashRing one = ring("a:1", "b:1", "c:1");
+      HashRing other = ring("c:1", "a:1", "b:1");
+      for (int i = 0; i < SYMBOLS; i++) {
+         assertEquals(one.ownerOf("SYM" + i), other.ownerOf("SYM" + i));
+      }
+   }
+
+   @Test
+   public void spreadsSymbolsEvenly() {
+      Map<String, Integer> counts = owners(ring("a:1", "b:1", "c:1", "d:1"));
+      for (int count : counts.values()) {
+         // within a third of a fair share
+         assertTrue(counts.toString(), Math.abs(count - SYMBOLS / 4) < SYMBOLS / 12);
+      }
+   }
+
+   @Test
+   public void joiningNodeOnlyTakesSymbolsFromOthers() {
+      HashRing ring = ring("a:1", "b:1", "c:1");
+      String[] before = assign(ring);
+      ring.add("d:1");
+
+      int moved = 0;
+      for (int i = 0; i < SYMBOLS; i++) {
+         String owner = ring.ownerOf("SYM" + i);
+         if (!owner.equals(before[i])) {
+            assertEquals("d:1", owner);
+            moved++;
+         }
+      }
+      // about a quarter should move to the new node, and nothing else
+      assertTrue(String.valueOf(moved), Math.abs(moved - SYMBOLS / 4) < SYMBOLS / 12);
+   }
+
+   @Test
+   public void leavingNodeOnlyGivesUpItsOwnSymbols() {
+      HashRing ring = ring("a:1", "b:1", "c:1", "d:1");
+      String[] before = assign(ring);
+      ring.remove("b:1");
+
+      for (int i = 0; i < SYMBOLS; i++) {
+         String owner = ring.ownerOf("SYM" + i);
+         if (before[i].equals("b:1")) {
+            assertFalse(owner.equals("b:1"));
+         } else {
+            assertEquals(before[i], owner);
+         }
+      }
+   }
+
+   private static HashRing ring(String... nodes) {
+      HashRing ring = new HashRing();
+      for (String node : nodes) {
+         ring.add(node);
+      }
+      assertEquals(Arrays.asList(nodes).size(), ring.getNodes().size());
+      return ring;
+   }
+
+   private static String[] assign(HashRing ring) {
+      String[] owners = new String[SYMBOLS];
+      for (int i = 0; i < SYMBOLS; i++) {
+         owners[i] = ring.ownerOf("SYM" + i);
+      }
+      return owners;
+   }
+
+   private static Map<String, Integer> owners(HashRing ring) {
+      Map<String, Integer> counts = new HashMap<>();
+      for (String owner : assign(ring)) {
+         Integer count = counts.get(owner);
+         counts.put(owner, count == null ? 1 : count + 1);
+      }
+      return counts;
+   }
+}
@@ -0,0 +1,52 @@
+package com.khs.stockticker;
+
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MarketHoursTest {
+   private static final String ZONE = "America/New_York";
+
+   @Test
+   public void noSessionIsAlwaysOpen() {
+      assertSame(MarketHours.ALWAYS_OPEN, MarketHours.parse(ZONE, " ", null, null));
+   }
+
+   @Test
+   public void openOnlyInTheSessionOnTheGivenDays() {
+      MarketHours hours = MarketHours.parse(ZONE, "09:30-16:00", "mon, Tuesday,WED,thu,FRI", "2026-12-25");
+
+      assertTrue(hours.isOpen(at(2026, 10, 13, 10, 0)));   // Tuesday
+      assertFalse(hours.isOpen(at(2026, 10, 13, 9, 29)));
+      assertFalse(hours.isOpen(at(2026, 10, 13, 16, 0)));
+      assertFalse(hours.isOpen(at(2026, 10, 17, 12, 0)));  // Saturday
+      assertFalse(hours.isOpen(at(2026, 12, 25, 12, 0)));  // holiday
+   }
+
+   @Test
+   public void rejectsDaysThatAreNotExactlyOne() {
+      for (String days : new String[] { "T", "S", "MON,,FRI", "MON,TUE,", "MO", "MONDAYS", "" }) {
+         try {
+            MarketHours.parse(ZONE, "09:30-16:00", days, null);
+            fail(days);
+         } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("market days"));
+         }
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsMissingDays() {
+      MarketHours.parse(ZONE, "09:30-16:00", null, null);
+   }
+
+   private static long at(int year, int month, int day, int hour, int minute) {
+      return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, ZoneId.of(ZONE)).toInstant().toEpochMilli();
+   }
+}
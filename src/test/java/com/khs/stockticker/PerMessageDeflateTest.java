@@ -0,0 +1,73 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerMessageDeflateTest {
+   private static final String DELTA =
+         "{\"result\":\"success\",\"frameType\":\"delta\",\"tickerData\":{\"GOOG\":\"551.18\",\"AAPL\":\"98.40\",\"MSFT\":\"42.88\"}}";
+
+   private final DeflateStats stats = new DeflateStats();
+   private final EmbeddedChannel server = new EmbeddedChannel(new PerMessageDeflateEncoder(6, false, 32, stats));
+   private final EmbeddedChannel client = new EmbeddedChannel(new PerMessageDeflateDecoder(false, stats));
+
+   @After
+   public void close() {
+      server.finishAndReleaseAll();
+      client.finishAndReleaseAll();
+   }
+
+   @Test
+   public void framesRoundTripWithContextTakeover() {
+      int firstSize = 0;
+      for (int i = 0; i < 3; i++) {
+         WebSocketFrame compressed = compress(DELTA);
+         assertTrue((compressed.rsv() & WebSocketExtension.RSV1) != 0);
+         if (i == 0) {
+            firstSize = compressed.content().readableBytes();
+         } else {
+            // the window remembers the last message, so a repeat costs next to nothing
+            assertTrue(compressed.content().readableBytes() < firstSize);
+         }
+         assertEquals(DELTA, inflate(compressed));
+      }
+      assertEquals(3, stats.getFramesCompressed());
+   }
+
+   @Test
+   public void smallFramesGoOutAsTheyAre() {
+      WebSocketFrame frame = compress("{\"result\":\"success\"}");
+      try {
+         assertEquals(0, frame.rsv() & WebSocketExtension.RSV1);
+         assertEquals("{\"result\":\"success\"}", frame.content().toString(CharsetUtil.UTF_8));
+         assertEquals(1, stats.getFramesSkipped());
+      } finally {
+         frame.release();
+      }
+   }
+
+   private WebSocketFrame compress(String text) {
+      server.writeOutbound(new TextWebSocketFrame(Unpooled.copiedBuffer(text, CharsetUtil.UTF_8)));
+      return (WebSocketFrame) server.readOutbound();
+   }
+
+   private String inflate(WebSocketFrame compressed) {
+      client.writeInbound(compressed);
+      TextWebSocketFrame frame = (TextWebSocketFrame) client.readInbound();
+      try {
+         assertEquals(0, frame.rsv() & WebSocketExtension.RSV1);
+         return frame.text();
+      } finally {
+         frame.release();
+      }
+   }
+}
@@ -0,0 +1,199 @@
+package com.khs.stockticker;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuoteCacheTest {
+   private static final long TTL = 5000L;
+   private static final long STALE = 60000L;
+
+   private final FakeSource source = new FakeSource();
+   private QuoteEngine engine;
+   private QuoteCache cache;
+
+   @After
+   public void stop() {
+      engine.stop();
+   }
+
+   @Test
+   public void freshQuotesAreServedWithoutALoad() {
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+      seed("GOOG", TTL / 2);
+
+      assertTrue(load("GOOG").isDone());
+      assertEquals(1, cache.getHits());
+      assertEquals(0, cache.getLoads());
+      assertTrue(source.fetches.isEmpty());
+   }
+
+   @Test
+   public void staleQuotesAreServedWhileTheyReload() {
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+      seed("GOOG", TTL + STALE / 2);
+
+      assertTrue(load("GOOG").isDone());
+      assertEquals(1, cache.getStaleHits());
+      assertEquals(1, cache.getLoads());
+      assertEquals(Arrays.asList("GOOG"), source.fetches.get(0));
+   }
+
+   @Test
+   public void expiredQuotesWaitForTheirLoad() {
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+      seed("GOOG", TTL + STALE + 1000L);
+
+      Future<Void> ready = load("GOOG", "AAPL");
+      assertFalse(ready.isDone());
+      assertEquals(2, cache.getMisses());
+      assertEquals(Arrays.asList("GOOG", "AAPL"), source.fetches.get(0));
+
+      source.complete(0);
+      assertTrue(ready.isDone());
+   }
+
+   @Test
+   public void unknownSymbolsStayOutOfTheStore() {
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+
+      Future<Void> ready = load("FAKE");
+      source.complete(0);
+
+      assertTrue(ready.isDone());
+      assertEquals(-1, engine.getQuoteStore().idOf("FAKE"));
+   }
+
+   @Test
+   public void concurrentMissesShareOneLoad() {
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+
+      Future<Void> first = load("GOOG");
+      Future<Void> second = load("GOOG", "MSFT");
+      assertEquals(1, cache.getJoinedLoads());
+      assertEquals(2, cache.getLoads());
+      assertEquals(Arrays.asList("GOOG"), source.fetches.get(0));
+      assertEquals(Arrays.asList("MSFT"), source.fetches.get(1));
+
+      source.complete(0);
+      assertTrue(first.isDone());
+      assertFalse(second.isDone());
+      source.complete(1);
+      assertTrue(second.isDone());
+
+      // the load is over, so the next miss starts another
+      load("GOOG");
+      assertEquals(3, cache.getLoads());
+   }
+
+   @Test
+   public void loadsStayWithinTheUpstreamBudget() {
+      start(1.0);
+
+      Future<Void> ready = load("GOOG", "AAPL", "MSFT");
+      assertEquals(2, cache.getThrottled());
+      assertEquals(Arrays.asList("GOOG"), source.fetches.get(0));
+
+      source.complete(0);
+      assertTrue(ready.isDone());
+
+      // refused symbols aren't left looking as if they were loading
+      load("AAPL");
+      assertEquals(0, cache.getJoinedLoads());
+   }
+
+   @Test
+   public void loadedQuotesReachWatchedSymbolsBars() {
+      // a push source, so the engine never polls it behind the test's back
+      source.push = true;
+      start(PollScheduler.DEFAULT_REQUESTS_PER_SECOND);
+      engine.addPeerSubscriber(new EmbeddedChannel(), "GOOG");
+
+      load("GOOG", "AAPL");
+      seed("GOOG", 0L);
+      seed("AAPL", 0L);
+      source.pending.get(0).setSuccess(2);
+
+      assertEquals(1, engine.getBarRollup().getVersion("GOOG"));
+      assertEquals(0, engine.getBarRollup().getVersion("AAPL"));
+   }
+
+   private void start(double requestsPerSecond) {
+      PollScheduler scheduler = new PollScheduler(QuoteEngine.POLL_INTERVAL_MILLIS, PollScheduler.DEFAULT_MIN_INTERVAL_MILLIS,
+            PollScheduler.DEFAULT_MAX_INTERVAL_MILLIS, PollScheduler.DEFAULT_CLOSED_INTERVAL_MILLIS, requestsPerSecond,
+            MarketHours.ALWAYS_OPEN);
+      engine = new QuoteEngine(source, TickerSession.DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLIS, scheduler, 0L);
+      cache = new QuoteCache(engine, TTL, STALE);
+   }
+
+   private void seed(String symbol, long age) {
+      QuoteStore store = engine.getQuoteStore();
+      store.update(store.intern(symbol), 5511800L, -10200L, System.currentTimeMillis() - age);
+   }
+
+   private Future<Void> load(String... symbols) {
+      return cache.load(Arrays.asList(symbols), ImmediateEventExecutor.INSTANCE);
+   }
+
+   // a source whose fetches finish when the test says so, one symbol per request
+   private static class FakeSource implements QuoteSource {
+      final List<List<String>> fetches = new ArrayList<>();
+      final List<Promise<Integer>> pending = new ArrayList<>();
+      boolean push;
+
+      void complete(int fetch) {
+         pending.get(fetch).setSuccess(0);
+      }
+
+      @Override
+      public boolean isPush() {
+         return push;
+      }
+
+      @Override
+      public Future<Integer> fetch(Collection<String> symbols, QuoteStore store) {
+         Promise<Integer> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+         fetches.add(new ArrayList<>(symbols));
+         pending.add(promise);
+         return promise;
+      }
+
+      @Override
+      public int getRequestCapacity() {
+         return 1;
+      }
+
+      @Override
+      public int getRequestCost(String symbol) {
+         return 1;
+      }
+
+      @Override
+      public void start(QuoteStore store, Listener listener) {
+      }
+
+      @Override
+      public void subscribed(String symbol) {
+      }
+
+      @Override
+      public void unsubscribed(String symbol) {
+      }
+
+      @Override
+      public void close() {
+      }
+   }
+}
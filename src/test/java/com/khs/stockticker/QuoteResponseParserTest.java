@@ -0,0 +1,99 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuoteResponseParserTest {
+   private static final long NOW = 1445367221000L;
+
+   private final QuoteStore store = new QuoteStore();
+
+   @Test
+   public void storesEachQuoteInAnArray() {
+      int goog = store.intern("GOOG");
+      int aapl = store.intern("AAPL");
+
+      int stored = parse("{\"query\":{\"count\":2,\"results\":{\"quote\":["
+            + "{\"symbol\":\"GOOG\",\"Ask\":\"552.00\",\"Symbol\":\"GOOG\",\"LastTradePriceOnly\":\"551.18\",\"Change\":\"-1.02\"},"
+            + "{\"Symbol\":\"AAPL\",\"Extra\":{\"a\":[1,\"]\"]},\"LastTradePriceOnly\":98.4,\"Change\":\"+0.5\"}"
+            + "]}}}");
+
+      assertEquals(2, stored);
+      assertQuote(goog, 5511800L, -10200L);
+      assertQuote(aapl, 984000L, 5000L);
+   }
+
+   @Test
+   public void takesABareObjectForOneSymbol() {
+      int msft = store.intern("MSFT");
+
+      assertEquals(1, parse("{\"query\":{\"results\":{\"quote\":{\"Symbol\":\"MSFT\",\"LastTradePriceOnly\":\"42.88\",\"Change\":\"0.10\"}}}}"));
+      assertQuote(msft, 428800L, 1000L);
+   }
+
+   @Test
+   public void addsNewSymbolsOnlyOnceUpstreamPricesThem() {
+      int stored = parse("{\"query\":{\"results\":{\"quote\":["
+            + "{\"Symbol\":\"FAKE\",\"LastTradePriceOnly\":\"N/A\",\"Change\":\"N/A\"},"
+            + "{\"Symbol\":\"IBM\",\"LastTradePriceOnly\":\"151.25\",\"Change\":\"1.00\"}"
+            + "]}}}");
+
+      assertEquals(1, stored);
+      assertEquals(-1, store.idOf("FAKE"));
+      assertQuote(store.idOf("IBM"), 1512500L, 10000L);
+   }
+
+   @Test
+   public void decodesEscapedSymbols() {
+      int goog = store.intern("GOOG");
+
+      assertEquals(1, parse("{\"query\":{\"results\":{\"quote\":{\"Symbol\":\"\\u0047OOG\",\"LastTradePriceOnly\":\"551.18\"}}}}"));
+      assertEquals(5511800L, store.price(goog));
+   }
+
+   @Test
+   public void storesNothingWithoutResults() {
+      assertEquals(0, parse("{\"query\":{\"count\":0,\"results\":null}}"));
+      assertEquals(0, parse("{\"query\":{\"results\":{\"quote\":[]}}}"));
+      assertEquals(0, parse("{\"error\":{\"description\":\"No definition found\"}}"));
+   }
+
+   @Test
+   public void leavesTheBufferIndexesAlone() {
+      ByteBuf content = Unpooled.copiedBuffer("{\"query\":{\"results\":null}}", CharsetUtil.UTF_8);
+      int readerIndex = content.readerIndex();
+      int writerIndex = content.writerIndex();
+
+      QuoteResponseParser.parse(content, store, NOW);
+
+      assertEquals(readerIndex, content.readerIndex());
+      assertEquals(writerIndex, content.writerIndex());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsTruncatedResponses() {
+      store.intern("GOOG");
+      parse("{\"query\":{\"results\":{\"quote\":[{\"Symbol\":\"GOOG\",\"LastTradePriceOnly\":\"551.18\"");
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsMissingValues() {
+      parse("{\"query\":{\"count\":,\"results\":null}}");
+   }
+
+   private int parse(String json) {
+      return QuoteResponseParser.parse(Unpooled.copiedBuffer(json, CharsetUtil.UTF_8), store, NOW);
+   }
+
+   private void assertQuote(int id, long price, long change) {
+      long[] quote = new long[3];
+      assertTrue(store.read(id, quote));
+      assertArrayEquals(new long[] { price, change, NOW }, quote);
+   }
+}
@@ -0,0 +1,42 @@
+package com.khs.stockticker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedQuoteSourceTest {
+   private final QuoteStore store = new QuoteStore();
+   private final SimulatedQuoteSource source = new SimulatedQuoteSource(100000, 1L, SimulatedQuoteSource.DEFAULT_SEED);
+
+   @After
+   public void close() {
+      source.close();
+   }
+
+   @Test
+   public void noTickLandsOnceASymbolIsUnsubscribed() throws InterruptedException {
+      final CountDownLatch ticked = new CountDownLatch(100);
+      source.start(store, new QuoteSource.Listener() {
+         @Override
+         public void quoteUpdated(int symbolId) {
+            ticked.countDown();
+         }
+      });
+      source.subscribed("GOOG");
+      assertTrue(ticked.await(5, TimeUnit.SECONDS));
+
+      // what the engine does for the last subscriber leaving
+      source.unsubscribed("GOOG");
+      int goog = store.idOf("GOOG");
+      store.clear(goog);
+
+      // plenty of batches for a late tick to show up in
+      Thread.sleep(50);
+      assertEquals(QuoteStore.NO_PRICE, store.price(goog));
+   }
+}
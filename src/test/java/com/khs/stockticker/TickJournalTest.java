@@ -0,0 +1,186 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.ByteBuf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TickJournalTest {
+   private static final long T0 = 1445367221000L;
+
+   // the smallest segment the journal allows, so a few hundred ticks roll it
+   private static final int SEGMENT_RECORDS = 256;
+   private static final long RETENTION = 60000L;
+
+   @Rule
+   public final TemporaryFolder folder = new TemporaryFolder();
+
+   private Path dir;
+   private TickJournal journal;
+
+   @Before
+   public void open() throws IOException {
+      dir = folder.getRoot().toPath();
+      journal = newJournal();
+   }
+
+   @Test
+   public void readsTheNewestTicksOldestFirst() {
+      journal.open("GOOG");
+      appendTicks("GOOG", 0, 10);
+
+      TickJournal.Ticks ticks = journal.read("GOOG", 0, 3);
+      try {
+         assertTimes(ticks, 7, 8, 9);
+      } finally {
+         ticks.release();
+      }
+      assertEquals(10, journal.getAppended());
+      assertEquals(3, journal.getReplayed());
+   }
+
+   @Test
+   public void readsFromATimeAcrossSegments() {
+      journal.open("GOOG");
+      appendTicks("GOOG", 0, SEGMENT_RECORDS + 10);
+
+      TickJournal.Ticks ticks = journal.read("GOOG", T0 + SEGMENT_RECORDS - 2, 100);
+      try {
+         assertEquals(12, ticks.getCount());
+      } finally {
+         ticks.release();
+      }
+   }
+
+   @Test
+   public void keepsOnlyTheNewestSegments() {
+      journal.open("GOOG");
+      appendTicks("GOOG", 0, 2 * SEGMENT_RECORDS + 10);
+
+      TickJournal.Ticks ticks = journal.read("GOOG", 0, TickJournal.MAX_REPLAY);
+      try {
+         assertEquals(SEGMENT_RECORDS + 10, ticks.getCount());
+         assertEquals(T0 + SEGMENT_RECORDS, ticks.toByteBuf().getLong(0));
+      } finally {
+         ticks.release();
+      }
+      assertEquals(2, segmentFiles());
+   }
+
+   @Test
+   public void skipsRepeatsAndSymbolsThatAreNotOpen() {
+      assertFalse(journal.append("GOOG", 5511800L, 0L, T0));
+
+      journal.open("GOOG");
+      assertTrue(journal.append("GOOG", 5511800L, 0L, T0));
+      assertFalse(journal.append("GOOG", 5511800L, 0L, T0 + 1));
+
+      journal.open("../etc");
+      assertFalse(journal.append("../etc", 5511800L, 0L, T0));
+      assertEquals(1, journal.getOpen());
+   }
+
+   @Test
+   public void readsHeldAcrossAReleaseStayUsable() {
+      journal.open("GOOG");
+      appendTicks("GOOG", 0, 5);
+
+      TickJournal.Ticks ticks = journal.read("GOOG", 0, 5);
+      journal.release("GOOG");
+      try {
+         assertTimes(ticks, 0, 1, 2, 3, 4);
+      } finally {
+         ticks.release();
+      }
+
+      assertEquals(0, journal.getOpen());
+      assertFalse(journal.append("GOOG", 1L, 0L, T0 + 10));
+      assertEquals(0, journal.read("GOOG", 0, 5).getCount());
+   }
+
+   @Test
+   public void reopeningPicksUpWhereTheFilesLeftOff() throws IOException {
+      journal.open("GOOG");
+      appendTicks("GOOG", 0, 5);
+      journal.release("GOOG");
+
+      journal = newJournal();
+      journal.open("GOOG");
+      // the same as the last tick on disk, so not written again
+      assertFalse(journal.append("GOOG", price(4), 0L, T0 + 5));
+      appendTicks("GOOG", 5, 2);
+
+      TickJournal.Ticks ticks = journal.read("GOOG", 0, 10);
+      try {
+         assertTimes(ticks, 0, 1, 2, 3, 4, 5, 6);
+      } finally {
+         ticks.release();
+      }
+   }
+
+   @Test
+   public void expiresOnlyOldFilesOfClosedSymbols() throws IOException {
+      journal.open("GOOG");
+      journal.open("AAPL");
+      journal.open("MSFT");
+      appendTicks("GOOG", 0, 1);
+      appendTicks("AAPL", 0, 1);
+      appendTicks("MSFT", 0, 1);
+      journal.release("GOOG");
+      journal.release("AAPL");
+
+      long now = System.currentTimeMillis();
+      age("GOOG", now - 2 * RETENTION);
+      age("MSFT", now - 2 * RETENTION);
+
+      // AAPL is too recent and MSFT still open
+      assertEquals(1, journal.expire(now));
+      assertEquals(1, journal.getExpired());
+      assertEquals(2, segmentFiles());
+      assertFalse(new File(folder.getRoot(), "GOOG.000000000000.ticks").exists());
+   }
+
+   private TickJournal newJournal() throws IOException {
+      return new TickJournal(dir, SEGMENT_RECORDS * TickJournal.RECORD_BYTES, 2, RETENTION);
+   }
+
+   // tick i of a symbol is at T0 + i, with a price that always differs from the last
+   private void appendTicks(String symbol, int from, int count) {
+      for (int i = from; i < from + count; i++) {
+         assertTrue(journal.append(symbol, price(i), 0L, T0 + i));
+      }
+   }
+
+   private static long price(int tick) {
+      return 5000000L + tick;
+   }
+
+   private static void assertTimes(TickJournal.Ticks ticks, int... expected) {
+      assertEquals(expected.length, ticks.getCount());
+      ByteBuf records = ticks.toByteBuf();
+      for (int i = 0; i < expected.length; i++) {
+         int offset = i * TickJournal.RECORD_BYTES;
+         assertEquals(T0 + expected[i], records.getLong(offset));
+         assertEquals(price(expected[i]), records.getLong(offset + 8));
+      }
+   }
+
+   private void age(String symbol, long millis) throws IOException {
+      Files.setLastModifiedTime(dir.resolve(symbol + ".000000000000.ticks"), FileTime.fromMillis(millis));
+   }
+
+   private int segmentFiles() {
+      return folder.getRoot().list().length;
+   }
+}
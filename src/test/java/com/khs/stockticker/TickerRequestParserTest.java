@@ -0,0 +1,90 @@
+package com.khs.stockticker;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TickerRequestParserTest {
+   private final QuoteStore store = new QuoteStore();
+   private final TickerRequestParser parser = new TickerRequestParser(store.getSymbols());
+   private final TickerRequest request = new TickerRequest();
+
+   @Test
+   public void knownSymbolsComeBackInterned() {
+      store.intern("GOOG");
+      store.intern("MSFT");
+
+      assertTrue(parse("{\"command\":\"add\",\"tickerSymbols\":[\" GOOG \",\"MSFT\",\"IBM\"]}"));
+
+      assertSame("add", request.getCommand());
+      List<String> symbols = request.getTickerSymbols();
+      assertEquals(Arrays.asList("GOOG", "MSFT", "IBM"), symbols);
+      assertSame(store.symbol(store.idOf("GOOG")), symbols.get(0));
+      assertSame(store.symbol(store.idOf("MSFT")), symbols.get(1));
+   }
+
+   @Test
+   public void readsEveryField() {
+      assertTrue(parse("{ \"command\" : \"bars\", \"tickerSymbol\":\"AAPL\", \"interval\":\"5m\", \"limit\":60,"
+            + " \"replayLast\":\"25\", \"replaySince\":1445367221000, \"unknown\":{\"a\":[1,2,\"}\"]} }"));
+
+      assertSame("bars", request.getCommand());
+      assertEquals("AAPL", request.getTickerSymbol());
+      assertSame(BarRollup.intervalName(2), request.getInterval());
+      assertEquals(Integer.valueOf(60), request.getLimit());
+      assertEquals(Integer.valueOf(25), request.getReplayLast());
+      assertEquals(Long.valueOf(1445367221000L), request.getReplaySince());
+   }
+
+   @Test
+   public void keepsAlertThresholdsAsText() {
+      assertTrue(parse("{\"command\":\"alert\",\"tickerSymbol\":\"GOOG\",\"above\":\"560.50\",\"below\":540,\"movePercent\":null}"));
+
+      assertEquals("560.50", request.getAbove());
+      assertEquals("540", request.getBelow());
+      assertNull(request.getMovePercent());
+   }
+
+   @Test
+   public void replacesTheLastRequestsFields() {
+      assertTrue(parse("{\"command\":\"add\",\"tickerSymbol\":\"GOOG\",\"replayLast\":5}"));
+      assertTrue(parse("{\"command\":\"remove\"}"));
+
+      assertSame("remove", request.getCommand());
+      assertNull(request.getTickerSymbol());
+      assertNull(request.getReplayLast());
+   }
+
+   @Test
+   public void reusesItsSymbolList() {
+      assertTrue(parse("{\"tickerSymbols\":[\"A\",\"B\"]}"));
+      List<String> first = request.getTickerSymbols();
+      assertTrue(parse("{\"tickerSymbols\":[\"C\"]}"));
+
+      assertSame(first, request.getTickerSymbols());
+      assertEquals(Arrays.asList("C"), first);
+   }
+
+   @Test
+   public void leavesWhatItDoesNotHandleToTheFallback() {
+      assertFalse(parse("{\"command\":\"add\",\"tickerSymbol\":\"\\u0041APL\"}"));
+      assertFalse(parse("{\"command\":\"add\",\"replayLast\":1.5}"));
+      assertFalse(parse("{\"command\":\"add\",\"replayLast\":99999999999}"));
+      assertFalse(parse("{\"command\":\"add\"} trailing"));
+      assertFalse(parse("{\"command\":\"add\","));
+      assertFalse(parse("[\"add\"]"));
+   }
+
+   private boolean parse(String json) {
+      return parser.parse(Unpooled.copiedBuffer(json, CharsetUtil.UTF_8), request);
+   }
+}
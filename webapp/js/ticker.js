@@ -1,13 +1,20 @@
 var wsUri = "ws://localhost:8080/wsticker";
 var output;
 
+// ask for compact binary quote frames, falling back to JSON; add ?json to the page URL to force JSON
+var wsProtocols = location.search.indexOf("json") >= 0 ? ["stockticker.json"] : ["stockticker.bin.v1", "stockticker.json"];
+
+// binary frames name each symbol once, in a snapshot, and only send its id after that
+var symbolsById = {};
+
 function init() {
 	output = document.getElementById("output");
 	testWebSocket();
 }
 
 function testWebSocket() {
-	websocket = new WebSocket(wsUri);
+	websocket = new WebSocket(wsUri, wsProtocols);
+	websocket.binaryType = "arraybuffer";
 	websocket.onopen = function (evt) {
 		onOpen(evt)
 	};
@@ -23,9 +30,8 @@ function testWebSocket() {
 }
 
 function onOpen(evt) {
-	writeToScreen("CONNECTED");
-	doSend('{"command":"add", "tickerSymbol":"GOOG"}');
-	doSend('{"command":"add", "tickerSymbol":"F"}');
+	writeToScreen("CONNECTED (" + (websocket.protocol || "stockticker.json") + ")");
+	doSend('{"command":"add", "tickerSymbols":["GOOG","F"], "replayLast":20}');
 }
 
 function onClose(evt) {
@@ -33,7 +39,88 @@ function onClose(evt) {
 }
 
 function onMessage(evt) {
-	writeToScreen('<span style="color: blue;">RESPONSE: ' + evt.data + '</span>');
+	var data = evt.data;
+	if (data instanceof ArrayBuffer) {
+		// shown the same way as the JSON frames
+		data = JSON.stringify(decodeQuotes(data));
+	}
+	writeToScreen('<span style="color: blue;">RESPONSE: ' + data + '</span>');
+}
+
+// Decodes a stockticker.bin.v1 frame into the same shape as a JSON one. See BinaryQuoteCodec for
+// the layout: type:u8, then entries to the end of the frame.
+function decodeQuotes(buffer) {
+	var bytes = new Uint8Array(buffer);
+	var pos = 1;
+	var tickerData = {};
+
+	// unsigned LEB128; multiplies rather than shifts, as shifts in JS are 32 bit
+	function varint() {
+		var value = 0, scale = 1, b;
+		do {
+			b = bytes[pos++];
+			value += (b & 0x7f) * scale;
+			scale *= 128;
+		} while (b & 0x80);
+		return value;
+	}
+
+	function svarint() {
+		var n = varint();
+		return n % 2 === 0 ? n / 2 : -(n + 1) / 2;
+	}
+
+	function symbol() {
+		var length = varint();
+		var name = "";
+		for (var i = 0; i < length; i++) {
+			name += String.fromCharCode(bytes[pos++]);
+		}
+		return decodeURIComponent(escape(name));
+	}
+
+	// a signed 64 bit big-endian long, exact up to 2^53
+	function int64(view, offset) {
+		return view.getInt32(offset) * 4294967296 + view.getUint32(offset + 4);
+	}
+
+	// one symbol's journaled ticks, 24 bytes each of time, price and change
+	if (bytes[0] === 3) {
+		varint();
+		var replayed = symbol();
+		var view = new DataView(buffer);
+		var ticks = [];
+		for (; pos < bytes.length; pos += 24) {
+			ticks.push({price: formatPrice(int64(view, pos + 8)), change: formatPrice(int64(view, pos + 16)), time: int64(view, pos)});
+		}
+		return {result: "success", frameType: "replay", tickerSymbol: replayed, ticks: ticks};
+	}
+
+	var snapshot = bytes[0] === 1;
+	while (pos < bytes.length) {
+		var id = varint();
+		if (snapshot) {
+			symbolsById[id] = symbol();
+			if (!(bytes[pos++] & 1)) {
+				continue;
+			}
+		}
+		tickerData[symbolsById[id]] = formatPrice(svarint());
+	}
+
+	return {result: "success", frameType: snapshot ? "snapshot" : "delta", tickerData: tickerData};
+}
+
+// fixed point in ten-thousandths to at least two decimals, like QuoteStore.formatPrice
+function formatPrice(price) {
+	var sign = price < 0 ? "-" : "";
+	price = Math.abs(price);
+	var fraction = String(price % 10000);
+	while (fraction.length < 4) {
+		fraction = "0" + fraction;
+	}
+	fraction = fraction.replace(/0{1,2}$/, "");
+	return sign + Math.floor(price / 10000) + "." + fraction;
 }
 
 function onError(evt) {